@@ -0,0 +1,54 @@
+package com.plugin.push.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Adm Message - The message part of an ADM send: the data the plugin receives as extras, and the
+ * delivery options. ADM takes one registration id per request, so the same body is posted for
+ * every device.
+ */
+class AdmMessage {
+
+    private final Map<String, String> mData = new LinkedHashMap<String, String>();
+
+    private String mConsolidationKey;
+
+    // s, -1 for ADM's default (1 week)
+    private long mExpiresAfter = -1;
+
+    /**
+     * Adds a data field, e.g. message, title or sound.
+     */
+    public AdmMessage put(String key, String value) {
+        mData.put(key, value);
+        return this;
+    }
+
+    /**
+     * @param consolidationKey messages with the same key replace each other while undelivered
+     */
+    public AdmMessage setConsolidationKey(String consolidationKey) {
+        mConsolidationKey = consolidationKey;
+        return this;
+    }
+
+    public AdmMessage setExpiresAfter(long seconds) {
+        mExpiresAfter = seconds;
+        return this;
+    }
+
+    public String toJSON() {
+        StringBuilder json = new StringBuilder(64 + mData.size() * 32);
+        json.append("{\"data\":");
+        Json.appendStringMap(json, mData);
+        if (mConsolidationKey != null) {
+            json.append(",\"consolidationKey\":");
+            Json.appendQuoted(json, mConsolidationKey);
+        }
+        if (mExpiresAfter >= 0) {
+            json.append(",\"expiresAfter\":").append(mExpiresAfter);
+        }
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,403 @@
+package com.plugin.push.server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adm Sender - Sends a message to any number of registration ids through Amazon Device Messaging,
+ * which takes one registration id per request.
+ *
+ * The requests are made asynchronously over the pooled keep-alive connections of one HttpClient,
+ * with up to maxInFlight of them outstanding, all authorized with the access token of a shared
+ * AdmTokenCache. ADM's answers are handled per registration id:
+ * <ul>
+ * <li>a registrationID in the result other than the one sent to is reported as canonical</li>
+ * <li>Unregistered and InvalidRegistrationId are reported as invalid</li>
+ * <li>AccessTokenExpired drops the token and retries with a new one</li>
+ * <li>MaxRateExceeded (429) pauses every request of the sender for Retry-After, then retries</li>
+ * <li>5xx and I/O errors are retried with exponential backoff</li>
+ * </ul>
+ *
+ * Thread safe; one sender is meant to be shared by everything sending with the same credentials.
+ */
+class AdmSender {
+
+    private static final Logger LOG = Logger.getLogger("PushSender-Adm");
+
+    public static final URI DEFAULT_ENDPOINT = URI.create("https://api.amazon.com");
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    // ms, doubled on every retry
+    public static final long RETRY_BASE_DELAY = 1000;
+
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final String TYPE_VERSION = "com.amazon.device.messaging.ADMMessage@1.0";
+
+    private static final String ACCEPT_TYPE = "com.amazon.device.messaging.ADMSendResult@1.0";
+
+    private final String mEndpoint;
+
+    private final AdmTokenCache mTokenCache;
+
+    private final int mMaxInFlight;
+
+    private final Semaphore mInFlight;
+
+    private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    private volatile long mRetryBaseDelay = RETRY_BASE_DELAY;
+
+    // System.nanoTime() until which ADM asked not to send, guarded by this
+    private long mThrottledUntil = 0;
+
+    private volatile boolean mThrottled = false;
+
+    private final ExecutorService mExecutor;
+
+    private final HttpClient mHttpClient;
+
+    public AdmSender(String clientId, String clientSecret) {
+        this(clientId, clientSecret, DEFAULT_ENDPOINT, AdmTokenCache.DEFAULT_ENDPOINT,
+                DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param endpoint      the messaging API, without path
+     * @param tokenEndpoint the OAuth token endpoint
+     * @param maxInFlight   requests outstanding at the same time, i.e. about the number of
+     *                      connections kept open to ADM
+     */
+    public AdmSender(String clientId, String clientSecret, URI endpoint, URI tokenEndpoint,
+            int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        String base = endpoint.toString();
+        mEndpoint = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        mMaxInFlight = maxInFlight;
+        mInFlight = new Semaphore(maxInFlight);
+        mExecutor = SenderThreads.newTaskExecutor("adm-sender");
+        mHttpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(mExecutor)
+                .build();
+        mTokenCache = new AdmTokenCache(mHttpClient, tokenEndpoint, clientId, clientSecret);
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param delay ms before the first retry, doubled on every further one
+     */
+    public void setRetryBaseDelay(long delay) {
+        mRetryBaseDelay = Math.max(0, delay);
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public AdmTokenCache getTokenCache() {
+        return mTokenCache;
+    }
+
+    /**
+     * Sends the message to every token, one request per token.
+     *
+     * @param tokens   registration ids, read on the sender's threads as requests complete
+     * @param feedback told about invalid and canonical tokens, may be null
+     * @return completes with the report when every request completed or gave up
+     */
+    public CompletableFuture<SendReport> send(AdmMessage message, final Iterator<String> tokens,
+            TokenFeedback feedback) {
+        final Send send = new Send(message.toJSON(),
+                feedback != null ? feedback : TokenFeedback.NONE);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (tokens.hasNext()) {
+                        post(send, tokens.next(), 0);
+                    }
+
+                    send.end();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    send.mResult.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    send.mResult.completeExceptionally(e);
+                }
+            }
+        });
+        return send.mResult;
+    }
+
+    public CompletableFuture<SendReport> send(AdmMessage message, Iterable<String> tokens,
+            TokenFeedback feedback) {
+        return send(message, tokens.iterator(), feedback);
+    }
+
+    /**
+     * Stops the sender's threads; sends that are still running fail.
+     */
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Posts the message to one token, blocking while ADM throttles the sender or maxInFlight
+     * requests are outstanding.
+     */
+    private void post(final Send send, final String token, final int attempt)
+            throws InterruptedException {
+        awaitThrottle();
+
+        final String accessToken;
+        try {
+            accessToken = mTokenCache.getToken();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "post: no access token", e);
+            retry(send, token, attempt, getBackoff(attempt, -1));
+            return;
+        }
+
+        mInFlight.acquire();
+        send.begin();
+
+        HttpRequest request = HttpRequest.newBuilder(createURI(token))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", "Bearer " + accessToken)
+                .header("X-Amzn-Type-Version", TYPE_VERSION)
+                .header("X-Amzn-Accept-Type", ACCEPT_TYPE)
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(send.mBody))
+                .build();
+        send.mReport.mRequests.incrementAndGet();
+
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            response = mHttpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            mInFlight.release();
+            send.end();
+            throw e;
+        }
+
+        response.whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+            @Override
+            public void accept(HttpResponse<String> httpResponse, Throwable error) {
+                mInFlight.release();
+                try {
+                    if (error != null) {
+                        LOG.log(Level.FINE, "post: request failed", error);
+                        retry(send, token, attempt, getBackoff(attempt, -1));
+                    } else {
+                        handleResponse(send, token, attempt, accessToken, httpResponse);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. a malformed response
+                    LOG.log(Level.WARNING, "post: could not handle the response", e);
+                    send.mReport.mFailed.incrementAndGet();
+                } finally {
+                    send.end();
+                }
+            }
+        });
+    }
+
+    private void handleResponse(Send send, String token, int attempt, String accessToken,
+            HttpResponse<String> response) {
+        int status = response.statusCode();
+        Map<String, Object> result = Json.parseObject(response.body());
+        String reason = Json.getString(result, "reason");
+
+        if (status == 200) {
+            send.mReport.mSucceeded.incrementAndGet();
+            String canonicalToken = Json.getString(result, "registrationID");
+            if (canonicalToken != null && !canonicalToken.equals(token)) {
+                send.mReport.mCanonical.incrementAndGet();
+                send.onCanonicalToken(token, canonicalToken);
+            }
+            return;
+        }
+        if (status == 401 && "AccessTokenExpired".equals(reason)) {
+            // expired before its refresh, e.g. a clock jump; fetch a new one right away
+            mTokenCache.invalidate(accessToken);
+            retry(send, token, attempt, 0);
+            return;
+        }
+        if (status == 429) {
+            long delay = getBackoff(attempt, HttpSupport.getRetryAfter(response));
+            throttle(delay);
+            retry(send, token, attempt, delay);
+            return;
+        }
+        if (status >= 500) {
+            retry(send, token, attempt, getBackoff(attempt, HttpSupport.getRetryAfter(response)));
+            return;
+        }
+
+        send.mReport.mFailed.incrementAndGet();
+        if (status == 400
+                && ("Unregistered".equals(reason) || "InvalidRegistrationId".equals(reason))) {
+            send.mReport.mInvalid.incrementAndGet();
+            send.onInvalidToken(token, reason);
+        } else {
+            // e.g. 400 InvalidData, 401 for bad credentials, 413 MessageTooLarge
+            LOG.warning("handleResponse: ADM returned " + status + " - " + response.body());
+        }
+    }
+
+    /**
+     * Posts the token again after the delay, on a sender thread, or counts it as failed if it was
+     * tried often enough.
+     */
+    private void retry(final Send send, final String token, final int attempt,
+            final long delay) {
+        if (attempt >= mMaxRetries) {
+            send.mReport.mFailed.incrementAndGet();
+            return;
+        }
+
+        send.mReport.mRetries.incrementAndGet();
+        // keeps the send open until the retry is posted
+        send.begin();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(delay);
+                        post(send, token, attempt + 1);
+                    } catch (InterruptedException e) {
+                        send.mReport.mFailed.incrementAndGet();
+                    } finally {
+                        send.end();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // shut down
+            send.mReport.mFailed.incrementAndGet();
+            send.end();
+        }
+    }
+
+    /**
+     * @param retryAfter ms the server asked to wait, -1 if it did not
+     */
+    private long getBackoff(int attempt, long retryAfter) {
+        return Math.max(retryAfter, mRetryBaseDelay << attempt);
+    }
+
+    /**
+     * Holds back every request of the sender for the delay: once ADM throttles, requests made
+     * before it recovers only add to the rate it counts.
+     */
+    private synchronized void throttle(long delay) {
+        long until = System.nanoTime() + delay * NANOS_PER_MILLI;
+        if (!mThrottled || until - mThrottledUntil > 0) {
+            mThrottledUntil = until;
+        }
+        mThrottled = true;
+    }
+
+    private void awaitThrottle() throws InterruptedException {
+        if (!mThrottled) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            wait = mThrottledUntil - System.nanoTime();
+            if (wait <= 0) {
+                mThrottled = false;
+                return;
+            }
+        }
+        Thread.sleep(wait / NANOS_PER_MILLI, (int) (wait % NANOS_PER_MILLI));
+    }
+
+    private URI createURI(String token) {
+        // registration ids are base64 and may contain '/', '+' and '='
+        return URI.create(mEndpoint + "/messaging/registrations/"
+                + URLEncoder.encode(token, StandardCharsets.UTF_8) + "/messages");
+    }
+
+    /**
+     * One call of send(): the request body shared by its requests, its report and the requests
+     * and retries still outstanding. The result completes when the last of them ends.
+     */
+    private static class Send {
+
+        private final String mBody;
+
+        private final TokenFeedback mFeedback;
+
+        private final SendReport mReport = new SendReport();
+
+        private final CompletableFuture<SendReport> mResult = new CompletableFuture<SendReport>();
+
+        // the sending thread, plus one per outstanding request or retry
+        private final AtomicInteger mOutstanding = new AtomicInteger(1);
+
+        Send(String body, TokenFeedback feedback) {
+            mBody = body;
+            mFeedback = feedback;
+        }
+
+        void begin() {
+            mOutstanding.incrementAndGet();
+        }
+
+        void end() {
+            if (mOutstanding.decrementAndGet() == 0) {
+                mResult.complete(mReport);
+            }
+        }
+
+        /**
+         * Passes the token on to the feedback; a feedback that throws does not fail the send.
+         */
+        void onInvalidToken(String token, String reason) {
+            try {
+                mFeedback.onInvalidToken(token, reason);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "onInvalidToken: feedback failed", e);
+            }
+        }
+
+        void onCanonicalToken(String token, String canonicalToken) {
+            try {
+                mFeedback.onCanonicalToken(token, canonicalToken);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "onCanonicalToken: feedback failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.plugin.push.server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adm Token Cache - The OAuth access token ADM requests are authorized with, shared by every
+ * request of an AdmSender.
+ *
+ * The token is fetched once and reused until shortly before it expires: once it is in its refresh
+ * window (the last fifth of its lifetime, at most REFRESH_MARGIN) a new one is fetched in the
+ * background while requests keep using the current one, so requests only wait for a token on the
+ * very first fetch or after the token was rejected. Concurrent callers share one fetch.
+ */
+class AdmTokenCache {
+
+    private static final Logger LOG = Logger.getLogger("PushSender-AdmToken");
+
+    public static final URI DEFAULT_ENDPOINT = URI.create("https://api.amazon.com/auth/O2/token");
+
+    // ms; a token is refreshed at most this long before it expires
+    public static final long REFRESH_MARGIN = 5 * 60 * 1000;
+
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private static class Token {
+
+        private final String mValue;
+
+        // System.nanoTime()
+        private final long mRefreshAt;
+
+        private final long mExpiresAt;
+
+        Token(String value, long refreshAt, long expiresAt) {
+            mValue = value;
+            mRefreshAt = refreshAt;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private final HttpClient mHttpClient;
+
+    private final URI mEndpoint;
+
+    private final String mForm;
+
+    private volatile Token mToken;
+
+    // the fetch in progress, guarded by this
+    private CompletableFuture<Token> mFetch;
+
+    private final AtomicLong mFetches = new AtomicLong();
+
+    public AdmTokenCache(HttpClient httpClient, URI endpoint, String clientId,
+            String clientSecret) {
+        mHttpClient = httpClient;
+        mEndpoint = endpoint;
+        mForm = "grant_type=client_credentials&scope=messaging%3Apush&client_id="
+                + URLEncoder.encode(clientId, StandardCharsets.UTF_8) + "&client_secret="
+                + URLEncoder.encode(clientSecret, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a valid access token, fetching one first if there is none
+     * @throws IOException if a token could not be fetched
+     */
+    public String getToken() throws IOException, InterruptedException {
+        Token token = mToken;
+        long now = System.nanoTime();
+        if (token != null && now - token.mExpiresAt < 0) {
+            if (now - token.mRefreshAt >= 0) {
+                // refreshed in the background, this one is still good
+                fetch();
+            }
+            return token.mValue;
+        }
+
+        try {
+            return fetch().get().mValue;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Could not fetch an ADM access token", cause);
+        }
+    }
+
+    /**
+     * Drops the token if it is still the current one, e.g. when ADM answered AccessTokenExpired,
+     * so the next getToken() fetches a new one.
+     */
+    public void invalidate(String value) {
+        Token token = mToken;
+        if (token != null && token.mValue.equals(value)) {
+            mToken = null;
+        }
+    }
+
+    /**
+     * @return how many tokens were fetched
+     */
+    public long getFetches() {
+        return mFetches.get();
+    }
+
+    private synchronized CompletableFuture<Token> fetch() {
+        if (mFetch != null) {
+            return mFetch;
+        }
+
+        final long start = System.nanoTime();
+        HttpRequest request = HttpRequest.newBuilder(mEndpoint)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded;charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(mForm))
+                .build();
+
+        final CompletableFuture<Token> fetch = mHttpClient
+                .sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(new Function<HttpResponse<String>, Token>() {
+                    @Override
+                    public Token apply(HttpResponse<String> response) {
+                        return parseToken(response, start);
+                    }
+                });
+        mFetch = fetch;
+
+        fetch.whenComplete(new BiConsumer<Token, Throwable>() {
+            @Override
+            public void accept(Token token, Throwable error) {
+                synchronized (AdmTokenCache.this) {
+                    mFetch = null;
+                }
+                if (token != null) {
+                    mToken = token;
+                    mFetches.incrementAndGet();
+                } else {
+                    LOG.log(Level.WARNING, "fetch: could not fetch an access token", error);
+                }
+            }
+        });
+        return fetch;
+    }
+
+    /**
+     * @param start when the request was made; the lifetime counts from there
+     */
+    private static Token parseToken(HttpResponse<String> response, long start) {
+        Map<String, Object> json = Json.parseObject(response.body());
+        String value = Json.getString(json, "access_token");
+        long expiresIn = Json.getLong(json, "expires_in", -1);
+        if (response.statusCode() != 200 || value == null || expiresIn <= 0) {
+            // e.g. 400 invalid_client
+            throw new IllegalStateException("ADM token endpoint returned " + response.statusCode()
+                    + " - " + response.body());
+        }
+
+        long lifetime = expiresIn * 1000;
+        long margin = Math.min(REFRESH_MARGIN, lifetime / 5);
+        return new Token(value, start + (lifetime - margin) * NANOS_PER_MILLI,
+                start + lifetime * NANOS_PER_MILLI);
+    }
+}
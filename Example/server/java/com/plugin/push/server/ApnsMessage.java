@@ -0,0 +1,163 @@
+package com.plugin.push.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Apns Message - The message part of an APNS send: the aps dictionary, custom keys (the plugin
+ * passes them to the app under "custom") and the request headers. APNS takes one device token per
+ * request, so the same payload is posted for every device.
+ */
+class ApnsMessage {
+
+    private final Map<String, String> mCustom = new LinkedHashMap<String, String>();
+
+    private String mTitle;
+
+    private String mAlert;
+
+    private int mBadge = -1;
+
+    private String mSound;
+
+    private boolean mContentAvailable = false;
+
+    private String mTopic;
+
+    // 10 immediately, 5 power considerate, -1 for APNS' default (10)
+    private int mPriority = -1;
+
+    // epoch s, -1 for no expiration header (APNS stores the message for a while)
+    private long mExpiration = -1;
+
+    private String mCollapseId;
+
+    public ApnsMessage setAlert(String alert) {
+        mAlert = alert;
+        return this;
+    }
+
+    public ApnsMessage setTitle(String title) {
+        mTitle = title;
+        return this;
+    }
+
+    public ApnsMessage setBadge(int badge) {
+        mBadge = badge;
+        return this;
+    }
+
+    /**
+     * @param sound a sound file of the app bundle, e.g. beep.wav
+     */
+    public ApnsMessage setSound(String sound) {
+        mSound = sound;
+        return this;
+    }
+
+    /**
+     * Makes the message a silent background notification.
+     */
+    public ApnsMessage setContentAvailable(boolean contentAvailable) {
+        mContentAvailable = contentAvailable;
+        return this;
+    }
+
+    /**
+     * Adds a key next to aps, e.g. an id the app opens the notification with.
+     */
+    public ApnsMessage put(String key, String value) {
+        mCustom.put(key, value);
+        return this;
+    }
+
+    /**
+     * @param topic the app's bundle id; required with provider tokens
+     */
+    public ApnsMessage setTopic(String topic) {
+        mTopic = topic;
+        return this;
+    }
+
+    public ApnsMessage setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * @param expiration epoch s after which APNS drops the message, 0 to try only once
+     */
+    public ApnsMessage setExpiration(long expiration) {
+        mExpiration = expiration;
+        return this;
+    }
+
+    /**
+     * @param collapseId messages with the same id replace each other on the device
+     */
+    public ApnsMessage setCollapseId(String collapseId) {
+        mCollapseId = collapseId;
+        return this;
+    }
+
+    public String getTopic() {
+        return mTopic;
+    }
+
+    /**
+     * @return the apns-push-type: background for a message that only wakes the app
+     */
+    public String getPushType() {
+        return mContentAvailable && mAlert == null && mTitle == null && mBadge < 0
+                && mSound == null ? "background" : "alert";
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public long getExpiration() {
+        return mExpiration;
+    }
+
+    public String getCollapseId() {
+        return mCollapseId;
+    }
+
+    public String toJSON() {
+        StringBuilder json = new StringBuilder(64 + mCustom.size() * 32);
+        json.append("{\"aps\":{");
+        int length = json.length();
+        if (mAlert != null || mTitle != null) {
+            json.append("\"alert\":");
+            if (mTitle == null) {
+                Json.appendQuoted(json, mAlert);
+            } else {
+                json.append("{\"title\":");
+                Json.appendQuoted(json, mTitle);
+                if (mAlert != null) {
+                    json.append(",\"body\":");
+                    Json.appendQuoted(json, mAlert);
+                }
+                json.append('}');
+            }
+        }
+        if (mBadge >= 0) {
+            json.append(json.length() > length ? "," : "").append("\"badge\":").append(mBadge);
+        }
+        if (mSound != null) {
+            json.append(json.length() > length ? "," : "").append("\"sound\":");
+            Json.appendQuoted(json, mSound);
+        }
+        if (mContentAvailable) {
+            json.append(json.length() > length ? "," : "").append("\"content-available\":1");
+        }
+        json.append('}');
+        for (Map.Entry<String, String> entry : mCustom.entrySet()) {
+            json.append(',');
+            Json.appendQuoted(json, entry.getKey()).append(':');
+            Json.appendQuoted(json, entry.getValue());
+        }
+        return json.append('}').toString();
+    }
+}
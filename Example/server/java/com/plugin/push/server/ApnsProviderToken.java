@@ -0,0 +1,150 @@
+package com.plugin.push.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * Apns Provider Token - The JWT APNS requests are authorized with, signed with the team's APNs
+ * auth key (ES256), shared by every request of an ApnsSender.
+ *
+ * APNS rejects a token older than an hour and answers TooManyProviderTokenUpdates if a new one
+ * comes more often than every 20 minutes, so the token is signed once and replaced on a schedule
+ * in between (ROTATION_PERIOD), not per request: signing costs far more than a request.
+ */
+class ApnsProviderToken {
+
+    // ms a token is used for
+    public static final long ROTATION_PERIOD = 50 * 60 * 1000;
+
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private static final Base64.Encoder BASE64_URL = Base64.getUrlEncoder().withoutPadding();
+
+    private static class Token {
+
+        private final String mValue;
+
+        // System.nanoTime()
+        private final long mIssuedAt;
+
+        Token(String value, long issuedAt) {
+            mValue = value;
+            mIssuedAt = issuedAt;
+        }
+    }
+
+    private final String mKeyId;
+
+    private final String mTeamId;
+
+    private final PrivateKey mKey;
+
+    private final long mRotationPeriod;
+
+    private volatile Token mToken;
+
+    // written under the lock
+    private volatile long mSigned = 0;
+
+    /**
+     * @param keyId  the 10 character id of the auth key
+     * @param teamId the 10 character team id
+     * @param key    the auth key, see readKey()
+     */
+    public ApnsProviderToken(String keyId, String teamId, PrivateKey key) {
+        this(keyId, teamId, key, ROTATION_PERIOD);
+    }
+
+    /**
+     * @param rotationPeriod ms a token is used for
+     */
+    public ApnsProviderToken(String keyId, String teamId, PrivateKey key, long rotationPeriod) {
+        mKeyId = keyId;
+        mTeamId = teamId;
+        mKey = key;
+        mRotationPeriod = rotationPeriod;
+    }
+
+    /**
+     * Reads an APNs auth key as downloaded from the developer account (AuthKey_KEYID.p8).
+     */
+    public static PrivateKey readKey(Path file) throws IOException, GeneralSecurityException {
+        String pem = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+        String base64 = pem.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+        return KeyFactory.getInstance("EC")
+                .generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(base64)));
+    }
+
+    /**
+     * @return the current token, signing a new one if it is due
+     */
+    public String getToken() {
+        Token token = mToken;
+        if (token != null
+                && System.nanoTime() - token.mIssuedAt < mRotationPeriod * NANOS_PER_MILLI) {
+            return token.mValue;
+        }
+        return rotate(token);
+    }
+
+    /**
+     * Replaces the token if it is still the current one, e.g. when APNS answered
+     * ExpiredProviderToken.
+     */
+    public void invalidate(String value) {
+        Token token = mToken;
+        if (token != null && token.mValue.equals(value)) {
+            rotate(token);
+        }
+    }
+
+    /**
+     * @return how many tokens were signed
+     */
+    public long getSigned() {
+        return mSigned;
+    }
+
+    /**
+     * @param expired the token to replace; if another thread replaced it already, that one is used
+     */
+    private synchronized String rotate(Token expired) {
+        Token token = mToken;
+        if (token != expired) {
+            return token.mValue;
+        }
+
+        long now = System.nanoTime();
+        StringBuilder header = new StringBuilder("{\"alg\":\"ES256\",\"kid\":");
+        Json.appendQuoted(header, mKeyId).append('}');
+        StringBuilder claims = new StringBuilder("{\"iss\":");
+        Json.appendQuoted(claims, mTeamId).append(",\"iat\":")
+                .append(System.currentTimeMillis() / 1000).append('}');
+        String unsigned = encode(header.toString()) + "." + encode(claims.toString());
+
+        try {
+            // JWS wants the raw r || s, not the DER the plain SHA256withECDSA produces
+            Signature signature = Signature.getInstance("SHA256withECDSAinP1363Format");
+            signature.initSign(mKey);
+            signature.update(unsigned.getBytes(StandardCharsets.US_ASCII));
+            token = new Token(unsigned + "." + BASE64_URL.encodeToString(signature.sign()), now);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign the APNS provider token", e);
+        }
+        mToken = token;
+        mSigned++;
+        return token.mValue;
+    }
+
+    private static String encode(String json) {
+        return BASE64_URL.encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
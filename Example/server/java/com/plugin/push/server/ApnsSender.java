@@ -0,0 +1,399 @@
+package com.plugin.push.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Apns Sender - Sends a message to any number of device tokens through the APNS HTTP/2 provider
+ * API, which takes one device token per request (stream).
+ *
+ * The sender keeps a small pool of HTTP/2 connections, one HttpClient each, and multiplexes up
+ * to maxStreams concurrent requests on every connection; a request goes to the next connection
+ * with a free stream. All requests carry the JWT of a shared ApnsProviderToken. APNS answers
+ * every stream with its own status and reason:
+ * <ul>
+ * <li>BadDeviceToken (400) and Unregistered (410) are reported as invalid</li>
+ * <li>ExpiredProviderToken (403) replaces the JWT and retries</li>
+ * <li>TooManyRequests (429), 5xx and I/O errors are retried with exponential backoff</li>
+ * </ul>
+ *
+ * Thread safe; one sender is meant to be shared by everything sending with the same auth key.
+ */
+class ApnsSender {
+
+    private static final Logger LOG = Logger.getLogger("PushSender-Apns");
+
+    public static final URI PRODUCTION_ENDPOINT = URI.create("https://api.push.apple.com");
+
+    public static final URI SANDBOX_ENDPOINT = URI.create("https://api.sandbox.push.apple.com");
+
+    public static final int DEFAULT_CONNECTIONS = 2;
+
+    // concurrent streams per connection; APNS allows up to 1000 once a connection is trusted
+    public static final int DEFAULT_MAX_STREAMS = 500;
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    // ms, doubled on every retry
+    public static final long RETRY_BASE_DELAY = 1000;
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * One HTTP/2 connection of the pool, and its free streams.
+     *
+     * Until the first response came, the connection has a single stream: the HttpClient opens a
+     * connection for every request made while none is open yet, so a burst of requests on a
+     * fresh client would open hundreds of connections instead of one.
+     */
+    private static class Connection {
+
+        private final HttpClient mHttpClient;
+
+        private final int mMaxStreams;
+
+        private final Semaphore mStreams = new Semaphore(1);
+
+        private final AtomicBoolean mOpened = new AtomicBoolean();
+
+        Connection(HttpClient httpClient, int maxStreams) {
+            mHttpClient = httpClient;
+            mMaxStreams = maxStreams;
+        }
+
+        /**
+         * Frees the other streams once the connection is open.
+         */
+        void onOpened() {
+            if (mOpened.compareAndSet(false, true)) {
+                mStreams.release(mMaxStreams - 1);
+            }
+        }
+    }
+
+    private final String mEndpoint;
+
+    private final ApnsProviderToken mProviderToken;
+
+    private final Connection[] mConnections;
+
+    private final AtomicInteger mNextConnection = new AtomicInteger();
+
+    private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    private volatile long mRetryBaseDelay = RETRY_BASE_DELAY;
+
+    private final ExecutorService mExecutor;
+
+    public ApnsSender(ApnsProviderToken providerToken, URI endpoint) {
+        this(providerToken, endpoint, DEFAULT_CONNECTIONS, DEFAULT_MAX_STREAMS);
+    }
+
+    /**
+     * @param endpoint    PRODUCTION_ENDPOINT or SANDBOX_ENDPOINT
+     * @param connections HTTP/2 connections kept open to APNS
+     * @param maxStreams  concurrent requests per connection
+     */
+    public ApnsSender(ApnsProviderToken providerToken, URI endpoint, int connections,
+            int maxStreams) {
+        if (connections <= 0 || maxStreams <= 0) {
+            throw new IllegalArgumentException("connections and maxStreams must be positive: "
+                    + connections + ", " + maxStreams);
+        }
+        String base = endpoint.toString();
+        mEndpoint = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        mProviderToken = providerToken;
+        mExecutor = SenderThreads.newTaskExecutor("apns-sender");
+        mConnections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            // an HttpClient keeps one HTTP/2 connection per origin and multiplexes on it
+            mConnections[i] = new Connection(HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .executor(mExecutor)
+                    .build(), maxStreams);
+        }
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param delay ms before the first retry, doubled on every further one
+     */
+    public void setRetryBaseDelay(long delay) {
+        mRetryBaseDelay = Math.max(0, delay);
+    }
+
+    public ApnsProviderToken getProviderToken() {
+        return mProviderToken;
+    }
+
+    /**
+     * Sends the message to every token, one stream per token.
+     *
+     * @param tokens   device tokens (hex), read on the sender's threads as requests complete
+     * @param feedback told about invalid tokens, may be null
+     * @return completes with the report when every request completed or gave up
+     */
+    public CompletableFuture<SendReport> send(ApnsMessage message, final Iterator<String> tokens,
+            TokenFeedback feedback) {
+        if (message.getTopic() == null) {
+            throw new IllegalArgumentException("APNS needs the topic (bundle id) of the message");
+        }
+        final Send send = new Send(message, feedback != null ? feedback : TokenFeedback.NONE);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (tokens.hasNext()) {
+                        post(send, tokens.next(), 0);
+                    }
+
+                    send.end();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    send.mResult.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    send.mResult.completeExceptionally(e);
+                }
+            }
+        });
+        return send.mResult;
+    }
+
+    public CompletableFuture<SendReport> send(ApnsMessage message, Iterable<String> tokens,
+            TokenFeedback feedback) {
+        return send(message, tokens.iterator(), feedback);
+    }
+
+    /**
+     * Stops the sender's threads; sends that are still running fail.
+     */
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Takes a stream on the next connection that has one free, blocking on the next connection if
+     * all are busy.
+     */
+    private Connection acquireStream() throws InterruptedException {
+        int next = Math.floorMod(mNextConnection.getAndIncrement(), mConnections.length);
+        for (int i = 0; i < mConnections.length; i++) {
+            Connection connection = mConnections[(next + i) % mConnections.length];
+            if (connection.mStreams.tryAcquire()) {
+                return connection;
+            }
+        }
+        mConnections[next].mStreams.acquire();
+        return mConnections[next];
+    }
+
+    /**
+     * Posts the message to one token, blocking while every stream is taken.
+     */
+    private void post(final Send send, final String token, final int attempt)
+            throws InterruptedException {
+        final Connection connection = acquireStream();
+        send.begin();
+
+        final String providerToken;
+        HttpRequest request;
+        try {
+            providerToken = mProviderToken.getToken();
+            request = send.createRequest(mEndpoint, token, providerToken);
+        } catch (RuntimeException e) {
+            connection.mStreams.release();
+            send.end();
+            throw e;
+        }
+        send.mReport.mRequests.incrementAndGet();
+
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            response = connection.mHttpClient.sendAsync(request,
+                    HttpResponse.BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            connection.mStreams.release();
+            send.end();
+            throw e;
+        }
+
+        response.whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+            @Override
+            public void accept(HttpResponse<String> httpResponse, Throwable error) {
+                connection.mStreams.release();
+                try {
+                    if (error != null) {
+                        LOG.log(Level.FINE, "post: request failed", error);
+                        retry(send, token, attempt, getBackoff(attempt, -1));
+                    } else {
+                        connection.onOpened();
+                        handleResponse(send, token, attempt, providerToken, httpResponse);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. a malformed response
+                    LOG.log(Level.WARNING, "post: could not handle the response", e);
+                    send.mReport.mFailed.incrementAndGet();
+                } finally {
+                    send.end();
+                }
+            }
+        });
+    }
+
+    private void handleResponse(Send send, String token, int attempt, String providerToken,
+            HttpResponse<String> response) {
+        int status = response.statusCode();
+        if (status == 200) {
+            send.mReport.mSucceeded.incrementAndGet();
+            return;
+        }
+
+        String reason = Json.getString(Json.parseObject(response.body()), "reason");
+        if (status == 403 && "ExpiredProviderToken".equals(reason)) {
+            mProviderToken.invalidate(providerToken);
+            retry(send, token, attempt, 0);
+            return;
+        }
+        if (status == 429 || status >= 500) {
+            // 429 TooManyRequests: too many messages to the same device
+            retry(send, token, attempt, getBackoff(attempt, HttpSupport.getRetryAfter(response)));
+            return;
+        }
+
+        send.mReport.mFailed.incrementAndGet();
+        if ((status == 400 && "BadDeviceToken".equals(reason))
+                || (status == 410 && "Unregistered".equals(reason))) {
+            send.mReport.mInvalid.incrementAndGet();
+            send.onInvalidToken(token, reason);
+        } else {
+            // e.g. 400 BadTopic, 403 InvalidProviderToken, 413 PayloadTooLarge
+            LOG.warning("handleResponse: APNS returned " + status + " - " + response.body());
+        }
+    }
+
+    /**
+     * Posts the token again after the delay, on a sender thread, or counts it as failed if it was
+     * tried often enough.
+     */
+    private void retry(final Send send, final String token, final int attempt,
+            final long delay) {
+        if (attempt >= mMaxRetries) {
+            send.mReport.mFailed.incrementAndGet();
+            return;
+        }
+
+        send.mReport.mRetries.incrementAndGet();
+        // keeps the send open until the retry is posted
+        send.begin();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(delay);
+                        post(send, token, attempt + 1);
+                    } catch (InterruptedException e) {
+                        send.mReport.mFailed.incrementAndGet();
+                    } finally {
+                        send.end();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // shut down
+            send.mReport.mFailed.incrementAndGet();
+            send.end();
+        }
+    }
+
+    /**
+     * @param retryAfter ms the server asked to wait, -1 if it did not
+     */
+    private long getBackoff(int attempt, long retryAfter) {
+        return Math.max(retryAfter, mRetryBaseDelay << attempt);
+    }
+
+    /**
+     * One call of send(): the payload and headers shared by its requests, its report and the
+     * requests and retries still outstanding. The result completes when the last of them ends.
+     */
+    private static class Send {
+
+        private final ApnsMessage mMessage;
+
+        private final String mPayload;
+
+        private final TokenFeedback mFeedback;
+
+        private final SendReport mReport = new SendReport();
+
+        private final CompletableFuture<SendReport> mResult = new CompletableFuture<SendReport>();
+
+        // the sending thread, plus one per outstanding request or retry
+        private final AtomicInteger mOutstanding = new AtomicInteger(1);
+
+        Send(ApnsMessage message, TokenFeedback feedback) {
+            mMessage = message;
+            mPayload = message.toJSON();
+            mFeedback = feedback;
+        }
+
+        void begin() {
+            mOutstanding.incrementAndGet();
+        }
+
+        void end() {
+            if (mOutstanding.decrementAndGet() == 0) {
+                mResult.complete(mReport);
+            }
+        }
+
+        /**
+         * Passes the token on to the feedback; a feedback that throws does not fail the send.
+         */
+        void onInvalidToken(String token, String reason) {
+            try {
+                mFeedback.onInvalidToken(token, reason);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "onInvalidToken: feedback failed", e);
+            }
+        }
+
+        HttpRequest createRequest(String endpoint, String token, String providerToken) {
+            HttpRequest.Builder request = HttpRequest.newBuilder(
+                    URI.create(endpoint + "/3/device/" + token))
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("authorization", "bearer " + providerToken)
+                    .header("apns-topic", mMessage.getTopic())
+                    .header("apns-push-type", mMessage.getPushType())
+                    .POST(HttpRequest.BodyPublishers.ofString(mPayload));
+            if (mMessage.getPriority() >= 0) {
+                request.header("apns-priority", Integer.toString(mMessage.getPriority()));
+            }
+            if (mMessage.getExpiration() >= 0) {
+                request.header("apns-expiration", Long.toString(mMessage.getExpiration()));
+            }
+            if (mMessage.getCollapseId() != null) {
+                request.header("apns-collapse-id", mMessage.getCollapseId());
+            }
+            return request.build();
+        }
+    }
+}
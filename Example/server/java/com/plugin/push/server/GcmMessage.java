@@ -0,0 +1,81 @@
+package com.plugin.push.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gcm Message - The message part of a GCM send: the data the plugin receives as extras, and the
+ * delivery options. The same message is sent to any number of registration ids.
+ */
+class GcmMessage {
+
+    private final Map<String, String> mData = new LinkedHashMap<String, String>();
+
+    private String mCollapseKey;
+
+    // s, -1 for GCM's default (4 weeks)
+    private long mTimeToLive = -1;
+
+    private String mPriority;
+
+    private boolean mDryRun = false;
+
+    /**
+     * Adds a data field, e.g. message, title, msgcnt or soundname.
+     */
+    public GcmMessage put(String key, String value) {
+        mData.put(key, value);
+        return this;
+    }
+
+    public GcmMessage setCollapseKey(String collapseKey) {
+        mCollapseKey = collapseKey;
+        return this;
+    }
+
+    public GcmMessage setTimeToLive(long seconds) {
+        mTimeToLive = seconds;
+        return this;
+    }
+
+    /**
+     * @param priority "high" or "normal"
+     */
+    public GcmMessage setPriority(String priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * @param dryRun whether GCM should only validate the request, without delivering it
+     */
+    public GcmMessage setDryRun(boolean dryRun) {
+        mDryRun = dryRun;
+        return this;
+    }
+
+    /**
+     * @return the request fields other than the registration ids, as the members of a JSON object
+     * (without the braces)
+     */
+    public String toJSONFields() {
+        StringBuilder json = new StringBuilder(64 + mData.size() * 32);
+        json.append("\"data\":");
+        Json.appendStringMap(json, mData);
+        if (mCollapseKey != null) {
+            json.append(",\"collapse_key\":");
+            Json.appendQuoted(json, mCollapseKey);
+        }
+        if (mTimeToLive >= 0) {
+            json.append(",\"time_to_live\":").append(mTimeToLive);
+        }
+        if (mPriority != null) {
+            json.append(",\"priority\":");
+            Json.appendQuoted(json, mPriority);
+        }
+        if (mDryRun) {
+            json.append(",\"dry_run\":true");
+        }
+        return json.toString();
+    }
+}
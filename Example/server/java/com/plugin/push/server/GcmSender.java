@@ -0,0 +1,374 @@
+package com.plugin.push.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gcm Sender - Sends a message to any number of registration ids through GCM's HTTP connection
+ * server, as multicast requests of up to 1000 ids each.
+ *
+ * Requests are made asynchronously over the pooled keep-alive connections of one HttpClient, with
+ * up to maxInFlight of them outstanding; the tokens are read from an iterator only as fast as
+ * requests complete, so a send to millions of tokens never holds them all. Requests that fail with
+ * a 5xx or an I/O error, and tokens GCM reports as Unavailable, are retried with exponential
+ * backoff (or after Retry-After). Invalid and canonical tokens are reported to a TokenFeedback.
+ *
+ * Thread safe; one sender is meant to be shared by everything sending with the same API key.
+ */
+class GcmSender {
+
+    private static final Logger LOG = Logger.getLogger("PushSender-Gcm");
+
+    public static final URI DEFAULT_ENDPOINT =
+            URI.create("https://android.googleapis.com/gcm/send");
+
+    // registration ids per multicast request, GCM's limit
+    public static final int MAX_MULTICAST_SIZE = 1000;
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    // ms, doubled on every retry
+    public static final long RETRY_BASE_DELAY = 1000;
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final String mApiKey;
+
+    private final URI mEndpoint;
+
+    private final int mMaxInFlight;
+
+    private final Semaphore mInFlight;
+
+    private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    private volatile long mRetryBaseDelay = RETRY_BASE_DELAY;
+
+    private final ExecutorService mExecutor;
+
+    private final HttpClient mHttpClient;
+
+    public GcmSender(String apiKey) {
+        this(apiKey, DEFAULT_ENDPOINT, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxInFlight requests outstanding at the same time, i.e. about the number of
+     *                    connections kept open to GCM
+     */
+    public GcmSender(String apiKey, URI endpoint, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        mApiKey = apiKey;
+        mEndpoint = endpoint;
+        mMaxInFlight = maxInFlight;
+        mInFlight = new Semaphore(maxInFlight);
+        mExecutor = SenderThreads.newTaskExecutor("gcm-sender");
+        // HTTP/1.1: the connection server is used with one request per pooled keep-alive connection
+        mHttpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(mExecutor)
+                .build();
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param delay ms before the first retry, doubled on every further one
+     */
+    public void setRetryBaseDelay(long delay) {
+        mRetryBaseDelay = Math.max(0, delay);
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    /**
+     * Sends the message to every token, in multicast requests.
+     *
+     * @param tokens   registration ids, read on the sender's threads as requests complete
+     * @param feedback told about invalid and canonical tokens, may be null
+     * @return completes with the report when every request completed or gave up
+     */
+    public CompletableFuture<SendReport> send(final GcmMessage message,
+            final Iterator<String> tokens, TokenFeedback feedback) {
+        final Send send = new Send(message.toJSONFields(),
+                feedback != null ? feedback : TokenFeedback.NONE);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<String> batch = new ArrayList<String>(MAX_MULTICAST_SIZE);
+                    while (tokens.hasNext()) {
+                        batch.add(tokens.next());
+                        if (batch.size() == MAX_MULTICAST_SIZE) {
+                            post(send, batch, 0);
+                            batch = new ArrayList<String>(MAX_MULTICAST_SIZE);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        post(send, batch, 0);
+                    }
+
+                    send.end();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    send.mResult.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    send.mResult.completeExceptionally(e);
+                }
+            }
+        });
+        return send.mResult;
+    }
+
+    public CompletableFuture<SendReport> send(GcmMessage message, Iterable<String> tokens,
+            TokenFeedback feedback) {
+        return send(message, tokens.iterator(), feedback);
+    }
+
+    /**
+     * Stops the sender's threads; sends that are still running fail.
+     */
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Posts one multicast request, blocking while maxInFlight requests are outstanding.
+     */
+    private void post(final Send send, final List<String> tokens, final int attempt)
+            throws InterruptedException {
+        mInFlight.acquire();
+        send.begin();
+
+        HttpRequest request = HttpRequest.newBuilder(mEndpoint)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", "key=" + mApiKey)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(send.createBody(tokens)))
+                .build();
+        send.mReport.mRequests.incrementAndGet();
+
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            response = mHttpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            mInFlight.release();
+            send.end();
+            throw e;
+        }
+
+        response.whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+            @Override
+            public void accept(HttpResponse<String> httpResponse, Throwable error) {
+                mInFlight.release();
+                try {
+                    if (error != null) {
+                        LOG.log(Level.FINE, "post: request failed", error);
+                        retry(send, tokens, attempt, -1);
+                    } else {
+                        handleResponse(send, tokens, attempt, httpResponse);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. a malformed response
+                    LOG.log(Level.WARNING, "post: could not handle the response", e);
+                    send.mReport.mFailed.addAndGet(tokens.size());
+                } finally {
+                    send.end();
+                }
+            }
+        });
+    }
+
+    private void handleResponse(Send send, List<String> tokens, int attempt,
+            HttpResponse<String> response) {
+        int status = response.statusCode();
+        if (status >= 500) {
+            retry(send, tokens, attempt, HttpSupport.getRetryAfter(response));
+            return;
+        }
+        if (status != 200) {
+            // 400: malformed request, 401: bad API key; retrying will not help
+            LOG.warning("handleResponse: GCM returned " + status + " - " + response.body());
+            send.mReport.mFailed.addAndGet(tokens.size());
+            return;
+        }
+
+        Object results = Json.parseObject(response.body()).get("results");
+        if (!(results instanceof List) || ((List<?>) results).size() != tokens.size()) {
+            LOG.warning("handleResponse: unexpected response - " + response.body());
+            send.mReport.mFailed.addAndGet(tokens.size());
+            return;
+        }
+
+        List<String> unavailable = null;
+        List<?> resultList = (List<?>) results;
+        for (int i = 0; i < resultList.size(); i++) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = resultList.get(i) instanceof Map
+                    ? (Map<String, Object>) resultList.get(i) : null;
+            String token = tokens.get(i);
+            if (result == null) {
+                send.mReport.mFailed.incrementAndGet();
+                continue;
+            }
+
+            String error = Json.getString(result, "error");
+            if (error == null) {
+                send.mReport.mSucceeded.incrementAndGet();
+                String canonicalToken = Json.getString(result, "registration_id");
+                if (canonicalToken != null) {
+                    send.mReport.mCanonical.incrementAndGet();
+                    send.onCanonicalToken(token, canonicalToken);
+                }
+            } else if ("Unavailable".equals(error) || "InternalServerError".equals(error)) {
+                if (unavailable == null) {
+                    unavailable = new ArrayList<String>();
+                }
+                unavailable.add(token);
+            } else {
+                send.mReport.mFailed.incrementAndGet();
+                if ("NotRegistered".equals(error) || "InvalidRegistration".equals(error)
+                        || "MismatchSenderId".equals(error)) {
+                    send.mReport.mInvalid.incrementAndGet();
+                    send.onInvalidToken(token, error);
+                }
+            }
+        }
+
+        if (unavailable != null) {
+            retry(send, unavailable, attempt, HttpSupport.getRetryAfter(response));
+        }
+    }
+
+    /**
+     * Posts the tokens again after a backoff, on a sender thread, or counts them as failed if they
+     * were tried often enough.
+     *
+     * @param retryAfter ms the server asked to wait, -1 if it did not
+     */
+    private void retry(final Send send, final List<String> tokens, final int attempt,
+            long retryAfter) {
+        if (attempt >= mMaxRetries) {
+            send.mReport.mFailed.addAndGet(tokens.size());
+            return;
+        }
+
+        final long delay = Math.max(retryAfter, mRetryBaseDelay << attempt);
+        send.mReport.mRetries.incrementAndGet();
+        // keeps the send open until the retry is posted
+        send.begin();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(delay);
+                        post(send, tokens, attempt + 1);
+                    } catch (InterruptedException e) {
+                        send.mReport.mFailed.addAndGet(tokens.size());
+                    } finally {
+                        send.end();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // shut down
+            send.mReport.mFailed.addAndGet(tokens.size());
+            send.end();
+        }
+    }
+
+    /**
+     * One call of send(): the request fields shared by its requests, its report and the
+     * requests and retries still outstanding. The result completes when the last of them ends.
+     */
+    private static class Send {
+
+        private final String mFields;
+
+        private final TokenFeedback mFeedback;
+
+        private final SendReport mReport = new SendReport();
+
+        private final CompletableFuture<SendReport> mResult = new CompletableFuture<SendReport>();
+
+        // the sending thread, plus one per outstanding request or retry
+        private final AtomicInteger mOutstanding = new AtomicInteger(1);
+
+        Send(String fields, TokenFeedback feedback) {
+            mFields = fields;
+            mFeedback = feedback;
+        }
+
+        void begin() {
+            mOutstanding.incrementAndGet();
+        }
+
+        void end() {
+            if (mOutstanding.decrementAndGet() == 0) {
+                mResult.complete(mReport);
+            }
+        }
+
+        /**
+         * Passes the token on to the feedback; a feedback that throws does not fail the rest of
+         * the response.
+         */
+        void onInvalidToken(String token, String reason) {
+            try {
+                mFeedback.onInvalidToken(token, reason);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "onInvalidToken: feedback failed", e);
+            }
+        }
+
+        void onCanonicalToken(String token, String canonicalToken) {
+            try {
+                mFeedback.onCanonicalToken(token, canonicalToken);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "onCanonicalToken: feedback failed", e);
+            }
+        }
+
+        String createBody(List<String> tokens) {
+            int length = mFields.length() + 32;
+            for (String token : tokens) {
+                length += token.length() + 3;
+            }
+
+            StringBuilder json = new StringBuilder(length);
+            json.append("{\"registration_ids\":[");
+            for (int i = 0; i < tokens.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                Json.appendQuoted(json, tokens.get(i));
+            }
+            return json.append("],").append(mFields).append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.plugin.push.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hpack - HTTP/2 header compression (RFC 7541) for the stub HTTP/2 server: a complete decoder for
+ * the request headers the HttpClient sends (static and dynamic table, Huffman strings), and a
+ * plain encoder for the responses, which never index or Huffman-code.
+ *
+ * One decoder per connection, used by its reading thread only.
+ */
+final class Hpack {
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"},
+            {":status", "200"}, {":status", "204"}, {":status", "206"}, {":status", "304"},
+            {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""},
+            {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""},
+            {"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""},
+            {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""},
+            {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+            {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+            {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+            {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+            {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    // the Huffman code length of every byte, as 'A' + length - 5; the code is canonical, so the
+    // lengths are all it takes to rebuild it (EOS, symbol 256, has 30 bits)
+    private static final String HUFFMAN_LENGTHS = "ISXXXXXXXTZXXZXXXXXXXXZXXXXXXXXXBFFHIBDGFFDGDBBBAAAB"
+            + "BBBBBBCDKBHFIBCCCCCCCCCCCCCCCCCCCCCCDCDIOIJBKABABABBBACCBBBABCBAABCCCCCKGJIXPRPPRRRSRSS"
+            + "SSSTSTTRSTSSSSQRSRSSTRQPRRSSQSRRTQRSSQQRQSRSSPRRRSRRSVVPORSRUVVVWWVTUOQVWWVWTQQVVXWWWP"
+            + "TPQRQQSRRUUTTVSVWVVWWWWWXWWWWWV";
+
+    private static final int MAX_CODE_LENGTH = 30;
+
+    // per code length: the first code, the number of codes and the index of the first symbol
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+
+    private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+
+    // the symbols ordered by code
+    private static final int[] SYMBOLS = new int[257];
+
+    private static final int ENTRY_OVERHEAD = 32;
+
+    static {
+        int[] lengths = new int[257];
+        for (int i = 0; i < 256; i++) {
+            lengths[i] = HUFFMAN_LENGTHS.charAt(i) - 'A' + 5;
+        }
+        lengths[256] = MAX_CODE_LENGTH;
+
+        int index = 0;
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = index;
+            for (int symbol = 0; symbol < lengths.length; symbol++) {
+                if (lengths[symbol] == length) {
+                    SYMBOLS[index++] = symbol;
+                }
+            }
+            CODE_COUNT[length] = index - FIRST_SYMBOL[length];
+            code = (code + CODE_COUNT[length]) << 1;
+        }
+    }
+
+    // newest first
+    private final List<String[]> mDynamicTable = new ArrayList<String[]>();
+
+    private int mDynamicTableSize = 0;
+
+    private int mMaxDynamicTableSize;
+
+    private byte[] mBlock;
+
+    private int mPosition;
+
+    /**
+     * @param maxDynamicTableSize the SETTINGS_HEADER_TABLE_SIZE the server announced
+     */
+    Hpack(int maxDynamicTableSize) {
+        mMaxDynamicTableSize = maxDynamicTableSize;
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @return the headers in order; pseudo-headers keep their colon
+     * @throws IllegalArgumentException if the block is malformed (a COMPRESSION_ERROR)
+     */
+    public Map<String, String> decode(byte[] block) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        mBlock = block;
+        mPosition = 0;
+        while (mPosition < block.length) {
+            int b = block[mPosition] & 0xff;
+            if ((b & 0x80) != 0) {
+                String[] field = getField(readInteger(7));
+                headers.put(field[0], field[1]);
+            } else if ((b & 0x40) != 0) {
+                String[] field = readLiteral(6);
+                headers.put(field[0], field[1]);
+                addField(field);
+            } else if ((b & 0x20) != 0) {
+                int size = readInteger(5);
+                mMaxDynamicTableSize = size;
+                evict(0);
+            } else {
+                // without indexing, or never indexed
+                String[] field = readLiteral(4);
+                headers.put(field[0], field[1]);
+            }
+        }
+        mBlock = null;
+        return headers;
+    }
+
+    /**
+     * Encodes response headers as literals without indexing.
+     */
+    public static byte[] encode(int status, Map<String, String> headers) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(64);
+        String statusValue = Integer.toString(status);
+        int statusIndex = 0;
+        for (int i = 7; i < 14; i++) {
+            if (STATIC_TABLE[i][1].equals(statusValue)) {
+                statusIndex = i + 1;
+            }
+        }
+        if (statusIndex > 0) {
+            writeInteger(block, 0x80, 7, statusIndex);
+        } else {
+            // name :status from the static table
+            writeInteger(block, 0x00, 4, 8);
+            writeString(block, statusValue);
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            block.write(0x00);
+            writeString(block, header.getKey());
+            writeString(block, header.getValue());
+        }
+        return block.toByteArray();
+    }
+
+    private String[] getField(int index) {
+        if (index >= 1 && index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1];
+        }
+        int dynamicIndex = index - STATIC_TABLE.length - 1;
+        if (dynamicIndex < 0 || dynamicIndex >= mDynamicTable.size()) {
+            throw new IllegalArgumentException("bad header index " + index);
+        }
+        return mDynamicTable.get(dynamicIndex);
+    }
+
+    private String[] readLiteral(int prefix) {
+        int nameIndex = readInteger(prefix);
+        String name = nameIndex == 0 ? readString() : getField(nameIndex)[0];
+        return new String[]{name, readString()};
+    }
+
+    private void addField(String[] field) {
+        int size = field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+        evict(size);
+        if (size <= mMaxDynamicTableSize) {
+            mDynamicTable.add(0, field);
+            mDynamicTableSize += size;
+        }
+    }
+
+    /**
+     * Evicts the oldest entries until there is room for an entry of the size.
+     */
+    private void evict(int size) {
+        while (!mDynamicTable.isEmpty() && mDynamicTableSize + size > mMaxDynamicTableSize) {
+            String[] oldest = mDynamicTable.remove(mDynamicTable.size() - 1);
+            mDynamicTableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private int readInteger(int prefix) {
+        int max = (1 << prefix) - 1;
+        int value = next() & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            b = next();
+            value += (b & 0x7f) << shift;
+            shift += 7;
+            if (shift > 28) {
+                throw new IllegalArgumentException("integer too large");
+            }
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private String readString() {
+        boolean huffman = (mBlock[mPosition] & 0x80) != 0;
+        int length = readInteger(7);
+        if (mPosition + length > mBlock.length) {
+            throw new IllegalArgumentException("string past the end of the block");
+        }
+        String value = huffman ? decodeHuffman(mBlock, mPosition, length)
+                : new String(mBlock, mPosition, length, StandardCharsets.ISO_8859_1);
+        mPosition += length;
+        return value;
+    }
+
+    private static String decodeHuffman(byte[] data, int offset, int length) {
+        StringBuilder value = new StringBuilder(length * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((data[i] >> bit) & 1);
+                codeLength++;
+                int index = code - FIRST_CODE[codeLength];
+                if (index >= 0 && index < CODE_COUNT[codeLength]) {
+                    int symbol = SYMBOLS[FIRST_SYMBOL[codeLength] + index];
+                    if (symbol == 256) {
+                        throw new IllegalArgumentException("EOS in a Huffman string");
+                    }
+                    value.append((char) symbol);
+                    code = 0;
+                    codeLength = 0;
+                } else if (codeLength == MAX_CODE_LENGTH) {
+                    throw new IllegalArgumentException("bad Huffman code");
+                }
+            }
+        }
+        // what is left is padding, the most significant bits of EOS: all ones, less than a byte
+        if (codeLength > 7 || code != (1 << codeLength) - 1) {
+            throw new IllegalArgumentException("bad Huffman padding");
+        }
+        return value.toString();
+    }
+
+    private int next() {
+        if (mPosition >= mBlock.length) {
+            throw new IllegalArgumentException("truncated header block");
+        }
+        return mBlock[mPosition++] & 0xff;
+    }
+
+    private static void writeInteger(ByteArrayOutputStream block, int flags, int prefix,
+            int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            block.write(flags | value);
+            return;
+        }
+        block.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            block.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream block, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInteger(block, 0x00, 7, bytes.length);
+        block.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,306 @@
+package com.plugin.push.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Json - The little JSON the senders need, without a dependency: parsing of the push services'
+ * responses into Map / List / String / Long / Double / Boolean / null (integers stay exact, GCM
+ * message ids do not fit a double), and quoting of strings for the requests, which are written
+ * with a StringBuilder.
+ */
+final class Json {
+
+    private final String mText;
+
+    private int mPosition = 0;
+
+    private Json(String text) {
+        mText = text;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    public static Object parse(String text) {
+        Json json = new Json(text);
+        json.skipWhitespace();
+        Object value = json.readValue();
+        json.skipWhitespace();
+        if (json.mPosition != text.length()) {
+            throw json.error("trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * @return the JSON object, or an empty map if the text is not a JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String text) {
+        try {
+            Object value = parse(text);
+            if (value instanceof Map) {
+                return (Map<String, Object>) value;
+            }
+        } catch (IllegalArgumentException e) {
+            // not JSON, e.g. an HTML error page
+        }
+        return new LinkedHashMap<String, Object>();
+    }
+
+    /**
+     * Appends the value as a quoted JSON string.
+     */
+    public static StringBuilder appendQuoted(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Appends the map as a JSON object of strings (as GCM / ADM data payloads are).
+     */
+    public static StringBuilder appendStringMap(StringBuilder json, Map<String, String> map) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendQuoted(json, entry.getKey()).append(':');
+            appendQuoted(json, entry.getValue());
+        }
+        return json.append('}');
+    }
+
+    public static String getString(Map<String, Object> object, String key) {
+        Object value = object.get(key);
+        return value != null ? value.toString() : null;
+    }
+
+    public static long getLong(Map<String, Object> object, String key, long defaultValue) {
+        Object value = object.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    private Object readValue() {
+        if (mPosition >= mText.length()) {
+            throw error("unexpected end");
+        }
+        char c = mText.charAt(mPosition);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<String, Object>();
+        mPosition++;
+        skipWhitespace();
+        if (peek() == '}') {
+            mPosition++;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("expected a key");
+            }
+            String key = readString();
+            skipWhitespace();
+            if (peek() != ':') {
+                throw error("expected ':'");
+            }
+            mPosition++;
+            skipWhitespace();
+            object.put(key, readValue());
+            skipWhitespace();
+            char c = peek();
+            mPosition++;
+            if (c == '}') {
+                return object;
+            }
+            if (c != ',') {
+                throw error("expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<Object>();
+        mPosition++;
+        skipWhitespace();
+        if (peek() == ']') {
+            mPosition++;
+            return array;
+        }
+        while (true) {
+            skipWhitespace();
+            array.add(readValue());
+            skipWhitespace();
+            char c = peek();
+            mPosition++;
+            if (c == ']') {
+                return array;
+            }
+            if (c != ',') {
+                throw error("expected ',' or ']'");
+            }
+        }
+    }
+
+    private String readString() {
+        StringBuilder value = new StringBuilder();
+        mPosition++;
+        while (true) {
+            if (mPosition >= mText.length()) {
+                throw error("unterminated string");
+            }
+            char c = mText.charAt(mPosition++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (mPosition >= mText.length()) {
+                throw error("unterminated escape");
+            }
+            char escaped = mText.charAt(mPosition++);
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (mPosition + 4 > mText.length()) {
+                        throw error("bad unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(
+                                mText.substring(mPosition, mPosition + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("bad unicode escape");
+                    }
+                    mPosition += 4;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+    }
+
+    private Number readNumber() {
+        int start = mPosition;
+        boolean integer = true;
+        while (mPosition < mText.length()
+                && "+-0123456789.eE".indexOf(mText.charAt(mPosition)) >= 0) {
+            char c = mText.charAt(mPosition++);
+            integer &= c != '.' && c != 'e' && c != 'E';
+        }
+        String number = mText.substring(start, mPosition);
+        try {
+            if (integer) {
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    // too large, fall through
+                }
+            }
+            return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw error("bad value");
+        }
+    }
+
+    private void expect(String word) {
+        if (!mText.startsWith(word, mPosition)) {
+            throw error("bad value");
+        }
+        mPosition += word.length();
+    }
+
+    private char peek() {
+        if (mPosition >= mText.length()) {
+            throw error("unexpected end");
+        }
+        return mText.charAt(mPosition);
+    }
+
+    private void skipWhitespace() {
+        while (mPosition < mText.length() && Character.isWhitespace(mText.charAt(mPosition))) {
+            mPosition++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at " + mPosition);
+    }
+}
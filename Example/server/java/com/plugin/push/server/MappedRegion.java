@@ -0,0 +1,160 @@
+package com.plugin.push.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mapped Region - A file of any size, memory-mapped in fixed size chunks and addressed by long
+ * offsets, as a single MappedByteBuffer ends at 2 GB.
+ *
+ * Chunks are mapped as they are first touched and the file grows with them. A value never spans
+ * two chunks: the users lay out their data so it does not (fixed size slots that divide the chunk
+ * size, or records that skip to the next chunk), which keeps every access a single buffer access.
+ *
+ * Not thread safe; the owner locks.
+ */
+final class MappedRegion {
+
+    private final RandomAccessFile mFile;
+
+    private final FileChannel mChannel;
+
+    private final int mChunkShift;
+
+    private final long mChunkMask;
+
+    private final List<MappedByteBuffer> mChunks = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * @param chunkShift log2 of the chunk size, e.g. 26 for 64 MB
+     */
+    MappedRegion(File file, int chunkShift) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mChunkShift = chunkShift;
+        mChunkMask = (1L << chunkShift) - 1;
+    }
+
+    public int getChunkSize() {
+        return 1 << mChunkShift;
+    }
+
+    /**
+     * @return the offset within its chunk
+     */
+    public int getChunkOffset(long offset) {
+        return (int) (offset & mChunkMask);
+    }
+
+    /**
+     * @return the size of the file, a multiple of the chunk size once anything was written
+     */
+    public long getFileSize() throws IOException {
+        return mChannel.size();
+    }
+
+    public byte get(long offset) {
+        return chunk(offset).get(getChunkOffset(offset));
+    }
+
+    public void put(long offset, byte value) {
+        chunk(offset).put(getChunkOffset(offset), value);
+    }
+
+    public short getShort(long offset) {
+        return chunk(offset).getShort(getChunkOffset(offset));
+    }
+
+    public void putShort(long offset, short value) {
+        chunk(offset).putShort(getChunkOffset(offset), value);
+    }
+
+    public int getInt(long offset) {
+        return chunk(offset).getInt(getChunkOffset(offset));
+    }
+
+    public void putInt(long offset, int value) {
+        chunk(offset).putInt(getChunkOffset(offset), value);
+    }
+
+    public long getLong(long offset) {
+        return chunk(offset).getLong(getChunkOffset(offset));
+    }
+
+    public void putLong(long offset, long value) {
+        chunk(offset).putLong(getChunkOffset(offset), value);
+    }
+
+    /**
+     * Reads length bytes; they must lie within one chunk.
+     */
+    public void get(long offset, byte[] bytes, int length) {
+        MappedByteBuffer chunk = chunk(offset);
+        int position = getChunkOffset(offset);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = chunk.get(position + i);
+        }
+    }
+
+    /**
+     * Writes the bytes; they must fit within one chunk.
+     */
+    public void put(long offset, byte[] bytes, int length) {
+        MappedByteBuffer chunk = chunk(offset);
+        int position = getChunkOffset(offset);
+        for (int i = 0; i < length; i++) {
+            chunk.put(position + i, bytes[i]);
+        }
+    }
+
+    /**
+     * @return whether the bytes at the offset equal the given ones; they must lie within one chunk
+     */
+    public boolean equals(long offset, byte[] bytes) {
+        MappedByteBuffer chunk = chunk(offset);
+        int position = getChunkOffset(offset);
+        for (int i = 0; i < bytes.length; i++) {
+            if (chunk.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the changes of every mapped chunk to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer chunk : mChunks) {
+            chunk.force();
+        }
+    }
+
+    public void close() throws IOException {
+        force();
+        mChunks.clear();
+        mFile.close();
+    }
+
+    private MappedByteBuffer chunk(long offset) {
+        int index = (int) (offset >>> mChunkShift);
+        if (index < mChunks.size()) {
+            return mChunks.get(index);
+        }
+        try {
+            while (mChunks.size() <= index) {
+                mChunks.add(mChannel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) mChunks.size() << mChunkShift, 1L << mChunkShift));
+            }
+        } catch (IOException e) {
+            // e.g. the disk is full
+            throw new IllegalStateException("Could not map " + offset, e);
+        }
+        return mChunks.get(index);
+    }
+}
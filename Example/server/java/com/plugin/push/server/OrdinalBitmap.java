@@ -0,0 +1,547 @@
+package com.plugin.push.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Ordinal Bitmap - A compressed set of TokenRegistry ordinals, for segments of millions of
+ * devices that and / or / andNot in milliseconds.
+ *
+ * Like a roaring bitmap, the ordinals are split by their high 16 bits into containers of up to
+ * 65536 values each. A sparse container is a sorted char array (2 bytes per ordinal), a dense one
+ * a 8 KB bit set, whichever is smaller: a segment of 10 million devices takes about 1.2 MB
+ * whether it is a tenth or all of the registry. The operations work container by container and
+ * skip the keys missing on one side.
+ *
+ * Not thread safe; SegmentIndex hands out copies.
+ */
+final class OrdinalBitmap {
+
+    // a container with more values is a bit set
+    private static final int MAX_ARRAY_SIZE = 4096;
+
+    private static final int BITS_WORDS = 1024;
+
+    // sorted high 16 bits, with their containers
+    private char[] mKeys;
+
+    private Container[] mContainers;
+
+    private int mSize;
+
+    public OrdinalBitmap() {
+        this(new char[4], new Container[4], 0);
+    }
+
+    private OrdinalBitmap(char[] keys, Container[] containers, int size) {
+        mKeys = keys;
+        mContainers = containers;
+        mSize = size;
+    }
+
+    /**
+     * @return a bitmap of the ordinals from - to (exclusive), e.g. all of a registry for NOT
+     */
+    public static OrdinalBitmap range(int from, int to) {
+        OrdinalBitmap bitmap = new OrdinalBitmap();
+        int ordinal = from;
+        while (ordinal < to) {
+            int end = Math.min(to, (ordinal | 0xffff) + 1);
+            Container container = new Container();
+            container.mBits = new long[BITS_WORDS];
+            for (int low = ordinal & 0xffff; low < (ordinal & 0xffff) + end - ordinal; low++) {
+                container.mBits[low >>> 6] |= 1L << low;
+            }
+            container.mCardinality = end - ordinal;
+            bitmap.append((char) (ordinal >>> 16), container.compact());
+            ordinal = end;
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return whether the ordinal was not in the bitmap yet
+     */
+    public boolean add(int ordinal) {
+        checkOrdinal(ordinal);
+        char key = (char) (ordinal >>> 16);
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index < 0) {
+            index = -index - 1;
+            insert(index, key, new Container());
+        }
+        return mContainers[index].add((char) ordinal);
+    }
+
+    /**
+     * @return whether the ordinal was in the bitmap
+     */
+    public boolean remove(int ordinal) {
+        checkOrdinal(ordinal);
+        int index = Arrays.binarySearch(mKeys, 0, mSize, (char) (ordinal >>> 16));
+        if (index < 0 || !mContainers[index].remove((char) ordinal)) {
+            return false;
+        }
+        if (mContainers[index].mCardinality == 0) {
+            System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+            System.arraycopy(mContainers, index + 1, mContainers, index, mSize - index - 1);
+            mContainers[--mSize] = null;
+        }
+        return true;
+    }
+
+    public boolean contains(int ordinal) {
+        if (ordinal < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(mKeys, 0, mSize, (char) (ordinal >>> 16));
+        return index >= 0 && mContainers[index].contains((char) ordinal);
+    }
+
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < mSize; i++) {
+            cardinality += mContainers[i].mCardinality;
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return the bytes the containers take, roughly
+     */
+    public long getSizeInBytes() {
+        long bytes = mKeys.length * 2L;
+        for (int i = 0; i < mSize; i++) {
+            bytes += mContainers[i].mBits != null ? BITS_WORDS * 8
+                    : mContainers[i].mValues.length * 2;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return a new bitmap of the ordinals in both
+     */
+    public OrdinalBitmap and(OrdinalBitmap other) {
+        OrdinalBitmap result = new OrdinalBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < mSize && j < other.mSize) {
+            if (mKeys[i] < other.mKeys[j]) {
+                i++;
+            } else if (mKeys[i] > other.mKeys[j]) {
+                j++;
+            } else {
+                Container container = mContainers[i].and(other.mContainers[j]);
+                if (container.mCardinality > 0) {
+                    result.append(mKeys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap of the ordinals in either
+     */
+    public OrdinalBitmap or(OrdinalBitmap other) {
+        OrdinalBitmap result = new OrdinalBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < mSize || j < other.mSize) {
+            if (j == other.mSize || (i < mSize && mKeys[i] < other.mKeys[j])) {
+                result.append(mKeys[i], mContainers[i].copy());
+                i++;
+            } else if (i == mSize || mKeys[i] > other.mKeys[j]) {
+                result.append(other.mKeys[j], other.mContainers[j].copy());
+                j++;
+            } else {
+                result.append(mKeys[i], mContainers[i].or(other.mContainers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap of the ordinals in this one but not in the other
+     */
+    public OrdinalBitmap andNot(OrdinalBitmap other) {
+        OrdinalBitmap result = new OrdinalBitmap();
+        int j = 0;
+        for (int i = 0; i < mSize; i++) {
+            while (j < other.mSize && other.mKeys[j] < mKeys[i]) {
+                j++;
+            }
+            Container container = j < other.mSize && other.mKeys[j] == mKeys[i]
+                    ? mContainers[i].andNot(other.mContainers[j]) : mContainers[i].copy();
+            if (container.mCardinality > 0) {
+                result.append(mKeys[i], container);
+            }
+        }
+        return result;
+    }
+
+    public OrdinalBitmap copy() {
+        Container[] containers = new Container[Math.max(mSize, 4)];
+        for (int i = 0; i < mSize; i++) {
+            containers[i] = mContainers[i].copy();
+        }
+        return new OrdinalBitmap(Arrays.copyOf(mKeys, containers.length), containers, mSize);
+    }
+
+    /**
+     * @return the ordinals in ascending order, without boxing them
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int mContainer = 0;
+
+            // the next value (array) or bit (bit set) to look at in the container
+            private int mPosition = 0;
+
+            private int mNext = advance();
+
+            @Override
+            public boolean hasNext() {
+                return mNext >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (mNext < 0) {
+                    throw new NoSuchElementException();
+                }
+                int ordinal = mNext;
+                mNext = advance();
+                return ordinal;
+            }
+
+            private int advance() {
+                for (; mContainer < mSize; mContainer++, mPosition = 0) {
+                    Container container = mContainers[mContainer];
+                    int low = container.next(mPosition);
+                    if (low >= 0) {
+                        mPosition = container.mBits != null ? low + 1 : mPosition + 1;
+                        return mKeys[mContainer] << 16 | low;
+                    }
+                }
+                return -1;
+            }
+        };
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            Container container = mContainers[i];
+            out.writeChar(mKeys[i]);
+            out.writeInt(container.mCardinality);
+            out.writeBoolean(container.mBits != null);
+            if (container.mBits != null) {
+                for (long word : container.mBits) {
+                    out.writeLong(word);
+                }
+            } else {
+                for (int k = 0; k < container.mCardinality; k++) {
+                    out.writeChar(container.mValues[k]);
+                }
+            }
+        }
+    }
+
+    static OrdinalBitmap readFrom(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > 0x10000) {
+            throw new IOException("Bad container count " + size);
+        }
+        OrdinalBitmap bitmap = new OrdinalBitmap(new char[Math.max(size, 4)],
+                new Container[Math.max(size, 4)], 0);
+        for (int i = 0; i < size; i++) {
+            char key = in.readChar();
+            Container container = new Container();
+            container.mCardinality = in.readInt();
+            if (container.mCardinality <= 0 || container.mCardinality > 0x10000
+                    || (i > 0 && key <= bitmap.mKeys[i - 1])) {
+                throw new IOException("Bad container " + (int) key);
+            }
+            if (in.readBoolean()) {
+                container.mBits = new long[BITS_WORDS];
+                for (int w = 0; w < BITS_WORDS; w++) {
+                    container.mBits[w] = in.readLong();
+                }
+            } else if (container.mCardinality <= MAX_ARRAY_SIZE) {
+                container.mValues = new char[container.mCardinality];
+                for (int k = 0; k < container.mCardinality; k++) {
+                    container.mValues[k] = in.readChar();
+                }
+            } else {
+                throw new IOException("Bad container " + (int) key);
+            }
+            bitmap.append(key, container);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public String toString() {
+        return "OrdinalBitmap -> cardinality: " + getCardinality() + " containers: " + mSize
+                + " bytes: " + getSizeInBytes();
+    }
+
+    private void append(char key, Container container) {
+        insert(mSize, key, container);
+    }
+
+    private void insert(int index, char key, Container container) {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mContainers = Arrays.copyOf(mContainers, mSize * 2);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mContainers, index, mContainers, index + 1, mSize - index);
+        mKeys[index] = key;
+        mContainers[index] = container;
+        mSize++;
+    }
+
+    private static void checkOrdinal(int ordinal) {
+        if (ordinal < 0) {
+            throw new IllegalArgumentException("Negative ordinal " + ordinal);
+        }
+    }
+
+    /**
+     * The low 16 bits of the ordinals with the same high bits: a sorted array (mBits null) of up
+     * to MAX_ARRAY_SIZE values, a bit set above.
+     */
+    private static final class Container {
+
+        private char[] mValues = new char[4];
+
+        private long[] mBits;
+
+        private int mCardinality;
+
+        boolean add(char low) {
+            if (mBits != null) {
+                long word = mBits[low >>> 6];
+                mBits[low >>> 6] = word | 1L << low;
+                if (word == mBits[low >>> 6]) {
+                    return false;
+                }
+                mCardinality++;
+                return true;
+            }
+            int index = Arrays.binarySearch(mValues, 0, mCardinality, low);
+            if (index >= 0) {
+                return false;
+            }
+            if (mCardinality == MAX_ARRAY_SIZE) {
+                toBits();
+                return add(low);
+            }
+            index = -index - 1;
+            if (mCardinality == mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.min(mCardinality * 2, MAX_ARRAY_SIZE));
+            }
+            System.arraycopy(mValues, index, mValues, index + 1, mCardinality - index);
+            mValues[index] = low;
+            mCardinality++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (mBits != null) {
+                long word = mBits[low >>> 6];
+                mBits[low >>> 6] = word & ~(1L << low);
+                if (word == mBits[low >>> 6]) {
+                    return false;
+                }
+                // below half the threshold, so add / remove around it does not convert each time
+                if (--mCardinality < MAX_ARRAY_SIZE / 2) {
+                    toValues();
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(mValues, 0, mCardinality, low);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(mValues, index + 1, mValues, index, mCardinality - index - 1);
+            mCardinality--;
+            return true;
+        }
+
+        boolean contains(char low) {
+            if (mBits != null) {
+                return (mBits[low >>> 6] & 1L << low) != 0;
+            }
+            return Arrays.binarySearch(mValues, 0, mCardinality, low) >= 0;
+        }
+
+        /**
+         * @param position an index into the values, or the first bit to look at
+         * @return the value there or the next set bit, -1 if there is none
+         */
+        int next(int position) {
+            if (mBits == null) {
+                return position < mCardinality ? mValues[position] : -1;
+            }
+            int w = position >>> 6;
+            if (w >= BITS_WORDS) {
+                return -1;
+            }
+            long word = mBits[w] & -1L << position;
+            while (word == 0) {
+                if (++w == BITS_WORDS) {
+                    return -1;
+                }
+                word = mBits[w];
+            }
+            return w << 6 | Long.numberOfTrailingZeros(word);
+        }
+
+        Container and(Container other) {
+            Container result = new Container();
+            if (mBits != null && other.mBits != null) {
+                result.mBits = new long[BITS_WORDS];
+                for (int w = 0; w < BITS_WORDS; w++) {
+                    result.mBits[w] = mBits[w] & other.mBits[w];
+                    result.mCardinality += Long.bitCount(result.mBits[w]);
+                }
+                return result.compact();
+            }
+            // at most the array's values, so it stays an array
+            Container array = mBits == null ? this : other;
+            Container probe = array == this ? other : this;
+            result.mValues = new char[Math.max(array.mCardinality, 1)];
+            for (int k = 0; k < array.mCardinality; k++) {
+                if (probe.contains(array.mValues[k])) {
+                    result.mValues[result.mCardinality++] = array.mValues[k];
+                }
+            }
+            return result;
+        }
+
+        Container or(Container other) {
+            Container result = new Container();
+            if (mBits == null && other.mBits == null
+                    && mCardinality + other.mCardinality <= MAX_ARRAY_SIZE) {
+                result.mValues = new char[Math.max(mCardinality + other.mCardinality, 1)];
+                int i = 0;
+                int j = 0;
+                while (i < mCardinality || j < other.mCardinality) {
+                    char value;
+                    if (j == other.mCardinality
+                            || (i < mCardinality && mValues[i] < other.mValues[j])) {
+                        value = mValues[i++];
+                    } else if (i == mCardinality || mValues[i] > other.mValues[j]) {
+                        value = other.mValues[j++];
+                    } else {
+                        value = mValues[i++];
+                        j++;
+                    }
+                    result.mValues[result.mCardinality++] = value;
+                }
+                return result;
+            }
+            result.mBits = new long[BITS_WORDS];
+            result.orInto(this);
+            result.orInto(other);
+            for (long word : result.mBits) {
+                result.mCardinality += Long.bitCount(word);
+            }
+            return result.compact();
+        }
+
+        Container andNot(Container other) {
+            Container result = new Container();
+            if (mBits == null) {
+                result.mValues = new char[Math.max(mCardinality, 1)];
+                for (int k = 0; k < mCardinality; k++) {
+                    if (!other.contains(mValues[k])) {
+                        result.mValues[result.mCardinality++] = mValues[k];
+                    }
+                }
+                return result;
+            }
+            result.mBits = mBits.clone();
+            if (other.mBits != null) {
+                for (int w = 0; w < BITS_WORDS; w++) {
+                    result.mBits[w] &= ~other.mBits[w];
+                }
+            } else {
+                for (int k = 0; k < other.mCardinality; k++) {
+                    result.mBits[other.mValues[k] >>> 6] &= ~(1L << other.mValues[k]);
+                }
+            }
+            for (long word : result.mBits) {
+                result.mCardinality += Long.bitCount(word);
+            }
+            return result.compact();
+        }
+
+        Container copy() {
+            Container copy = new Container();
+            copy.mCardinality = mCardinality;
+            if (mBits != null) {
+                copy.mBits = mBits.clone();
+            } else {
+                copy.mValues = Arrays.copyOf(mValues, Math.max(mCardinality, 1));
+            }
+            return copy;
+        }
+
+        /**
+         * @return this, as an array if the values fit in one
+         */
+        Container compact() {
+            if (mBits != null && mCardinality <= MAX_ARRAY_SIZE) {
+                toValues();
+            }
+            return this;
+        }
+
+        private void orInto(Container source) {
+            if (source.mBits != null) {
+                for (int w = 0; w < BITS_WORDS; w++) {
+                    mBits[w] |= source.mBits[w];
+                }
+            } else {
+                for (int k = 0; k < source.mCardinality; k++) {
+                    mBits[source.mValues[k] >>> 6] |= 1L << source.mValues[k];
+                }
+            }
+        }
+
+        private void toBits() {
+            mBits = new long[BITS_WORDS];
+            for (int k = 0; k < mCardinality; k++) {
+                mBits[mValues[k] >>> 6] |= 1L << mValues[k];
+            }
+            mValues = null;
+        }
+
+        private void toValues() {
+            mValues = new char[Math.max(mCardinality, 1)];
+            int k = 0;
+            for (int w = 0; w < BITS_WORDS; w++) {
+                for (long word = mBits[w]; word != 0; word &= word - 1) {
+                    mValues[k++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                }
+            }
+            mBits = null;
+        }
+    }
+}
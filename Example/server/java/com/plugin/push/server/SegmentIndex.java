@@ -0,0 +1,161 @@
+package com.plugin.push.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Segment Index - Named sets of TokenRegistry ordinals (topics, tags, platforms, app versions),
+ * to target a campaign by combining them instead of listing its tokens.
+ *
+ * Segment names are free form; prefixes like "topic:news", "platform:android" or "version:2.1"
+ * keep them apart. A campaign resolves with bitmap algebra, e.g. topic news on Android but not
+ * muted:
+ * <pre>
+ * OrdinalBitmap campaign = index.all("topic:news", "platform:android").andNot(index.get("muted"));
+ * sender.send(message, registry.getTokens(campaign, TokenRegistry.PLATFORM_GCM), registry);
+ * </pre>
+ * and the registry reads the tokens as the sender batches them, so there is never a list of all
+ * of them. Invalid tokens are skipped there, so they need not be removed from the segments.
+ *
+ * Thread safe: the bitmaps returned are the caller's own.
+ */
+class SegmentIndex {
+
+    private static final int MAGIC = 0x50534931; // "PSI1"
+
+    private final Map<String, OrdinalBitmap> mSegments = new HashMap<String, OrdinalBitmap>();
+
+    /**
+     * @return the index saved in the file, an empty one if the file does not exist
+     */
+    public static SegmentIndex load(File file) throws IOException {
+        SegmentIndex index = new SegmentIndex();
+        if (!file.exists()) {
+            return index;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a segment index: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String segment = in.readUTF();
+                index.mSegments.put(segment, OrdinalBitmap.readFrom(in));
+            }
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to the file, replacing it only once it is complete.
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(mSegments.size());
+            for (Map.Entry<String, OrdinalBitmap> segment : mSegments.entrySet()) {
+                out.writeUTF(segment.getKey());
+                segment.getValue().writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return whether the ordinal was not in the segment yet
+     */
+    public synchronized boolean add(String segment, int ordinal) {
+        OrdinalBitmap bitmap = mSegments.get(segment);
+        if (bitmap == null) {
+            bitmap = new OrdinalBitmap();
+            mSegments.put(segment, bitmap);
+        }
+        return bitmap.add(ordinal);
+    }
+
+    /**
+     * @return whether the ordinal was in the segment
+     */
+    public synchronized boolean remove(String segment, int ordinal) {
+        OrdinalBitmap bitmap = mSegments.get(segment);
+        if (bitmap == null || !bitmap.remove(ordinal)) {
+            return false;
+        }
+        if (bitmap.isEmpty()) {
+            mSegments.remove(segment);
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the segment, empty if there is no such segment
+     */
+    public synchronized OrdinalBitmap get(String segment) {
+        OrdinalBitmap bitmap = mSegments.get(segment);
+        return bitmap != null ? bitmap.copy() : new OrdinalBitmap();
+    }
+
+    /**
+     * @return the ordinals in all of the segments
+     */
+    public synchronized OrdinalBitmap all(String... segments) {
+        if (segments.length == 0) {
+            return new OrdinalBitmap();
+        }
+        OrdinalBitmap result = null;
+        for (String segment : segments) {
+            OrdinalBitmap bitmap = mSegments.get(segment);
+            if (bitmap == null) {
+                return new OrdinalBitmap();
+            }
+            // and() returns a new bitmap, so only a single segment needs a copy
+            result = result == null ? bitmap : result.and(bitmap);
+        }
+        return segments.length == 1 ? result.copy() : result;
+    }
+
+    /**
+     * @return the ordinals in any of the segments
+     */
+    public synchronized OrdinalBitmap any(String... segments) {
+        OrdinalBitmap result = new OrdinalBitmap();
+        for (String segment : segments) {
+            OrdinalBitmap bitmap = mSegments.get(segment);
+            if (bitmap != null) {
+                result = result.or(bitmap);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int getCardinality(String segment) {
+        OrdinalBitmap bitmap = mSegments.get(segment);
+        return bitmap != null ? bitmap.getCardinality() : 0;
+    }
+
+    public synchronized List<String> getSegments() {
+        return new ArrayList<String>(mSegments.keySet());
+    }
+}
@@ -0,0 +1,58 @@
+package com.plugin.push.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Send Report - Counters of one send to many tokens, updated by the sender's threads as the
+ * responses come in.
+ */
+class SendReport {
+
+    // HTTP requests made, including retries
+    final AtomicLong mRequests = new AtomicLong();
+
+    final AtomicLong mRetries = new AtomicLong();
+
+    // per token
+    final AtomicLong mSucceeded = new AtomicLong();
+
+    final AtomicLong mFailed = new AtomicLong();
+
+    final AtomicLong mInvalid = new AtomicLong();
+
+    final AtomicLong mCanonical = new AtomicLong();
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    public long getRetries() {
+        return mRetries.get();
+    }
+
+    public long getSucceeded() {
+        return mSucceeded.get();
+    }
+
+    /**
+     * @return tokens the message could not be sent to, including the invalid ones
+     */
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    public long getInvalid() {
+        return mInvalid.get();
+    }
+
+    public long getCanonical() {
+        return mCanonical.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SendReport -> requests: " + getRequests() + " retries: " + getRetries()
+                + " succeeded: " + getSucceeded() + " failed: " + getFailed() + " invalid: "
+                + getInvalid() + " canonical: " + getCanonical();
+    }
+}
@@ -0,0 +1,277 @@
+package com.plugin.push.server;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sender Benchmark - Measures the sustained send rate of the senders against their local stub
+ * servers (or a real endpoint), offline.
+ *
+ * Sends a number of messages to a number of generated tokens, one message after the other, and
+ * reports requests and token sends per second. A share of the tokens can be made invalid to
+ * include the feedback path. ADM and APNS take one token per request, so use fewer tokens for
+ * them. For APNS, --in-flight is the number of streams per connection; the provider tokens are
+ * signed with a key made up for the run.
+ *
+ * <pre>
+ * javac -d out $(find Example/server/java -name '*.java')
+ * java -cp out com.plugin.push.server.SenderBenchmark [--service gcm|adm|apns] [--tokens n]
+ *      [--messages n] [--in-flight n] [--connections n] [--latency ms] [--invalid percent]
+ *      [--endpoint url]
+ * </pre>
+ */
+class SenderBenchmark {
+
+    /**
+     * The sender under test, with a message of its service.
+     */
+    private interface Target {
+
+        CompletableFuture<SendReport> send(int message, Iterator<String> tokens,
+                TokenFeedback feedback);
+
+        void close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("java.util.concurrent.ForkJoinPool.common.parallelism") == null) {
+            // the HttpClient completes every response through the common pool, which is a new
+            // thread per task on a single CPU
+            System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "2");
+        }
+
+        String service = "gcm";
+        int tokens = 100000;
+        int messages = 10;
+        int inFlight = -1;
+        int connections = ApnsSender.DEFAULT_CONNECTIONS;
+        long latency = 5;
+        int invalidPercent = 1;
+        URI endpoint = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--service".equals(arg)) {
+                service = args[++i];
+            } else if ("--tokens".equals(arg)) {
+                tokens = Integer.parseInt(args[++i]);
+            } else if ("--messages".equals(arg)) {
+                messages = Integer.parseInt(args[++i]);
+            } else if ("--in-flight".equals(arg)) {
+                inFlight = Integer.parseInt(args[++i]);
+            } else if ("--connections".equals(arg)) {
+                connections = Integer.parseInt(args[++i]);
+            } else if ("--latency".equals(arg)) {
+                latency = Long.parseLong(args[++i]);
+            } else if ("--invalid".equals(arg)) {
+                invalidPercent = Integer.parseInt(args[++i]);
+            } else if ("--endpoint".equals(arg)) {
+                endpoint = URI.create(args[++i]);
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(2);
+            }
+        }
+
+        Target target;
+        Runnable stopServer = null;
+        if ("gcm".equals(service)) {
+            if (endpoint == null) {
+                final StubGcmServer server = new StubGcmServer(0, latency).start();
+                endpoint = server.getEndpoint();
+                stopServer = new Runnable() {
+                    @Override
+                    public void run() {
+                        server.stop();
+                    }
+                };
+            }
+            inFlight = inFlight > 0 ? inFlight : GcmSender.DEFAULT_MAX_IN_FLIGHT;
+            target = createGcmTarget(new GcmSender("benchmark", endpoint, inFlight));
+        } else if ("adm".equals(service)) {
+            URI tokenEndpoint = AdmTokenCache.DEFAULT_ENDPOINT;
+            if (endpoint == null) {
+                final StubAdmServer server = new StubAdmServer(0, latency).start();
+                endpoint = server.getEndpoint();
+                tokenEndpoint = server.getTokenEndpoint();
+                stopServer = new Runnable() {
+                    @Override
+                    public void run() {
+                        server.stop();
+                    }
+                };
+            }
+            inFlight = inFlight > 0 ? inFlight : AdmSender.DEFAULT_MAX_IN_FLIGHT;
+            target = createAdmTarget(new AdmSender("benchmark", "benchmark", endpoint,
+                    tokenEndpoint, inFlight));
+        } else if ("apns".equals(service)) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            KeyPair key = generator.generateKeyPair();
+            if (endpoint == null) {
+                final StubApnsServer server =
+                        new StubApnsServer(0, latency, key.getPublic()).start();
+                endpoint = server.getEndpoint();
+                stopServer = new Runnable() {
+                    @Override
+                    public void run() {
+                        System.out.println("HTTP/2 connections: " + server.getConnections());
+                        server.stop();
+                    }
+                };
+            }
+            inFlight = inFlight > 0 ? inFlight : ApnsSender.DEFAULT_MAX_STREAMS;
+            target = createApnsTarget(new ApnsSender(
+                    new ApnsProviderToken("BENCHMARK1", "BENCHMARK1", key.getPrivate()),
+                    endpoint, connections, inFlight));
+        } else {
+            System.err.println("Unknown service: " + service);
+            System.exit(2);
+            return;
+        }
+
+        System.out.println(service.toUpperCase(Locale.US) + " -> " + endpoint + " tokens: "
+                + tokens + " messages: " + messages + " in flight: " + inFlight
+                + " virtual threads: " + SenderThreads.hasVirtualThreads());
+
+        final AtomicLong invalid = new AtomicLong();
+        TokenFeedback feedback = new TokenFeedback() {
+            @Override
+            public void onInvalidToken(String token, String reason) {
+                invalid.incrementAndGet();
+            }
+
+            @Override
+            public void onCanonicalToken(String token, String canonicalToken) {
+            }
+        };
+
+        try {
+            // warm up the connections and the JIT
+            target.send(0, new GeneratedTokens(Math.min(tokens, 10000), 0), feedback).get();
+
+            long requests = 0;
+            long sent = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                SendReport report = target.send(i + 1,
+                        new GeneratedTokens(tokens, invalidPercent), feedback).get();
+                requests += report.getRequests();
+                sent += report.getSucceeded() + report.getFailed();
+                if (i == messages - 1) {
+                    System.out.println(report);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(String.format(Locale.US,
+                    "%.0f requests/s, %.0f token sends/s (%.2f s), invalid tokens reported: %d",
+                    requests / seconds, sent / seconds, seconds, invalid.get()));
+        } finally {
+            target.close();
+            if (stopServer != null) {
+                stopServer.run();
+            }
+        }
+    }
+
+    private static Target createGcmTarget(final GcmSender sender) {
+        return new Target() {
+            @Override
+            public CompletableFuture<SendReport> send(int message, Iterator<String> tokens,
+                    TokenFeedback feedback) {
+                return sender.send(new GcmMessage()
+                        .put("message", "Benchmark message " + message)
+                        .put("title", "Push title")
+                        .put("msgcnt", "1")
+                        .put("soundname", "beep.wav")
+                        .setTimeToLive(3600), tokens, feedback);
+            }
+
+            @Override
+            public void close() {
+                sender.close();
+            }
+        };
+    }
+
+    private static Target createAdmTarget(final AdmSender sender) {
+        return new Target() {
+            @Override
+            public CompletableFuture<SendReport> send(int message, Iterator<String> tokens,
+                    TokenFeedback feedback) {
+                return sender.send(new AdmMessage()
+                        .put("message", "Benchmark message " + message)
+                        .put("title", "Push title")
+                        .put("sound", "beep.wav")
+                        .setConsolidationKey("benchmark")
+                        .setExpiresAfter(3600), tokens, feedback);
+            }
+
+            @Override
+            public void close() {
+                sender.close();
+            }
+        };
+    }
+
+    private static Target createApnsTarget(final ApnsSender sender) {
+        return new Target() {
+            @Override
+            public CompletableFuture<SendReport> send(int message, Iterator<String> tokens,
+                    TokenFeedback feedback) {
+                return sender.send(new ApnsMessage()
+                        .setTopic("com.example.benchmark")
+                        .setTitle("Push title")
+                        .setAlert("Benchmark message " + message)
+                        .setBadge(1)
+                        .setSound("beep.wav")
+                        .setCollapseId("benchmark"), tokens, feedback);
+            }
+
+            @Override
+            public void close() {
+                sender.close();
+            }
+        };
+    }
+
+    /**
+     * Tokens made up on the fly, like a cursor over a device registry would return them.
+     */
+    static class GeneratedTokens implements Iterator<String> {
+
+        private final int mCount;
+
+        private final int mInvalidPercent;
+
+        private int mNext = 0;
+
+        GeneratedTokens(int count, int invalidPercent) {
+            mCount = count;
+            mInvalidPercent = invalidPercent;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mCount;
+        }
+
+        @Override
+        public String next() {
+            if (mNext >= mCount) {
+                throw new NoSuchElementException();
+            }
+            int index = mNext++;
+            return (index % 100 < mInvalidPercent ? "invalid-" : "token-")
+                    + "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx" + index;
+        }
+    }
+}
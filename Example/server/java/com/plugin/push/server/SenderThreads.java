@@ -0,0 +1,46 @@
+package com.plugin.push.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sender Threads - Executors for the senders and stub servers: a virtual thread per task when the
+ * JDK has them (21+), otherwise a cached pool of daemon threads. Senders block on their in-flight
+ * limits and retry delays on these threads, which costs nothing with virtual threads.
+ */
+final class SenderThreads {
+
+    private SenderThreads() {
+    }
+
+    public static ExecutorService newTaskExecutor(final String name) {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // JDK without virtual threads
+        }
+
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
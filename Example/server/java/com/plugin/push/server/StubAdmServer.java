@@ -0,0 +1,267 @@
+package com.plugin.push.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stub Adm Server - A local stand-in for ADM's token endpoint and messaging API, to measure and
+ * test the AdmSender offline.
+ *
+ * Hands out access tokens that expire after a configurable lifetime and answers 401
+ * AccessTokenExpired for expired ones. With a rate limit set, requests above it within a second
+ * are answered with 429 MaxRateExceeded and a Retry-After. The result for a registration id
+ * depends on its prefix, so every response path can be exercised:
+ * <ul>
+ * <li>invalid... - 400 InvalidRegistrationId</li>
+ * <li>unregistered... - 400 Unregistered</li>
+ * <li>unavailable... - 503 ServerUnavailable</li>
+ * <li>canonical... - delivered, with registrationID "new-" + id</li>
+ * <li>anything else - delivered</li>
+ * </ul>
+ */
+class StubAdmServer {
+
+    public static final String TOKEN_PATH = "/auth/O2/token";
+
+    public static final String MESSAGING_PATH = "/messaging/registrations/";
+
+    private static final String MESSAGES = "/messages";
+
+    private final HttpServer mServer;
+
+    private final ExecutorService mExecutor;
+
+    // ms each request takes
+    private final long mLatency;
+
+    // s an access token is valid
+    private volatile long mTokenLifetime = 3600;
+
+    // requests per second, 0 for no limit
+    private volatile int mMaxRate = 0;
+
+    // access token -> System.nanoTime() it expires at
+    private final Map<String, Long> mAccessTokens = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong mTokensIssued = new AtomicLong();
+
+    private final AtomicLong mRequests = new AtomicLong();
+
+    private final AtomicLong mThrottled = new AtomicLong();
+
+    private final AtomicLong mExpired = new AtomicLong();
+
+    // guarded by this
+    private long mWindowStart = System.nanoTime();
+
+    private int mWindowRequests = 0;
+
+    /**
+     * @param port 0 for any free port
+     */
+    public StubAdmServer(int port, long latency) throws IOException {
+        mLatency = latency;
+        mExecutor = SenderThreads.newTaskExecutor("stub-adm");
+        mServer = HttpSupport.createServer(port, mExecutor);
+        mServer.createContext(TOKEN_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleToken(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.createContext(MESSAGING_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleMessage(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public StubAdmServer start() {
+        mServer.start();
+        return this;
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    public URI getEndpoint() {
+        return URI.create(HttpSupport.getBaseURI(mServer));
+    }
+
+    public URI getTokenEndpoint() {
+        return URI.create(HttpSupport.getBaseURI(mServer) + TOKEN_PATH);
+    }
+
+    /**
+     * @param seconds lifetime of the access tokens handed out from now on
+     */
+    public void setTokenLifetime(long seconds) {
+        mTokenLifetime = seconds;
+    }
+
+    /**
+     * @param maxRate messaging requests per second, 0 for no limit
+     */
+    public void setMaxRate(int maxRate) {
+        mMaxRate = maxRate;
+    }
+
+    /**
+     * Lets every access token handed out so far expire now.
+     */
+    public void expireTokens() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Long> entry : mAccessTokens.entrySet()) {
+            entry.setValue(now);
+        }
+    }
+
+    public long getTokensIssued() {
+        return mTokensIssued.get();
+    }
+
+    /**
+     * @return messaging requests, including the rejected ones
+     */
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    public long getThrottled() {
+        return mThrottled.get();
+    }
+
+    public long getExpired() {
+        return mExpired.get();
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        String form = HttpSupport.read(exchange.getRequestBody());
+        if (!form.contains("grant_type=client_credentials") || !form.contains("client_id=")
+                || !form.contains("client_secret=")) {
+            HttpSupport.respond(exchange, 400, "{\"error\":\"invalid_request\"}");
+            return;
+        }
+
+        String accessToken = "Atc|stub-" + mTokensIssued.incrementAndGet();
+        long lifetime = mTokenLifetime;
+        mAccessTokens.put(accessToken, System.nanoTime() + lifetime * 1000 * 1000 * 1000);
+        HttpSupport.respond(exchange, 200, "{\"access_token\":\"" + accessToken
+                + "\",\"expires_in\":" + lifetime
+                + ",\"scope\":\"messaging:push\",\"token_type\":\"bearer\"}");
+    }
+
+    private void handleMessage(HttpExchange exchange) throws IOException {
+        String body = HttpSupport.read(exchange.getRequestBody());
+        mRequests.incrementAndGet();
+
+        String path = exchange.getRequestURI().getRawPath();
+        if (!path.startsWith(MESSAGING_PATH) || !path.endsWith(MESSAGES)
+                || path.length() <= MESSAGING_PATH.length() + MESSAGES.length()) {
+            HttpSupport.respond(exchange, 404, "Not found");
+            return;
+        }
+        String token = URLDecoder.decode(path.substring(MESSAGING_PATH.length(),
+                path.length() - MESSAGES.length()), StandardCharsets.UTF_8);
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        Long expiresAt = authorization != null && authorization.startsWith("Bearer ")
+                ? mAccessTokens.get(authorization.substring(7)) : null;
+        if (expiresAt == null) {
+            HttpSupport.respond(exchange, 401, "{\"reason\":\"Unauthorized\"}");
+            return;
+        }
+        if (System.nanoTime() - expiresAt >= 0) {
+            mExpired.incrementAndGet();
+            HttpSupport.respond(exchange, 401, "{\"reason\":\"AccessTokenExpired\"}");
+            return;
+        }
+
+        if (!acquireRate()) {
+            mThrottled.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            HttpSupport.respond(exchange, 429, "{\"reason\":\"MaxRateExceeded\"}");
+            return;
+        }
+
+        if (!(Json.parseObject(body).get("data") instanceof Map)) {
+            HttpSupport.respond(exchange, 400, "{\"reason\":\"InvalidData\"}");
+            return;
+        }
+
+        if (mLatency > 0) {
+            try {
+                Thread.sleep(mLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (token.startsWith("invalid")) {
+            HttpSupport.respond(exchange, 400, "{\"reason\":\"InvalidRegistrationId\"}");
+        } else if (token.startsWith("unregistered")) {
+            HttpSupport.respond(exchange, 400, "{\"reason\":\"Unregistered\"}");
+        } else if (token.startsWith("unavailable")) {
+            HttpSupport.respond(exchange, 503, "{\"reason\":\"ServerUnavailable\"}");
+        } else {
+            StringBuilder result = new StringBuilder("{\"registrationID\":");
+            Json.appendQuoted(result, token.startsWith("canonical") ? "new-" + token : token);
+            HttpSupport.respond(exchange, 200, result.append('}').toString());
+        }
+    }
+
+    /**
+     * @return whether the request is within the rate limit of the current second
+     */
+    private synchronized boolean acquireRate() {
+        int maxRate = mMaxRate;
+        if (maxRate <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - mWindowStart >= 1000 * 1000 * 1000) {
+            mWindowStart = now;
+            mWindowRequests = 0;
+        }
+        return ++mWindowRequests <= maxRate;
+    }
+
+    /**
+     * Runs the stub until the process is killed.
+     *
+     * <pre>
+     * java -cp ... com.plugin.push.server.StubAdmServer [port] [latency ms] [max rate /s]
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        StubAdmServer server = new StubAdmServer(port, latency).start();
+        if (args.length > 2) {
+            server.setMaxRate(Integer.parseInt(args[2]));
+        }
+        System.out.println("Stub ADM listening on " + server.getEndpoint());
+        Thread.currentThread().join();
+    }
+}
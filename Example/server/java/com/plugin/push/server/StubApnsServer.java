@@ -0,0 +1,260 @@
+package com.plugin.push.server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stub Apns Server - A local stand-in for the APNS HTTP/2 provider API, to measure and test the
+ * ApnsSender offline. It speaks cleartext HTTP/2 (see StubHttp2Server), so point the sender at
+ * getEndpoint().
+ *
+ * Provider tokens are checked like APNS does: the signature against the public key of the auth
+ * key (if one is given), and their age against a configurable lifetime, answering 403
+ * ExpiredProviderToken for old ones. The result for a device token depends on its prefix, so
+ * every response path can be exercised:
+ * <ul>
+ * <li>invalid... - 400 BadDeviceToken</li>
+ * <li>unregistered... - 410 Unregistered</li>
+ * <li>unavailable... - 503 ServiceUnavailable</li>
+ * <li>anything else - delivered</li>
+ * </ul>
+ */
+class StubApnsServer {
+
+    public static final String PATH = "/3/device/";
+
+    public static final int MAX_CONCURRENT_STREAMS = 1000;
+
+    private final StubHttp2Server mServer;
+
+    private final ExecutorService mExecutor;
+
+    private final ScheduledExecutorService mScheduler;
+
+    // ms each request takes
+    private final long mLatency;
+
+    // checks the provider token signatures, null to accept any
+    private final PublicKey mKey;
+
+    // s a provider token is accepted after its iat
+    private volatile long mTokenLifetime = 3600;
+
+    // provider token -> iat, for the tokens with a good signature
+    private final Map<String, Long> mProviderTokens = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong mRequests = new AtomicLong();
+
+    private final AtomicLong mExpired = new AtomicLong();
+
+    /**
+     * @param port 0 for any free port
+     * @param key  the public key of the auth key the sender signs with, null to not check
+     */
+    public StubApnsServer(int port, long latency, PublicKey key) throws IOException {
+        mLatency = latency;
+        mKey = key;
+        mExecutor = SenderThreads.newTaskExecutor("stub-apns");
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stub-apns-responses");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mServer = new StubHttp2Server(port, mExecutor, MAX_CONCURRENT_STREAMS,
+                new StubHttp2Server.Handler() {
+                    @Override
+                    public void handle(StubHttp2Server.Exchange exchange) throws IOException {
+                        handleSend(exchange);
+                    }
+                });
+    }
+
+    public StubApnsServer start() {
+        mServer.start();
+        return this;
+    }
+
+    public void stop() {
+        mServer.stop();
+        mScheduler.shutdownNow();
+        mExecutor.shutdownNow();
+    }
+
+    public URI getEndpoint() {
+        return URI.create(mServer.getBaseURI());
+    }
+
+    /**
+     * @param seconds how long after its iat a provider token is accepted
+     */
+    public void setTokenLifetime(long seconds) {
+        mTokenLifetime = seconds;
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return requests rejected with ExpiredProviderToken
+     */
+    public long getExpired() {
+        return mExpired.get();
+    }
+
+    /**
+     * @return HTTP/2 connections the senders opened
+     */
+    public long getConnections() {
+        return mServer.getConnections();
+    }
+
+    private void handleSend(final StubHttp2Server.Exchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        String path = exchange.getPath();
+        if (!"POST".equals(exchange.getMethod()) || path == null || !path.startsWith(PATH)
+                || path.length() == PATH.length()) {
+            respond(exchange, 405, "MethodNotAllowed");
+            return;
+        }
+        final String token = path.substring(PATH.length());
+
+        String authorization = exchange.getHeader("authorization");
+        if (authorization == null || !authorization.startsWith("bearer ")) {
+            respond(exchange, 403, "MissingProviderToken");
+            return;
+        }
+        Long issuedAt = verify(authorization.substring(7));
+        if (issuedAt == null) {
+            respond(exchange, 403, "InvalidProviderToken");
+            return;
+        }
+        if (System.currentTimeMillis() / 1000 - issuedAt >= mTokenLifetime) {
+            mExpired.incrementAndGet();
+            respond(exchange, 403, "ExpiredProviderToken");
+            return;
+        }
+        if (exchange.getHeader("apns-topic") == null) {
+            respond(exchange, 400, "MissingTopic");
+            return;
+        }
+        if (!(Json.parseObject(exchange.getBody()).get("aps") instanceof Map)) {
+            respond(exchange, 400, "PayloadEmpty");
+            return;
+        }
+
+        if (mLatency <= 0) {
+            respondResult(exchange, token);
+            return;
+        }
+        // later, the connection goes on reading the other streams meanwhile
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    respondResult(exchange, token);
+                } catch (IOException e) {
+                    // the connection closed
+                }
+            }
+        }, mLatency, TimeUnit.MILLISECONDS);
+    }
+
+    private static void respondResult(StubHttp2Server.Exchange exchange, String token)
+            throws IOException {
+        if (token.startsWith("invalid")) {
+            respond(exchange, 400, "BadDeviceToken");
+        } else if (token.startsWith("unregistered")) {
+            Map<String, String> headers = Collections.singletonMap("apns-id",
+                    UUID.randomUUID().toString());
+            exchange.respond(410, headers, "{\"reason\":\"Unregistered\",\"timestamp\":"
+                    + System.currentTimeMillis() + "}");
+        } else if (token.startsWith("unavailable")) {
+            respond(exchange, 503, "ServiceUnavailable");
+        } else {
+            exchange.respond(200, Collections.singletonMap("apns-id",
+                    UUID.randomUUID().toString()), "");
+        }
+    }
+
+    private static void respond(StubHttp2Server.Exchange exchange, int status, String reason)
+            throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("apns-id", UUID.randomUUID().toString());
+        headers.put("content-type", "application/json");
+        exchange.respond(status, headers, "{\"reason\":\"" + reason + "\"}");
+    }
+
+    /**
+     * @return the iat of the JWT, null if it is malformed or its signature is bad
+     */
+    private Long verify(String jwt) {
+        Long issuedAt = mProviderTokens.get(jwt);
+        if (issuedAt != null) {
+            return issuedAt;
+        }
+
+        String[] parts = jwt.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            Map<String, Object> header = Json.parseObject(
+                    new String(decoder.decode(parts[0]), StandardCharsets.UTF_8));
+            Map<String, Object> claims = Json.parseObject(
+                    new String(decoder.decode(parts[1]), StandardCharsets.UTF_8));
+            long iat = Json.getLong(claims, "iat", -1);
+            if (!"ES256".equals(Json.getString(header, "alg")) || header.get("kid") == null
+                    || claims.get("iss") == null || iat < 0) {
+                return null;
+            }
+            if (mKey != null) {
+                Signature signature = Signature.getInstance("SHA256withECDSAinP1363Format");
+                signature.initVerify(mKey);
+                signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+                if (!signature.verify(decoder.decode(parts[2]))) {
+                    return null;
+                }
+            }
+            mProviderTokens.put(jwt, iat);
+            return iat;
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the stub until the process is killed; it accepts any provider token.
+     *
+     * <pre>
+     * java -cp ... com.plugin.push.server.StubApnsServer [port] [latency ms]
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8091;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        StubApnsServer server = new StubApnsServer(port, latency, null).start();
+        System.out.println("Stub APNS (h2c) listening on " + server.getEndpoint());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,170 @@
+package com.plugin.push.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stub Gcm Server - A local stand-in for GCM's HTTP connection server, to measure and test the
+ * GcmSender offline.
+ *
+ * Answers multicast requests like GCM does, after an optional latency. The result for a token
+ * depends on its prefix, so every response path can be exercised:
+ * <ul>
+ * <li>invalid... - InvalidRegistration</li>
+ * <li>unregistered... - NotRegistered</li>
+ * <li>unavailable... - Unavailable</li>
+ * <li>canonical... - delivered, with registration_id "new-" + token</li>
+ * <li>anything else - delivered</li>
+ * </ul>
+ */
+class StubGcmServer {
+
+    public static final String PATH = "/gcm/send";
+
+    private final HttpServer mServer;
+
+    private final ExecutorService mExecutor;
+
+    // ms each request takes
+    private final long mLatency;
+
+    private final AtomicLong mRequests = new AtomicLong();
+
+    private final AtomicLong mTokens = new AtomicLong();
+
+    private final AtomicLong mMessageId = new AtomicLong(1);
+
+    /**
+     * @param port 0 for any free port
+     */
+    public StubGcmServer(int port, long latency) throws IOException {
+        mLatency = latency;
+        mExecutor = SenderThreads.newTaskExecutor("stub-gcm");
+        mServer = HttpSupport.createServer(port, mExecutor);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleSend(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public StubGcmServer start() {
+        mServer.start();
+        return this;
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    public URI getEndpoint() {
+        return URI.create(HttpSupport.getBaseURI(mServer) + PATH);
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    public long getTokens() {
+        return mTokens.get();
+    }
+
+    private void handleSend(HttpExchange exchange) throws IOException {
+        String body = HttpSupport.read(exchange.getRequestBody());
+        mRequests.incrementAndGet();
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("key=")) {
+            HttpSupport.respond(exchange, 401, "Unauthorized");
+            return;
+        }
+
+        Object registrationIds = Json.parseObject(body).get("registration_ids");
+        if (!(registrationIds instanceof List) || ((List<?>) registrationIds).isEmpty()
+                || ((List<?>) registrationIds).size() > GcmSender.MAX_MULTICAST_SIZE) {
+            HttpSupport.respond(exchange, 400, "Bad registration_ids");
+            return;
+        }
+        List<?> tokens = (List<?>) registrationIds;
+        mTokens.addAndGet(tokens.size());
+
+        if (mLatency > 0) {
+            try {
+                Thread.sleep(mLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int success = 0;
+        int failure = 0;
+        int canonical = 0;
+        StringBuilder results = new StringBuilder(tokens.size() * 40);
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = String.valueOf(tokens.get(i));
+            if (i > 0) {
+                results.append(',');
+            }
+            String error = getError(token);
+            if (error != null) {
+                failure++;
+                results.append("{\"error\":\"").append(error).append("\"}");
+                continue;
+            }
+            success++;
+            results.append("{\"message_id\":\"0:").append(mMessageId.getAndIncrement())
+                    .append("%stub\"");
+            if (token.startsWith("canonical")) {
+                canonical++;
+                results.append(",\"registration_id\":");
+                Json.appendQuoted(results, "new-" + token);
+            }
+            results.append('}');
+        }
+
+        HttpSupport.respond(exchange, 200, "{\"multicast_id\":" + mRequests.get() + ",\"success\":" + success
+                + ",\"failure\":" + failure + ",\"canonical_ids\":" + canonical
+                + ",\"results\":[" + results + "]}");
+    }
+
+    private static String getError(String token) {
+        if (token.startsWith("invalid")) {
+            return "InvalidRegistration";
+        }
+        if (token.startsWith("unregistered")) {
+            return "NotRegistered";
+        }
+        if (token.startsWith("unavailable")) {
+            return "Unavailable";
+        }
+        return null;
+    }
+
+    /**
+     * Runs the stub until the process is killed.
+     *
+     * <pre>
+     * java -cp ... com.plugin.push.server.StubGcmServer [port] [latency ms]
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        StubGcmServer server = new StubGcmServer(port, latency).start();
+        System.out.println("Stub GCM listening on " + server.getEndpoint());
+        Thread.currentThread().join();
+    }
+}
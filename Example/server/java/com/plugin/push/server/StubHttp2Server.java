@@ -0,0 +1,539 @@
+package com.plugin.push.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stub Http2 Server - A minimal cleartext HTTP/2 server (h2c) for the stub servers of services
+ * that only speak HTTP/2, as the JDK has no HTTP/2 server.
+ *
+ * It accepts the HTTP/1.1 Upgrade the HttpClient makes for http:// URIs, and prior knowledge
+ * connections. Requests are multiplexed on a connection like on the real services: every
+ * complete request is handed to the handler on the connection's thread, and responses can be
+ * written from any thread, in any order. It is a stub: no server push, no priorities, and
+ * request bodies are limited to the initial stream window (1 MB), plenty for push payloads.
+ */
+class StubHttp2Server {
+
+    private static final Logger LOG = Logger.getLogger("PushSender-StubHttp2");
+
+    private static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    private static final int STREAM_WINDOW = 1 << 20;
+
+    private static final int CONNECTION_WINDOW = 1 << 30;
+
+    private static final int DEFAULT_WINDOW = 65535;
+
+    /**
+     * Handles one request. Called on the connection's thread, so it must not block: a handler that
+     * takes time responds later, from another thread.
+     */
+    interface Handler {
+
+        void handle(Exchange exchange) throws IOException;
+    }
+
+    /**
+     * One request and its response.
+     */
+    static class Exchange {
+
+        private final Connection mConnection;
+
+        private final int mStreamId;
+
+        private final Map<String, String> mHeaders;
+
+        private final byte[] mBody;
+
+        Exchange(Connection connection, int streamId, Map<String, String> headers, byte[] body) {
+            mConnection = connection;
+            mStreamId = streamId;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        public String getMethod() {
+            return mHeaders.get(":method");
+        }
+
+        public String getPath() {
+            return mHeaders.get(":path");
+        }
+
+        /**
+         * @param name lower case, as in HTTP/2
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        public String getBody() {
+            return new String(mBody, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @param headers lower case names
+         * @param body    may be empty
+         */
+        public void respond(int status, Map<String, String> headers, String body)
+                throws IOException {
+            mConnection.writeResponse(mStreamId, status, headers,
+                    body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+
+    private final ExecutorService mExecutor;
+
+    private final Handler mHandler;
+
+    private final int mMaxConcurrentStreams;
+
+    private final Set<Connection> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private final AtomicLong mConnectionCount = new AtomicLong();
+
+    private volatile boolean mStopped = false;
+
+    /**
+     * @param port                 0 for any free port
+     * @param executor             runs the connections, a thread each
+     * @param maxConcurrentStreams announced to the clients, e.g. 1000 like APNS
+     */
+    StubHttp2Server(int port, ExecutorService executor, int maxConcurrentStreams,
+            Handler handler) throws IOException {
+        mServerSocket = new ServerSocket();
+        mServerSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        mExecutor = executor;
+        mHandler = handler;
+        mMaxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    public void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public void stop() {
+        mStopped = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Connection connection : mConnections) {
+            connection.close();
+        }
+    }
+
+    public String getBaseURI() {
+        return "http://" + mServerSocket.getInetAddress().getHostAddress() + ":"
+                + mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @return connections accepted so far
+     */
+    public long getConnections() {
+        return mConnectionCount.get();
+    }
+
+    private void accept() {
+        while (!mStopped) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!mStopped) {
+                    LOG.log(Level.WARNING, "accept: failed", e);
+                }
+                return;
+            }
+            mConnectionCount.incrementAndGet();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Connection connection = null;
+                    try {
+                        connection = new Connection(socket);
+                        mConnections.add(connection);
+                        connection.serve();
+                    } catch (EOFException | SocketException e) {
+                        // the client went away
+                    } catch (IOException | RuntimeException e) {
+                        LOG.log(Level.FINE, "accept: connection failed", e);
+                    } finally {
+                        if (connection != null) {
+                            mConnections.remove(connection);
+                            connection.close();
+                        } else {
+                            closeQuietly(socket);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * A request being received, by stream id.
+     */
+    private static class Stream {
+
+        private ByteArrayOutputStream mHeaderBlock = new ByteArrayOutputStream();
+
+        private Map<String, String> mHeaders;
+
+        private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+
+        private boolean mEnded = false;
+    }
+
+    private class Connection {
+
+        private final Socket mSocket;
+
+        private final DataInputStream mInput;
+
+        // guarded by itself
+        private final OutputStream mOutput;
+
+        private final Hpack mHpack = new Hpack(HEADER_TABLE_SIZE);
+
+        // read by the connection's thread only
+        private final Map<Integer, Stream> mStreams = new HashMap<Integer, Stream>();
+
+        private long mConsumed = 0;
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16384));
+            mOutput = new BufferedOutputStream(socket.getOutputStream(), 16384);
+        }
+
+        void serve() throws IOException {
+            String requestLine = readLine();
+            if (requestLine.startsWith("PRI ")) {
+                // prior knowledge: the rest of the preface follows the request line
+                readPreface(requestLine.length() + 2);
+                writeSettings();
+            } else {
+                upgrade(requestLine);
+            }
+
+            while (readFrame()) {
+                // until GOAWAY or the end of the stream
+            }
+        }
+
+        void close() {
+            closeQuietly(mSocket);
+        }
+
+        /**
+         * Switches an HTTP/1.1 request with Upgrade: h2c to HTTP/2; the request becomes stream 1.
+         */
+        private void upgrade(String requestLine) throws IOException {
+            String[] parts = requestLine.split(" ");
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            if (parts.length != 3 || !"h2c".equalsIgnoreCase(headers.get("upgrade"))) {
+                writeHttp1("HTTP/1.1 505 HTTP Version Not Supported\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n");
+                throw new EOFException("not an HTTP/2 client");
+            }
+
+            byte[] body = new byte[0];
+            String contentLength = headers.get("content-length");
+            if (contentLength != null) {
+                body = new byte[Integer.parseInt(contentLength)];
+                mInput.readFully(body);
+            }
+
+            writeHttp1("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+                    + "Upgrade: h2c\r\n\r\n");
+            writeSettings();
+
+            Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+            requestHeaders.put(":method", parts[0]);
+            requestHeaders.put(":path", parts[1]);
+            requestHeaders.put(":scheme", "http");
+            requestHeaders.put(":authority", headers.get("host"));
+            requestHeaders.putAll(headers);
+            dispatch(1, requestHeaders, body);
+
+            readPreface(0);
+        }
+
+        private void readPreface(int offset) throws IOException {
+            byte[] preface = new byte[PREFACE.length - offset];
+            mInput.readFully(preface);
+            if (!Arrays.equals(preface, Arrays.copyOfRange(PREFACE, offset, PREFACE.length))) {
+                throw new IOException("bad connection preface");
+            }
+        }
+
+        /**
+         * @return false when the client sent GOAWAY
+         */
+        private boolean readFrame() throws IOException {
+            int length = mInput.readUnsignedShort() << 8 | mInput.readUnsignedByte();
+            int type = mInput.readUnsignedByte();
+            int flags = mInput.readUnsignedByte();
+            int streamId = mInput.readInt() & 0x7fffffff;
+            byte[] payload = new byte[length];
+            mInput.readFully(payload);
+
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, payload);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, payload);
+                    break;
+                case CONTINUATION:
+                    onContinuation(streamId, flags, payload);
+                    break;
+                case RST_STREAM:
+                    mStreams.remove(streamId);
+                    break;
+                case SETTINGS:
+                    if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0], true);
+                    }
+                    break;
+                case PING:
+                    if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, true);
+                    }
+                    break;
+                case GOAWAY:
+                    return false;
+                default:
+                    // PRIORITY, WINDOW_UPDATE: responses are small, nothing to do
+                    break;
+            }
+            return true;
+        }
+
+        private void onData(int streamId, int flags, byte[] payload) throws IOException {
+            mConsumed += payload.length;
+            if (mConsumed > CONNECTION_WINDOW / 2) {
+                writeFrame(WINDOW_UPDATE, 0, 0, toBytes((int) mConsumed), true);
+                mConsumed = 0;
+            }
+
+            Stream stream = mStreams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            int padding = (flags & FLAG_PADDED) != 0 ? payload[0] & 0xff : 0;
+            int start = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+            stream.mBody.write(payload, start, payload.length - start - padding);
+            if ((flags & FLAG_END_STREAM) != 0) {
+                stream.mEnded = true;
+                complete(streamId, stream);
+            }
+        }
+
+        private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+            int start = 0;
+            int padding = 0;
+            if ((flags & FLAG_PADDED) != 0) {
+                padding = payload[0] & 0xff;
+                start = 1;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) {
+                start += 5;
+            }
+
+            Stream stream = new Stream();
+            mStreams.put(streamId, stream);
+            stream.mHeaderBlock.write(payload, start, payload.length - start - padding);
+            stream.mEnded = (flags & FLAG_END_STREAM) != 0;
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                decodeHeaders(streamId, stream);
+            }
+        }
+
+        private void onContinuation(int streamId, int flags, byte[] payload)
+                throws IOException {
+            Stream stream = mStreams.get(streamId);
+            if (stream == null || stream.mHeaderBlock == null) {
+                throw new IOException("unexpected CONTINUATION");
+            }
+            stream.mHeaderBlock.write(payload, 0, payload.length);
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                decodeHeaders(streamId, stream);
+            }
+        }
+
+        private void decodeHeaders(int streamId, Stream stream) throws IOException {
+            try {
+                stream.mHeaders = mHpack.decode(stream.mHeaderBlock.toByteArray());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("bad header block", e);
+            }
+            stream.mHeaderBlock = null;
+            complete(streamId, stream);
+        }
+
+        private void complete(int streamId, Stream stream) throws IOException {
+            if (stream.mEnded && stream.mHeaders != null) {
+                mStreams.remove(streamId);
+                dispatch(streamId, stream.mHeaders, stream.mBody.toByteArray());
+            }
+        }
+
+        private void dispatch(int streamId, Map<String, String> headers, byte[] body)
+                throws IOException {
+            try {
+                mHandler.handle(new Exchange(this, streamId, headers, body));
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "dispatch: handler failed", e);
+            }
+        }
+
+        void writeResponse(int streamId, int status, Map<String, String> headers, byte[] body)
+                throws IOException {
+            byte[] block = Hpack.encode(status, headers);
+            synchronized (mOutput) {
+                writeFrame(HEADERS, FLAG_END_HEADERS | (body.length == 0 ? FLAG_END_STREAM : 0),
+                        streamId, block, false);
+                if (body.length > 0) {
+                    writeFrame(DATA, FLAG_END_STREAM, streamId, body, false);
+                }
+                mOutput.flush();
+            }
+        }
+
+        private void writeSettings() throws IOException {
+            ByteArrayOutputStream settings = new ByteArrayOutputStream(18);
+            writeSetting(settings, SETTINGS_HEADER_TABLE_SIZE, HEADER_TABLE_SIZE);
+            writeSetting(settings, SETTINGS_MAX_CONCURRENT_STREAMS, mMaxConcurrentStreams);
+            writeSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+            synchronized (mOutput) {
+                writeFrame(SETTINGS, 0, 0, settings.toByteArray(), false);
+                writeFrame(WINDOW_UPDATE, 0, 0, toBytes(CONNECTION_WINDOW - DEFAULT_WINDOW),
+                        true);
+            }
+        }
+
+        private void writeFrame(int type, int flags, int streamId, byte[] payload, boolean flush)
+                throws IOException {
+            synchronized (mOutput) {
+                mOutput.write(payload.length >>> 16);
+                mOutput.write(payload.length >>> 8);
+                mOutput.write(payload.length);
+                mOutput.write(type);
+                mOutput.write(flags);
+                mOutput.write(toBytes(streamId));
+                mOutput.write(payload);
+                if (flush) {
+                    mOutput.flush();
+                }
+            }
+        }
+
+        private void writeHttp1(String response) throws IOException {
+            synchronized (mOutput) {
+                mOutput.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                mOutput.flush();
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = mInput.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    private static void writeSetting(ByteArrayOutputStream settings, int id, int value) {
+        settings.write(id >>> 8);
+        settings.write(id);
+        settings.write(toBytes(value), 0, 4);
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+                (byte) value};
+    }
+}
@@ -0,0 +1,31 @@
+package com.plugin.push.server;
+
+/**
+ * Token Feedback - What a sender learned about the registration tokens it sent to, for the owner
+ * of the tokens to update its records: tokens the push service no longer accepts, and tokens it
+ * knows by a newer (canonical) one.
+ *
+ * Called from the senders' threads, possibly concurrently.
+ */
+interface TokenFeedback {
+
+    TokenFeedback NONE = new TokenFeedback() {
+        @Override
+        public void onInvalidToken(String token, String reason) {
+        }
+
+        @Override
+        public void onCanonicalToken(String token, String canonicalToken) {
+        }
+    };
+
+    /**
+     * @param reason the error of the push service, e.g. NotRegistered or InvalidRegistration
+     */
+    void onInvalidToken(String token, String reason);
+
+    /**
+     * The token still works, but the device should be addressed by canonicalToken from now on.
+     */
+    void onCanonicalToken(String token, String canonicalToken);
+}
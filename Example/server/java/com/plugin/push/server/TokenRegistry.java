@@ -0,0 +1,534 @@
+package com.plugin.push.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Token Registry - The registration tokens of all devices, with their platform, app and when they
+ * were last seen, kept off the heap so tens of millions of them cost a few MB of heap.
+ *
+ * Every device gets an ordinal, its index in the records file; ordinals never change, so other
+ * indexes (e.g. a SegmentIndex) can refer to devices by ordinal. The token bytes are appended to
+ * an arena file. Both files are memory-mapped; only the index from token to ordinal is built in
+ * memory when the registry is opened, as an open addressing table of longs (hash, ordinal) in a
+ * direct buffer, so a lookup costs a hash, a probe or two and a comparison with the arena.
+ *
+ * The registry is a TokenFeedback: handed to the senders, it applies what the push services
+ * report in place. An invalid token's record is marked invalid; a token with a canonical one has
+ * its record point to the canonical token, so the device keeps its ordinal. Nothing is rewritten.
+ *
+ * File layout:
+ * <pre>
+ * records: header: int magic | int version | int count | int live count | long arena end
+ *                  | padding (64 bytes)
+ *          record: long arena offset | int token length | byte state | byte platform
+ *                  | short app | long last seen | int hash | int unused (32 bytes)
+ * arena:   token bytes (UTF-8), back to back; a token never spans two chunks
+ * </pre>
+ *
+ * Thread safe.
+ */
+class TokenRegistry implements TokenFeedback {
+
+    public static final String RECORDS_FILE = "tokens.records";
+
+    public static final String ARENA_FILE = "tokens.arena";
+
+    public static final int PLATFORM_GCM = 1;
+
+    public static final int PLATFORM_APNS = 2;
+
+    public static final int PLATFORM_ADM = 3;
+
+    // matches any platform or app in getTokens()
+    public static final int ANY = -1;
+
+    public static final int STATE_LIVE = 1;
+
+    // the push service reported the token as invalid
+    public static final int STATE_INVALID = 2;
+
+    // the device was merged into the record of its canonical token
+    public static final int STATE_REPLACED = 3;
+
+    public static final int MAX_TOKEN_LENGTH = 4096;
+
+    private static final int MAGIC = 0x50545231; // "PTR1"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int COUNT_OFFSET = 8;
+
+    private static final int LIVE_COUNT_OFFSET = 12;
+
+    private static final int ARENA_END_OFFSET = 16;
+
+    private static final int RECORD_SIZE = 32;
+
+    private static final int TOKEN_OFFSET = 0;
+
+    private static final int LENGTH_OFFSET = 8;
+
+    private static final int STATE_OFFSET = 12;
+
+    private static final int PLATFORM_OFFSET = 13;
+
+    private static final int APP_OFFSET = 14;
+
+    private static final int LAST_SEEN_OFFSET = 16;
+
+    private static final int HASH_OFFSET = 24;
+
+    // 64 MB
+    private static final int CHUNK_SHIFT = 26;
+
+    private static final int MIN_INDEX_CAPACITY = 1 << 16;
+
+    private final MappedRegion mRecords;
+
+    private final MappedRegion mArena;
+
+    private int mCount;
+
+    private int mLiveCount;
+
+    private long mArenaEnd;
+
+    // slots of hash << 32 | ordinal + 1, 0 for empty; linear probing, at most half full
+    private LongBuffer mIndex;
+
+    private int mIndexMask;
+
+    private int mIndexed = 0;
+
+    private TokenRegistry(MappedRegion records, MappedRegion arena) {
+        mRecords = records;
+        mArena = arena;
+    }
+
+    /**
+     * Opens the registry in the directory, creating it if it does not exist yet.
+     *
+     * @throws IOException if the files cannot be mapped or are not a registry
+     */
+    public static TokenRegistry open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        MappedRegion records = new MappedRegion(new File(directory, RECORDS_FILE), CHUNK_SHIFT);
+        MappedRegion arena = new MappedRegion(new File(directory, ARENA_FILE), CHUNK_SHIFT);
+        TokenRegistry registry = new TokenRegistry(records, arena);
+        try {
+            registry.load(records.getFileSize() == 0);
+        } catch (IOException | RuntimeException e) {
+            records.close();
+            arena.close();
+            throw e;
+        }
+        return registry;
+    }
+
+    /**
+     * Adds the token, or updates its platform, app and last seen time if it is known; a token
+     * that was reported invalid is live again, as the device registered it again.
+     *
+     * @param app      an id of the app the token belongs to, 0 - 65535
+     * @param lastSeen epoch ms
+     * @return the ordinal of the token
+     */
+    public synchronized int register(String token, int platform, int app, long lastSeen) {
+        byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int ordinal = find(bytes, hash);
+        if (ordinal < 0) {
+            ordinal = append(bytes, hash);
+        } else if (getState(ordinal) != STATE_LIVE) {
+            // invalid, or replaced and registered again under the old token
+            mLiveCount++;
+        }
+
+        long record = getRecordOffset(ordinal);
+        mRecords.put(record + STATE_OFFSET, (byte) STATE_LIVE);
+        mRecords.put(record + PLATFORM_OFFSET, (byte) platform);
+        mRecords.putShort(record + APP_OFFSET, (short) app);
+        mRecords.putLong(record + LAST_SEEN_OFFSET, lastSeen);
+        mRecords.putInt(COUNT_OFFSET, mCount);
+        mRecords.putInt(LIVE_COUNT_OFFSET, mLiveCount);
+        return ordinal;
+    }
+
+    /**
+     * @return the ordinal of the token, -1 if it is not registered
+     */
+    public synchronized int getOrdinal(String token) {
+        byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+        return find(bytes, hash(bytes));
+    }
+
+    /**
+     * @return the current token of the device
+     */
+    public synchronized String getToken(int ordinal) {
+        checkOrdinal(ordinal);
+        long record = getRecordOffset(ordinal);
+        int length = mRecords.getInt(record + LENGTH_OFFSET);
+        byte[] bytes = new byte[length];
+        mArena.get(mRecords.getLong(record + TOKEN_OFFSET), bytes, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public synchronized int getState(int ordinal) {
+        checkOrdinal(ordinal);
+        return mRecords.get(getRecordOffset(ordinal) + STATE_OFFSET);
+    }
+
+    public synchronized int getPlatform(int ordinal) {
+        checkOrdinal(ordinal);
+        return mRecords.get(getRecordOffset(ordinal) + PLATFORM_OFFSET);
+    }
+
+    public synchronized int getApp(int ordinal) {
+        checkOrdinal(ordinal);
+        return mRecords.getShort(getRecordOffset(ordinal) + APP_OFFSET) & 0xffff;
+    }
+
+    /**
+     * @return epoch ms the token was last registered
+     */
+    public synchronized long getLastSeen(int ordinal) {
+        checkOrdinal(ordinal);
+        return mRecords.getLong(getRecordOffset(ordinal) + LAST_SEEN_OFFSET);
+    }
+
+    /**
+     * @return the number of ordinals, i.e. devices ever registered
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized int getLiveCount() {
+        return mLiveCount;
+    }
+
+    /**
+     * @return the live tokens of the platform and app (or ANY), read as the iterator advances so
+     * they can be handed to a sender without ever being held all at once
+     */
+    public Iterator<String> getTokens(final int platform, final int app) {
+        return new Iterator<String>() {
+            private int mNext = advance(0);
+
+            @Override
+            public boolean hasNext() {
+                return mNext >= 0;
+            }
+
+            @Override
+            public String next() {
+                if (mNext < 0) {
+                    throw new NoSuchElementException();
+                }
+                String token = getToken(mNext);
+                mNext = advance(mNext + 1);
+                return token;
+            }
+
+            private int advance(int ordinal) {
+                synchronized (TokenRegistry.this) {
+                    for (; ordinal < mCount; ordinal++) {
+                        long record = getRecordOffset(ordinal);
+                        if (mRecords.get(record + STATE_OFFSET) == STATE_LIVE
+                                && (platform == ANY
+                                || mRecords.get(record + PLATFORM_OFFSET) == platform)
+                                && (app == ANY
+                                || (mRecords.getShort(record + APP_OFFSET) & 0xffff) == app)) {
+                            return ordinal;
+                        }
+                    }
+                    return -1;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the live tokens of the ordinals, e.g. a campaign resolved by a SegmentIndex, of the
+     * platform (or ANY), read as the iterator advances
+     */
+    public Iterator<String> getTokens(OrdinalBitmap ordinals, final int platform) {
+        final PrimitiveIterator.OfInt iterator = ordinals.iterator();
+        return new Iterator<String>() {
+            private String mNext = advance();
+
+            @Override
+            public boolean hasNext() {
+                return mNext != null;
+            }
+
+            @Override
+            public String next() {
+                if (mNext == null) {
+                    throw new NoSuchElementException();
+                }
+                String token = mNext;
+                mNext = advance();
+                return token;
+            }
+
+            private String advance() {
+                synchronized (TokenRegistry.this) {
+                    while (iterator.hasNext()) {
+                        int ordinal = iterator.nextInt();
+                        if (ordinal >= mCount) {
+                            // ascending, so the rest are not registered either
+                            return null;
+                        }
+                        long record = getRecordOffset(ordinal);
+                        if (mRecords.get(record + STATE_OFFSET) == STATE_LIVE
+                                && (platform == ANY
+                                || mRecords.get(record + PLATFORM_OFFSET) == platform)) {
+                            return getToken(ordinal);
+                        }
+                    }
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Marks the token invalid; it is no longer returned by getTokens() until it is registered
+     * again.
+     */
+    @Override
+    public synchronized void onInvalidToken(String token, String reason) {
+        int ordinal = getOrdinal(token);
+        if (ordinal >= 0 && getState(ordinal) == STATE_LIVE) {
+            mRecords.put(getRecordOffset(ordinal) + STATE_OFFSET, (byte) STATE_INVALID);
+            mRecords.putInt(LIVE_COUNT_OFFSET, --mLiveCount);
+        }
+    }
+
+    /**
+     * Points the device's record to the canonical token. If the canonical token is registered
+     * already (the device registered twice), the old record is merged into that one instead.
+     */
+    @Override
+    public synchronized void onCanonicalToken(String token, String canonicalToken) {
+        int ordinal = getOrdinal(token);
+        if (ordinal < 0 || getState(ordinal) == STATE_REPLACED) {
+            return;
+        }
+        byte[] bytes = canonicalToken.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int canonicalOrdinal = find(bytes, hash);
+        long record = getRecordOffset(ordinal);
+
+        if (canonicalOrdinal < 0) {
+            // the same device under its new token: the old bytes stay in the arena, unused
+            removeFromIndex(ordinal, mRecords.getInt(record + HASH_OFFSET));
+            mRecords.putLong(record + TOKEN_OFFSET, appendBytes(bytes));
+            mRecords.putInt(record + LENGTH_OFFSET, bytes.length);
+            mRecords.putInt(record + HASH_OFFSET, hash);
+            addToIndex(ordinal, hash);
+            mRecords.putLong(ARENA_END_OFFSET, mArenaEnd);
+            return;
+        }
+        if (canonicalOrdinal == ordinal) {
+            return;
+        }
+
+        // the old token stays indexed, so further feedback about it finds the record
+        if (getState(ordinal) == STATE_LIVE) {
+            mLiveCount--;
+        }
+        mRecords.put(record + STATE_OFFSET, (byte) STATE_REPLACED);
+        long canonicalRecord = getRecordOffset(canonicalOrdinal);
+        if (mRecords.get(canonicalRecord + STATE_OFFSET) != STATE_LIVE) {
+            mRecords.put(canonicalRecord + STATE_OFFSET, (byte) STATE_LIVE);
+            mLiveCount++;
+        }
+        mRecords.putInt(LIVE_COUNT_OFFSET, mLiveCount);
+    }
+
+    /**
+     * Writes the changes to disk.
+     */
+    public synchronized void flush() {
+        mArena.force();
+        mRecords.force();
+    }
+
+    public synchronized void close() throws IOException {
+        mArena.close();
+        mRecords.close();
+        mIndex = null;
+    }
+
+    private void load(boolean create) throws IOException {
+        if (create) {
+            mRecords.putInt(0, MAGIC);
+            mRecords.putInt(4, VERSION);
+            mRecords.putInt(COUNT_OFFSET, 0);
+            mRecords.putInt(LIVE_COUNT_OFFSET, 0);
+            mRecords.putLong(ARENA_END_OFFSET, 0);
+        } else if (mRecords.getInt(0) != MAGIC || mRecords.getInt(4) != VERSION) {
+            throw new IOException("Not a token registry");
+        }
+        mCount = mRecords.getInt(COUNT_OFFSET);
+        mLiveCount = mRecords.getInt(LIVE_COUNT_OFFSET);
+        mArenaEnd = mRecords.getLong(ARENA_END_OFFSET);
+
+        int capacity = MIN_INDEX_CAPACITY;
+        while (capacity < mCount * 2L) {
+            capacity <<= 1;
+        }
+        allocateIndex(capacity);
+        for (int ordinal = 0; ordinal < mCount; ordinal++) {
+            long record = getRecordOffset(ordinal);
+            if (mRecords.get(record + STATE_OFFSET) != 0) {
+                addToIndex(ordinal, mRecords.getInt(record + HASH_OFFSET));
+            }
+        }
+    }
+
+    private int append(byte[] bytes, int hash) {
+        if (bytes.length == 0 || bytes.length > MAX_TOKEN_LENGTH) {
+            throw new IllegalArgumentException("Bad token length: " + bytes.length);
+        }
+        int ordinal = mCount;
+        long record = getRecordOffset(ordinal);
+        mRecords.putLong(record + TOKEN_OFFSET, appendBytes(bytes));
+        mRecords.putInt(record + LENGTH_OFFSET, bytes.length);
+        mRecords.putInt(record + HASH_OFFSET, hash);
+        mRecords.put(record + STATE_OFFSET, (byte) STATE_LIVE);
+        // the record is complete before the count makes it part of the registry
+        mCount++;
+        mLiveCount++;
+        mRecords.putLong(ARENA_END_OFFSET, mArenaEnd);
+        addToIndex(ordinal, hash);
+        return ordinal;
+    }
+
+    /**
+     * @return the arena offset the bytes were written at
+     */
+    private long appendBytes(byte[] bytes) {
+        long offset = mArenaEnd;
+        if (mArena.getChunkOffset(offset) + bytes.length > mArena.getChunkSize()) {
+            offset = offset - mArena.getChunkOffset(offset) + mArena.getChunkSize();
+        }
+        mArena.put(offset, bytes, bytes.length);
+        mArenaEnd = offset + bytes.length;
+        return offset;
+    }
+
+    private int find(byte[] bytes, int hash) {
+        for (int slot = hash & mIndexMask; ; slot = (slot + 1) & mIndexMask) {
+            long entry = mIndex.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == hash) {
+                int ordinal = (int) entry - 1;
+                long record = getRecordOffset(ordinal);
+                if (mRecords.getInt(record + LENGTH_OFFSET) == bytes.length
+                        && mArena.equals(mRecords.getLong(record + TOKEN_OFFSET), bytes)) {
+                    return ordinal;
+                }
+            }
+        }
+    }
+
+    private void addToIndex(int ordinal, int hash) {
+        if (mIndexed + 1 > (mIndexMask + 1) / 2) {
+            growIndex();
+        }
+        int slot = hash & mIndexMask;
+        while (mIndex.get(slot) != 0) {
+            slot = (slot + 1) & mIndexMask;
+        }
+        mIndex.put(slot, (long) hash << 32 | (ordinal + 1L));
+        mIndexed++;
+    }
+
+    /**
+     * Removes the entry of the ordinal, shifting back the entries probed past it so lookups need
+     * no tombstones.
+     */
+    private void removeFromIndex(int ordinal, int hash) {
+        long entry = (long) hash << 32 | (ordinal + 1L);
+        int slot = hash & mIndexMask;
+        while (mIndex.get(slot) != entry) {
+            if (mIndex.get(slot) == 0) {
+                return;
+            }
+            slot = (slot + 1) & mIndexMask;
+        }
+
+        int hole = slot;
+        for (slot = (slot + 1) & mIndexMask; mIndex.get(slot) != 0;
+                slot = (slot + 1) & mIndexMask) {
+            int home = (int) (mIndex.get(slot) >>> 32) & mIndexMask;
+            // move the entry into the hole unless its home lies cyclically in (hole, slot]
+            if (((slot - home) & mIndexMask) >= ((slot - hole) & mIndexMask)) {
+                mIndex.put(hole, mIndex.get(slot));
+                hole = slot;
+            }
+        }
+        mIndex.put(hole, 0);
+        mIndexed--;
+    }
+
+    private void growIndex() {
+        LongBuffer old = mIndex;
+        allocateIndex((mIndexMask + 1) * 2);
+        for (int i = 0; i < old.capacity(); i++) {
+            long entry = old.get(i);
+            if (entry != 0) {
+                addToIndex((int) entry - 1, (int) (entry >>> 32));
+            }
+        }
+    }
+
+    private void allocateIndex(int capacity) {
+        mIndex = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+        mIndexMask = capacity - 1;
+        mIndexed = 0;
+    }
+
+    private void checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= mCount) {
+            throw new IndexOutOfBoundsException("No ordinal " + ordinal + " of " + mCount);
+        }
+    }
+
+    private static long getRecordOffset(int ordinal) {
+        return HEADER_SIZE + (long) ordinal * RECORD_SIZE;
+    }
+
+    /**
+     * FNV-1a, finished like murmur3 so the low bits used for the slot are well mixed.
+     */
+    private static int hash(byte[] bytes) {
+        int hash = 0x811c9dc5;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,174 @@
+package com.plugin.push.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Adm Sender Test - Runs the AdmSender against the StubAdmServer and checks its send reports,
+ * token feedback and access token fetches.
+ */
+public class AdmSenderTest {
+
+    private StubAdmServer mServer;
+
+    private AdmSender mSender;
+
+    private final AdmMessage mMessage = new AdmMessage().put("message", "hi")
+            .setConsolidationKey("check").setExpiresAfter(60);
+
+    private final List<String> mInvalid = Collections.synchronizedList(new ArrayList<String>());
+
+    private final Map<String, String> mCanonical = new ConcurrentHashMap<String, String>();
+
+    private final TokenFeedback mFeedback = new TokenFeedback() {
+        @Override
+        public void onInvalidToken(String token, String reason) {
+            mInvalid.add(token + ":" + reason);
+        }
+
+        @Override
+        public void onCanonicalToken(String token, String canonicalToken) {
+            mCanonical.put(token, canonicalToken);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new StubAdmServer(0, 2).start();
+        mSender = new AdmSender("check-client", "check-secret", mServer.getEndpoint(),
+                mServer.getTokenEndpoint(), 16);
+        mSender.setRetryBaseDelay(50);
+    }
+
+    @After
+    public void tearDown() {
+        mSender.close();
+        mServer.stop();
+    }
+
+    /**
+     * Good, canonical, invalid, unregistered and unavailable registration ids.
+     */
+    @Test
+    public void feedback() throws Exception {
+        SendReport report = mSender.send(mMessage, Arrays.asList("a/b+c=", "invalid-1",
+                "unregistered-1", "canonical-1", "unavailable-1", "ok"), mFeedback).get();
+
+        // unavailable-1 is tried 1 + DEFAULT_MAX_RETRIES times
+        assertReport(report, 6 + AdmSender.DEFAULT_MAX_RETRIES, AdmSender.DEFAULT_MAX_RETRIES,
+                3, 3, 2, 1);
+        assertEquals("invalid: " + mInvalid, 2, mInvalid.size());
+        assertTrue("invalid: " + mInvalid, mInvalid.contains("invalid-1:InvalidRegistrationId"));
+        assertTrue("invalid: " + mInvalid, mInvalid.contains("unregistered-1:Unregistered"));
+        assertEquals("canonical: " + mCanonical, 1, mCanonical.size());
+        assertEquals("new-canonical-1", mCanonical.get("canonical-1"));
+        assertFetches(1);
+    }
+
+    /**
+     * Every access token expires; the requests that get 401 AccessTokenExpired share one new
+     * token and are sent again.
+     */
+    @Test
+    public void expired() throws Exception {
+        mSender.send(mMessage, createTokens(1), mFeedback).get();
+        long fetches = mSender.getTokenCache().getFetches();
+        long expired = mServer.getExpired();
+        mServer.expireTokens();
+
+        SendReport report = mSender.send(mMessage, createTokens(200), mFeedback).get();
+
+        long rejected = mServer.getExpired() - expired;
+        assertTrue("401 AccessTokenExpired: " + rejected, rejected > 0);
+        assertReport(report, 200 + rejected, rejected, 200, 0, 0, 0);
+        // the rejected requests share one fetch
+        assertFetches(fetches + 1);
+    }
+
+    /**
+     * A token in its refresh window is replaced in the background, so requests neither wait for a
+     * token nor get 401.
+     */
+    @Test
+    public void refresh() throws Exception {
+        // refresh window: the last fifth of the lifetime, i.e. from 2.4 s on
+        mServer.setTokenLifetime(3);
+        mServer.expireTokens();
+        mSender.send(mMessage, createTokens(10), mFeedback).get();
+
+        long fetches = mSender.getTokenCache().getFetches();
+        long expired = mServer.getExpired();
+        List<SendReport> reports = new ArrayList<SendReport>();
+
+        Thread.sleep(2600);
+        // starts the refresh, sent with the current token
+        reports.add(mSender.send(mMessage, createTokens(20), mFeedback).get());
+        Thread.sleep(200);
+        reports.add(mSender.send(mMessage, createTokens(20), mFeedback).get());
+        // past the expiry of the first token
+        Thread.sleep(600);
+        reports.add(mSender.send(mMessage, createTokens(20), mFeedback).get());
+
+        for (SendReport report : reports) {
+            assertReport(report, 20, 0, 20, 0, 0, 0);
+        }
+        assertEquals("401 AccessTokenExpired", 0, mServer.getExpired() - expired);
+        assertFetches(fetches + 1);
+    }
+
+    /**
+     * ADM allows 300 requests per second; the 429s are retried and the sender-wide backoff keeps
+     * them few.
+     */
+    @Test
+    public void throttled() throws Exception {
+        mSender.send(mMessage, createTokens(1), mFeedback).get();
+        long fetches = mSender.getTokenCache().getFetches();
+        long throttled = mServer.getThrottled();
+        mServer.setMaxRate(300);
+
+        long start = System.nanoTime();
+        SendReport report = mSender.send(mMessage, createTokens(1000), mFeedback).get();
+        long took = (System.nanoTime() - start) / (1000 * 1000);
+
+        long rejected = mServer.getThrottled() - throttled;
+        assertReport(report, 1000 + rejected, rejected, 1000, 0, 0, 0);
+        // one 429 holds back the whole sender, instead of each request finding out by itself
+        assertTrue("429 MaxRateExceeded: " + rejected, rejected > 0 && rejected <= 100);
+        assertTrue("1000 requests at 300/s took " + took + " ms", took >= 3000);
+        assertFetches(fetches);
+    }
+
+    private static void assertReport(SendReport report, long requests, long retries,
+            long succeeded, long failed, long invalid, long canonical) {
+        String message = report + " - expected requests: " + requests + " retries: " + retries
+                + " succeeded: " + succeeded + " failed: " + failed + " invalid: " + invalid
+                + " canonical: " + canonical;
+        assertTrue(message, report.getRequests() == requests && report.getRetries() == retries
+                && report.getSucceeded() == succeeded && report.getFailed() == failed
+                && report.getInvalid() == invalid && report.getCanonical() == canonical);
+    }
+
+    private void assertFetches(long expected) {
+        assertEquals("access tokens fetched", expected, mSender.getTokenCache().getFetches());
+    }
+
+    private static List<String> createTokens(int count) {
+        List<String> tokens = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add("amzn1.adm-registration.v3.check-" + i);
+        }
+        return tokens;
+    }
+}
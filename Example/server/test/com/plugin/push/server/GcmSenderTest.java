@@ -0,0 +1,123 @@
+package com.plugin.push.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Gcm Sender Test - Runs the GcmSender against the StubGcmServer and checks that every send
+ * completes with the right report, also when handling a response fails.
+ */
+public class GcmSenderTest {
+
+    // s; a send that does not complete by then hangs
+    private static final long SEND_TIMEOUT = 30;
+
+    private StubGcmServer mServer;
+
+    private GcmSender mSender;
+
+    private final GcmMessage mMessage = new GcmMessage().put("message", "hi");
+
+    private final List<String> mInvalid = Collections.synchronizedList(new ArrayList<String>());
+
+    private final TokenFeedback mFeedback = new TokenFeedback() {
+        @Override
+        public void onInvalidToken(String token, String reason) {
+            mInvalid.add(token + ":" + reason);
+        }
+
+        @Override
+        public void onCanonicalToken(String token, String canonicalToken) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new StubGcmServer(0, 0).start();
+        mSender = new GcmSender("check-key", mServer.getEndpoint(), 16);
+        mSender.setRetryBaseDelay(50);
+    }
+
+    @After
+    public void tearDown() {
+        mSender.close();
+        mServer.stop();
+    }
+
+    /**
+     * Good, canonical, invalid, unregistered and unavailable registration ids in one request.
+     */
+    @Test
+    public void feedback() throws Exception {
+        SendReport report = mSender.send(mMessage, Arrays.asList("ok", "canonical-1",
+                "invalid-1", "unregistered-1", "unavailable-1"), mFeedback)
+                .get(SEND_TIMEOUT, TimeUnit.SECONDS);
+
+        // the request of unavailable-1 is tried 1 + DEFAULT_MAX_RETRIES times
+        assertEquals(report.toString(), 1 + GcmSender.DEFAULT_MAX_RETRIES, report.getRequests());
+        assertEquals(report.toString(), 2, report.getSucceeded());
+        assertEquals(report.toString(), 3, report.getFailed());
+        assertEquals(report.toString(), 2, report.getInvalid());
+        assertEquals(report.toString(), 1, report.getCanonical());
+        assertEquals("invalid: " + mInvalid, 2, mInvalid.size());
+    }
+
+    /**
+     * Many multicast requests, more than maxInFlight at a time.
+     */
+    @Test
+    public void manyRequests() throws Exception {
+        SendReport report = mSender.send(mMessage, createTokens(100 * 1000), mFeedback)
+                .get(SEND_TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(report.toString(), 100, report.getRequests());
+        assertEquals(report.toString(), 100 * 1000, report.getSucceeded());
+    }
+
+    /**
+     * A TokenFeedback that throws neither fails the rest of its response nor hangs the send.
+     */
+    @Test
+    public void throwingFeedback() throws Exception {
+        TokenFeedback feedback = new TokenFeedback() {
+            @Override
+            public void onInvalidToken(String token, String reason) {
+                throw new IllegalStateException("feedback failed for " + token);
+            }
+
+            @Override
+            public void onCanonicalToken(String token, String canonicalToken) {
+                throw new IllegalStateException("feedback failed for " + token);
+            }
+        };
+        List<String> tokens = createTokens(2500);
+        tokens.set(1500, "invalid-1");
+        tokens.set(1600, "canonical-1");
+
+        SendReport report = mSender.send(mMessage, tokens, feedback)
+                .get(SEND_TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(report.toString(), 3, report.getRequests());
+        assertEquals(report.toString(), 2499, report.getSucceeded());
+        assertEquals(report.toString(), 1, report.getFailed());
+        assertEquals(report.toString(), 1, report.getInvalid());
+        assertEquals(report.toString(), 1, report.getCanonical());
+    }
+
+    private static List<String> createTokens(int count) {
+        List<String> tokens = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add("gcm-check-" + i);
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,158 @@
+package com.plugin.push.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ordinal Bitmap Test - Builds random OrdinalBitmaps next to java.util.BitSets holding the same
+ * ordinals and checks that every operation gives the same set.
+ *
+ * Each round makes two bitmaps of random size, density and number of containers, so sparse and
+ * dense containers and the conversions between them all come up, and checks:
+ * <ul>
+ * <li>add / remove - their results, with the BitSet as the model</li>
+ * <li>contains, getCardinality, isEmpty and the iterator</li>
+ * <li>and / or / andNot - against the BitSet operations, leaving both operands as they were</li>
+ * <li>copy - equal, and independent of the original</li>
+ * <li>writeTo / readFrom - the same set after a round trip</li>
+ * <li>range</li>
+ * </ul>
+ */
+public class OrdinalBitmapTest {
+
+    private static final int CONTAINER_SIZE = 1 << 16;
+
+    private static final int MAX_CONTAINERS = 8;
+
+    private static final int ROUNDS = 25;
+
+    private Random mRandom;
+
+    @Test
+    public void matchesBitSetSeed1() throws IOException {
+        run(1);
+    }
+
+    @Test
+    public void matchesBitSetSeed2() throws IOException {
+        run(2);
+    }
+
+    private void run(long seed) throws IOException {
+        mRandom = new Random(seed);
+        for (int round = 0; round < ROUNDS; round++) {
+            runRound("round " + round);
+        }
+    }
+
+    private void runRound(String name) throws IOException {
+        BitSet expectedA = new BitSet();
+        BitSet expectedB = new BitSet();
+        OrdinalBitmap a = createBitmap(name + " a", expectedA);
+        OrdinalBitmap b = createBitmap(name + " b", expectedB);
+        assertSame(name + " a", a, expectedA);
+        assertSame(name + " b", b, expectedB);
+
+        BitSet expected = (BitSet) expectedA.clone();
+        expected.and(expectedB);
+        assertSame(name + " and", a.and(b), expected);
+        expected = (BitSet) expectedA.clone();
+        expected.or(expectedB);
+        assertSame(name + " or", a.or(b), expected);
+        expected = (BitSet) expectedA.clone();
+        expected.andNot(expectedB);
+        assertSame(name + " andNot", a.andNot(b), expected);
+        assertSame(name + " operand a", a, expectedA);
+        assertSame(name + " operand b", b, expectedB);
+
+        OrdinalBitmap copy = a.copy();
+        BitSet expectedCopy = (BitSet) expectedA.clone();
+        assertSame(name + " copy", copy, expectedCopy);
+        for (int i = 0; i < 1000; i++) {
+            int ordinal = createOrdinal();
+            copy.add(ordinal);
+            expectedCopy.set(ordinal);
+        }
+        assertSame(name + " copy changed", copy, expectedCopy);
+        assertSame(name + " copy original", a, expectedA);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        a.writeTo(new DataOutputStream(bytes));
+        OrdinalBitmap read = OrdinalBitmap.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertSame(name + " writeTo readFrom", read, expectedA);
+
+        int from = mRandom.nextInt(MAX_CONTAINERS * CONTAINER_SIZE);
+        int to = from + mRandom.nextInt(4 * CONTAINER_SIZE);
+        expected = new BitSet();
+        expected.set(from, to);
+        assertSame(name + " range " + from + "-" + to, OrdinalBitmap.range(from, to), expected);
+    }
+
+    /**
+     * @return a bitmap of random size and density, changed by add and remove; the ordinals are
+     * set in expected too
+     */
+    private OrdinalBitmap createBitmap(String name, BitSet expected) {
+        OrdinalBitmap bitmap = new OrdinalBitmap();
+        int containers = 1 + mRandom.nextInt(MAX_CONTAINERS);
+        int count = mRandom.nextInt(200000);
+        boolean dense = mRandom.nextBoolean();
+        for (int i = 0; i < count; i++) {
+            int ordinal = mRandom.nextInt(containers) * CONTAINER_SIZE
+                    + (dense ? mRandom.nextInt(CONTAINER_SIZE) : mRandom.nextInt(3000) * 7);
+            assertEquals(name + " add " + ordinal, !expected.get(ordinal), bitmap.add(ordinal));
+            expected.set(ordinal);
+        }
+        // removes a third, which turns some dense containers sparse again
+        for (int i = 0; i < count / 3; i++) {
+            int ordinal = mRandom.nextBoolean()
+                    ? expected.nextSetBit(mRandom.nextInt(containers * CONTAINER_SIZE))
+                    : mRandom.nextInt(containers * CONTAINER_SIZE);
+            if (ordinal < 0) {
+                continue;
+            }
+            assertEquals(name + " remove " + ordinal, expected.get(ordinal),
+                    bitmap.remove(ordinal));
+            expected.clear(ordinal);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Compares the bitmap with the BitSet: cardinality, isEmpty, the iterator and random
+     * contains.
+     */
+    private void assertSame(String name, OrdinalBitmap bitmap, BitSet expected) {
+        assertEquals(name + " cardinality", expected.cardinality(), bitmap.getCardinality());
+        assertEquals(name + " isEmpty", expected.isEmpty(), bitmap.isEmpty());
+        PrimitiveIterator.OfInt iterator = bitmap.iterator();
+        for (int ordinal = expected.nextSetBit(0); ordinal >= 0;
+                ordinal = expected.nextSetBit(ordinal + 1)) {
+            assertTrue(name + " iteration ended before " + ordinal, iterator.hasNext());
+            assertEquals(name + " iterated", ordinal, iterator.nextInt());
+        }
+        assertFalse(name + " iterated past the end", iterator.hasNext());
+        for (int i = 0; i < 1000; i++) {
+            int ordinal = createOrdinal();
+            assertEquals(name + " contains " + ordinal, expected.get(ordinal),
+                    bitmap.contains(ordinal));
+        }
+    }
+
+    private int createOrdinal() {
+        return mRandom.nextInt((MAX_CONTAINERS + 1) * CONTAINER_SIZE);
+    }
+}
@@ -0,0 +1,252 @@
+package com.plugin.push.server;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Token Registry Test - Applies random registrations and token feedback to a TokenRegistry and to
+ * a HashMap model of it, closing and opening the registry again now and then, and checks that the
+ * two agree.
+ *
+ * Operations:
+ * <ul>
+ * <li>register - a new token, or one registered before (live, invalid, renamed away or
+ * replaced)</li>
+ * <li>invalid - onInvalidToken of a registered token</li>
+ * <li>rename - onCanonicalToken to a token that is not registered; the record keeps its ordinal
+ * and the old token is no longer found</li>
+ * <li>merge - onCanonicalToken to a registered token; the record is replaced and its old token
+ * still finds it</li>
+ * <li>reopen - the registry is closed and opened again, which rebuilds its index from the
+ * records</li>
+ * </ul>
+ *
+ * The counts and a few tokens are compared after every step, every ordinal, token and record
+ * after each reopen and at the end.
+ */
+public class TokenRegistryTest {
+
+    // small enough for tokens to come back
+    private static final int TOKEN_RANGE = 20000;
+
+    private static final int STEPS = 200000;
+
+    private static final int REOPEN_INTERVAL = 25000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Random mRandom;
+
+    private File mDir;
+
+    private TokenRegistry mRegistry;
+
+    // the model: every token that finds a record, and the records by ordinal
+    private final Map<String, Integer> mOrdinals = new HashMap<String, Integer>();
+
+    private final List<String> mTokens = new ArrayList<String>();
+
+    private final List<Integer> mStates = new ArrayList<Integer>();
+
+    private final List<Integer> mPlatforms = new ArrayList<Integer>();
+
+    private final List<Integer> mApps = new ArrayList<Integer>();
+
+    private final List<Long> mLastSeen = new ArrayList<Long>();
+
+    private int mLiveCount = 0;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mRegistry != null) {
+            mRegistry.close();
+        }
+    }
+
+    @Test
+    public void matchesModelSeed1() throws IOException {
+        run(1);
+    }
+
+    @Test
+    public void matchesModelSeed2() throws IOException {
+        run(2);
+    }
+
+    private void run(long seed) throws IOException {
+        mRandom = new Random(seed);
+        mDir = mFolder.newFolder();
+        mRegistry = TokenRegistry.open(mDir);
+
+        for (int step = 0; step < STEPS; step++) {
+            int operation = mRandom.nextInt(100);
+            if (operation < 50 || mTokens.isEmpty()) {
+                register(step, createToken("t"));
+            } else if (operation < 60) {
+                // an old token: still live, invalid, renamed away or replaced
+                register(step, getRegisteredToken());
+            } else if (operation < 75) {
+                invalid(getRegisteredToken());
+            } else if (operation < 90) {
+                canonical(getRegisteredToken(), createToken("c"));
+            } else {
+                canonical(getRegisteredToken(), getRegisteredToken());
+            }
+
+            assertStep(step);
+            if (step % REOPEN_INTERVAL == REOPEN_INTERVAL - 1) {
+                mRegistry.close();
+                mRegistry = TokenRegistry.open(mDir);
+                assertSameAsModel("reopen after step " + step);
+            }
+        }
+        assertSameAsModel("end");
+    }
+
+    private void register(int step, String token) {
+        int platform = 1 + mRandom.nextInt(3);
+        int app = mRandom.nextInt(4);
+        long lastSeen = mRandom.nextLong();
+        int ordinal = mRegistry.register(token, platform, app, lastSeen);
+
+        Integer expected = mOrdinals.get(token);
+        if (expected == null) {
+            expected = mTokens.size();
+            mOrdinals.put(token, expected);
+            mTokens.add(token);
+            mStates.add(TokenRegistry.STATE_LIVE);
+            mPlatforms.add(0);
+            mApps.add(0);
+            mLastSeen.add(0L);
+            mLiveCount++;
+        } else if (mStates.get(expected) != TokenRegistry.STATE_LIVE) {
+            mStates.set(expected, TokenRegistry.STATE_LIVE);
+            mLiveCount++;
+        }
+        mPlatforms.set(expected, platform);
+        mApps.set(expected, app);
+        mLastSeen.set(expected, lastSeen);
+        assertEquals("step " + step + ": ordinal of registered " + token, (int) expected,
+                ordinal);
+    }
+
+    private void invalid(String token) {
+        mRegistry.onInvalidToken(token, "NotRegistered");
+
+        Integer ordinal = mOrdinals.get(token);
+        if (ordinal != null && mStates.get(ordinal) == TokenRegistry.STATE_LIVE) {
+            mStates.set(ordinal, TokenRegistry.STATE_INVALID);
+            mLiveCount--;
+        }
+    }
+
+    private void canonical(String token, String canonicalToken) {
+        mRegistry.onCanonicalToken(token, canonicalToken);
+
+        Integer ordinal = mOrdinals.get(token);
+        if (ordinal == null || mStates.get(ordinal) == TokenRegistry.STATE_REPLACED) {
+            return;
+        }
+        Integer canonicalOrdinal = mOrdinals.get(canonicalToken);
+        if (canonicalOrdinal == null) {
+            // rename
+            mOrdinals.remove(token);
+            mOrdinals.put(canonicalToken, ordinal);
+            mTokens.set(ordinal, canonicalToken);
+        } else if (!canonicalOrdinal.equals(ordinal)) {
+            // merge
+            if (mStates.get(ordinal) == TokenRegistry.STATE_LIVE) {
+                mLiveCount--;
+            }
+            mStates.set(ordinal, TokenRegistry.STATE_REPLACED);
+            if (mStates.get(canonicalOrdinal) != TokenRegistry.STATE_LIVE) {
+                mStates.set(canonicalOrdinal, TokenRegistry.STATE_LIVE);
+                mLiveCount++;
+            }
+        }
+    }
+
+    /**
+     * Checks the counts and a few random tokens, cheap enough for every step.
+     */
+    private void assertStep(int step) {
+        assertEquals("step " + step + ": size", mTokens.size(), mRegistry.size());
+        assertEquals("step " + step + ": live count", mLiveCount, mRegistry.getLiveCount());
+        for (int i = 0; i < 4; i++) {
+            String token = i % 2 == 0 ? getRegisteredToken() : createToken("t");
+            Integer expected = mOrdinals.get(token);
+            assertEquals("step " + step + ": ordinal of " + token,
+                    expected != null ? (int) expected : -1, mRegistry.getOrdinal(token));
+        }
+    }
+
+    /**
+     * Compares every token, record and count with the model.
+     */
+    private void assertSameAsModel(String name) {
+        assertEquals(name + ": size", mTokens.size(), mRegistry.size());
+        assertEquals(name + ": live count", mLiveCount, mRegistry.getLiveCount());
+        for (Map.Entry<String, Integer> entry : mOrdinals.entrySet()) {
+            assertEquals(name + ": ordinal of " + entry.getKey(), (int) entry.getValue(),
+                    mRegistry.getOrdinal(entry.getKey()));
+        }
+        // tokens renamed away, and ones never registered
+        for (int i = 0; i < TOKEN_RANGE; i++) {
+            for (String prefix : new String[] {"t", "c"}) {
+                String token = prefix + i;
+                if (!mOrdinals.containsKey(token)) {
+                    assertEquals(name + ": ordinal of " + token, -1, mRegistry.getOrdinal(token));
+                }
+            }
+        }
+
+        List<String> live = new ArrayList<String>();
+        for (int ordinal = 0; ordinal < mTokens.size(); ordinal++) {
+            String record = name + ": record " + ordinal;
+            assertEquals(record, mTokens.get(ordinal), mRegistry.getToken(ordinal));
+            assertEquals(record, (int) mStates.get(ordinal), mRegistry.getState(ordinal));
+            assertEquals(record, (int) mPlatforms.get(ordinal), mRegistry.getPlatform(ordinal));
+            assertEquals(record, (int) mApps.get(ordinal), mRegistry.getApp(ordinal));
+            assertEquals(record, (long) mLastSeen.get(ordinal), mRegistry.getLastSeen(ordinal));
+            if (mStates.get(ordinal) == TokenRegistry.STATE_LIVE) {
+                live.add(mTokens.get(ordinal));
+            }
+        }
+        List<String> iterated = new ArrayList<String>();
+        for (Iterator<String> tokens = mRegistry.getTokens(TokenRegistry.ANY, TokenRegistry.ANY);
+                tokens.hasNext(); ) {
+            iterated.add(tokens.next());
+        }
+        assertEquals(name + ": live tokens", live, iterated);
+    }
+
+    private String createToken(String prefix) {
+        return prefix + mRandom.nextInt(TOKEN_RANGE);
+    }
+
+    /**
+     * @return the token of a random record (live, invalid or replaced), now and then a random one
+     * of the same kind, which may be unknown or renamed away
+     */
+    private String getRegisteredToken() {
+        if (mTokens.isEmpty()) {
+            return createToken("t");
+        }
+        String token = mTokens.get(mRandom.nextInt(mTokens.size()));
+        return mRandom.nextInt(8) == 0 ? createToken(token.substring(0, 1)) : token;
+    }
+}
@@ -0,0 +1,259 @@
+package com.plugin.gcm;
+
+import com.appgyver.cordova.AGCordovaApplicationInterface;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Android Platform - The Android implementations of the interfaces the notification core
+ * (NotificationDispatcher, NotificationScheduler, ...) runs against.
+ */
+class AndroidPlatform {
+
+    private static String TAG = "PushPlugin-AndroidPlatform";
+
+    // manifest meta-data names (prefixed with GCMIntentService.META_DATA_PREFIX)
+    public static final String LOG_LEVEL = "logLevel";
+
+    public static final String LOG_TRACE = "logTrace";
+
+    private static boolean sLoggingConfigured = false;
+
+    private AndroidPlatform() {
+    }
+
+    /**
+     * Routes PushLog to logcat, with the level and trace mode from the manifest meta-data
+     * (com.plugin.gcm.logLevel / com.plugin.gcm.logTrace). Only the first call does anything, so
+     * every entry point of the plugin can call it.
+     */
+    static synchronized void configureLogging(Context context) {
+        if (sLoggingConfigured) {
+            return;
+        }
+        sLoggingConfigured = true;
+
+        PushLog.setWriter(new AndroidLogWriter());
+
+        Bundle metaData = GCMIntentService.getManifestMetaData(context);
+        Object level = metaData.get(GCMIntentService.META_DATA_PREFIX + LOG_LEVEL);
+        if (level != null) {
+            PushLog.setLevel(PushLog.parseLevel(level.toString(), PushLog.getLevel()));
+        }
+        PushLog.setTrace(metaData.getBoolean(GCMIntentService.META_DATA_PREFIX + LOG_TRACE));
+    }
+
+    /**
+     * Reads the GCM intent extras.
+     */
+    static class BundleMessageSource implements MessageSource {
+
+        private final Bundle mExtras;
+
+        BundleMessageSource(Bundle extras) {
+            mExtras = extras;
+        }
+
+        public Bundle getBundle() {
+            return mExtras;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return mExtras.keySet();
+        }
+
+        @Override
+        public Object get(String key) {
+            return mExtras.get(key);
+        }
+
+        @Override
+        public String getString(String key) {
+            return mExtras.getString(key);
+        }
+
+        @Override
+        public boolean getBoolean(String key) {
+            return mExtras.getBoolean(key);
+        }
+    }
+
+    /**
+     * Sends to a JavaScript callback of a web view. Only keeps the callback id and a weak
+     * reference to the web view (a CallbackContext would keep the web view itself), so the
+     * WebViewIndex can let go of web views that were dropped without onDestroy.
+     */
+    static class CordovaCallbackSink implements CallbackSink {
+
+        private final String mCallbackId;
+
+        private final WeakReference<CordovaWebView> mWebView;
+
+        CordovaCallbackSink(CordovaWebView webView, CallbackContext callBack) {
+            mCallbackId = callBack.getCallbackId();
+            mWebView = new WeakReference<CordovaWebView>(webView);
+        }
+
+        @Override
+        public void sendNotification(String notification) {
+            PluginResult pluginResult = new RawJSONResult(notification);
+            pluginResult.setKeepCallback(true);
+
+            sendPluginResult(pluginResult);
+        }
+
+        @Override
+        public void sendNotifications(List<String> notifications) {
+            int length = 2;
+            for (String notification : notifications) {
+                length += notification.length() + 1;
+            }
+
+            StringBuilder json = new StringBuilder(length);
+            json.append('[');
+            for (int i = 0; i < notifications.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(notifications.get(i));
+            }
+            json.append(']');
+
+            PluginResult pluginResult = new RawJSONResult(json.toString());
+            pluginResult.setKeepCallback(true);
+
+            sendPluginResult(pluginResult);
+        }
+
+        @Override
+        public void success(String message) {
+            sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+        }
+
+        @Override
+        public void error(String message) {
+            sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+        }
+
+        private void sendPluginResult(PluginResult pluginResult) {
+            CordovaWebView webView = mWebView.get();
+            if (webView == null) {
+                PushLog.v(TAG, "sendPluginResult() - web view is gone, callback: {}",
+                        mCallbackId);
+                return;
+            }
+            webView.sendPluginResult(pluginResult, mCallbackId);
+        }
+    }
+
+    /**
+     * A JSON result from an already serialized string. PluginResult(Status, JSONObject) would only
+     * call toString() on the object, so this skips parsing the notification into one first. The
+     * bridge reads the message through getMessageType() / getMessage().
+     */
+    static class RawJSONResult extends PluginResult {
+
+        private final String mJSON;
+
+        RawJSONResult(String json) {
+            super(Status.OK, "");
+            mJSON = json;
+        }
+
+        @Override
+        public int getMessageType() {
+            return MESSAGE_TYPE_JSON;
+        }
+
+        @Override
+        public String getMessage() {
+            return mJSON;
+        }
+    }
+
+    /**
+     * Posts to the NotificationManager, see GCMIntentService.postNotification().
+     */
+    static class AndroidSystemNotifier implements SystemNotifier {
+
+        private final Context mContext;
+
+        AndroidSystemNotifier(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        public void post(NotificationScheduler.Post post, boolean alert) {
+            GCMIntentService.postNotification(mContext, post, alert);
+        }
+
+        @Override
+        public void cancelAll() {
+            NotificationManager notificationManager = (NotificationManager) mContext
+                    .getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.cancelAll();
+            GCMIntentService.clearNotificationGroups();
+        }
+    }
+
+    static class AndroidClock implements Clock {
+
+        static final AndroidClock INSTANCE = new AndroidClock();
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Asks the AppGyver application whether its activity is running.
+     */
+    static class CordovaAppStateProbe implements AppStateProbe {
+
+        private final Context mContext;
+
+        CordovaAppStateProbe(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        public boolean isApplicationRunning() {
+            return ((AGCordovaApplicationInterface) mContext).isRunning();
+        }
+    }
+
+    /**
+     * Routes PushLog to logcat.
+     */
+    static class AndroidLogWriter implements PushLog.Writer {
+
+        @Override
+        public void println(int priority, String tag, String message) {
+            Log.println(priority, tag, message);
+        }
+
+        @Override
+        public void printError(String tag, String message, Throwable throwable) {
+            Log.e(tag, message, throwable);
+        }
+    }
+}
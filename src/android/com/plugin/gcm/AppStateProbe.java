@@ -0,0 +1,9 @@
+package com.plugin.gcm;
+
+/**
+ * App State Probe - Tells whether the application (its main activity) is currently running.
+ */
+interface AppStateProbe {
+
+    boolean isApplicationRunning();
+}
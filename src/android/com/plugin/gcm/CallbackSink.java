@@ -0,0 +1,27 @@
+package com.plugin.gcm;
+
+import java.util.List;
+
+/**
+ * Callback Sink - Where results for one JavaScript callback go (a Cordova CallbackContext on
+ * Android). Notification results keep the callback alive for further results.
+ *
+ * Notifications are passed serialized (see LazyNotification.toJSONString()), so they reach the
+ * bridge without being parsed and serialized again.
+ */
+interface CallbackSink {
+
+    /**
+     * @param notification a JSON object
+     */
+    void sendNotification(String notification);
+
+    /**
+     * @param notifications JSON objects, sent as one JSON array
+     */
+    void sendNotifications(List<String> notifications);
+
+    void success(String message);
+
+    void error(String message);
+}
@@ -0,0 +1,17 @@
+package com.plugin.gcm;
+
+/**
+ * Clock - Time source of the notification core, so it can be driven by a fake clock off-device.
+ */
+interface Clock {
+
+    /**
+     * @return wall clock time in ms, used for notification timestamps
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return monotonic time in ms, used for windows and intervals
+     */
+    long elapsedRealtime();
+}
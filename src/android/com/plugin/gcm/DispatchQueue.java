@@ -0,0 +1,89 @@
+package com.plugin.gcm;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatch Queue - Runs tasks one at a time, in the order they were queued, on a shared executor.
+ *
+ * Every web view has its own queue, so deliveries to one web view stay in order while web views
+ * do not wait for each other: a web view with a slow bridge only holds up its own queue (and one
+ * thread of the executor). After each task the queue gives the thread back and queues itself
+ * again, so a busy queue cannot starve the others.
+ */
+class DispatchQueue implements Executor {
+
+    private static String TAG = "PushPlugin-DispatchQueue";
+
+    private final Executor mExecutor;
+
+    // guarded by this
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+    // whether a runner is queued on / running in the executor, guarded by this
+    private boolean mActive = false;
+
+    private final Runnable mRunner = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    DispatchQueue(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            mTasks.add(task);
+            if (mActive) {
+                return;
+            }
+            mActive = true;
+        }
+        schedule();
+    }
+
+    private void runNext() {
+        Runnable task;
+        synchronized (this) {
+            task = mTasks.poll();
+            if (task == null) {
+                mActive = false;
+                return;
+            }
+        }
+
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // the following tasks still run
+            PushLog.e(TAG, "runNext: task failed", e);
+        }
+
+        synchronized (this) {
+            if (mTasks.isEmpty()) {
+                mActive = false;
+                return;
+            }
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            mExecutor.execute(mRunner);
+        } catch (RejectedExecutionException e) {
+            // the executor was shut down, nothing will run anymore
+            synchronized (this) {
+                PushLog.v(TAG, "schedule() - executor shut down, dropping {} tasks",
+                        mTasks.size());
+                mTasks.clear();
+                mActive = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.plugin.gcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicate Filter - Remembers which messages were received recently, so a message GCM delivers
+ * again (retries, app updates, re-registration) is dropped instead of being shown and dispatched a
+ * second time.
+ *
+ * Messages are identified by their google.message_id, or by a hash of all their extras if they
+ * have none but a google.sent_time. A message with neither is never filtered: two legitimate sends
+ * of the same content would look alike. The ids are kept in a rotating Bloom filter: two fixed
+ * size generations, of which the current one takes the new ids and both are checked. When the
+ * current generation is full or older than ROTATION_PERIOD, the other one is cleared and becomes
+ * the current one, so an id is remembered for at least one and at most two periods. Checking a
+ * message costs a few bit lookups and no allocation. A false positive (a new message taken for a
+ * duplicate) is around one in a million with the default sizes.
+ *
+ * The filter is kept in a memory-mapped file so it survives restarts, synced like the
+ * NotificationJournal. If the file cannot be mapped it is kept in memory only.
+ *
+ * File layout: a fixed size header followed by the two generations.
+ * <pre>
+ * header: int magic | int version | int current generation | int count | long generation start
+ *         | padding
+ * </pre>
+ */
+class DuplicateFilter {
+
+    private static String TAG = "PushPlugin-DuplicateFilter";
+
+    public static final String FILE_NAME = "push_notifications.filter";
+
+    public static final String MESSAGE_ID = "google.message_id";
+
+    public static final String SENT_TIME = "google.sent_time";
+
+    // bits per generation (32 KB)
+    public static final int GENERATION_BITS = 1 << 18;
+
+    // ids a generation takes before it is rotated out
+    public static final int GENERATION_CAPACITY = 4096;
+
+    public static final long ROTATION_PERIOD = 24 * 60 * 60 * 1000;
+
+    private static final int HASH_COUNT = 6;
+
+    private static final int MAGIC = 0x50534631; // "PSF1"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int CURRENT_OFFSET = 8;
+
+    private static final int COUNT_OFFSET = 12;
+
+    private static final int START_OFFSET = 16;
+
+    private static final int GENERATION_BYTES = GENERATION_BITS / 8;
+
+    private static final int SIZE = HEADER_SIZE + 2 * GENERATION_BYTES;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // null if the filter is only kept in memory
+    private final RandomAccessFile mFile;
+
+    private final ByteBuffer mBuffer;
+
+    private final ScheduledExecutorService mScheduler;
+
+    private boolean mSyncScheduled = false;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    private DuplicateFilter(RandomAccessFile file, ByteBuffer buffer,
+            ScheduledExecutorService scheduler, long now) {
+        mFile = file;
+        mBuffer = buffer;
+        mScheduler = scheduler;
+
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(CURRENT_OFFSET, 0);
+            clearGeneration(0);
+            clearGeneration(1);
+            startGeneration(now);
+        }
+    }
+
+    /**
+     * Opens (or creates) the filter file.
+     *
+     * @param file where the filter is kept, or null to keep it only in memory
+     */
+    public static DuplicateFilter open(File file, ScheduledExecutorService scheduler, long now) {
+        if (file != null) {
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                MappedByteBuffer buffer = randomAccessFile.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+                return new DuplicateFilter(randomAccessFile, buffer, scheduler, now);
+            } catch (IOException e) {
+                PushLog.e(TAG, "open: could not map filter {} - {}", file, e.getMessage());
+                if (randomAccessFile != null) {
+                    try {
+                        randomAccessFile.close();
+                    } catch (IOException ignored) {
+                        /*no op*/
+                    }
+                }
+            }
+        }
+        return new DuplicateFilter(null, ByteBuffer.allocate(SIZE), null, now);
+    }
+
+    /**
+     * @return true if the message has a message id or sent time to tell a redelivery by, false if
+     * it must not be filtered
+     */
+    public static boolean isIdentifiable(MessageSource extras) {
+        return extras.get(MESSAGE_ID) != null || extras.get(SENT_TIME) != null;
+    }
+
+    /**
+     * @return the id a message is filtered by, see isIdentifiable()
+     */
+    public static long getMessageHash(MessageSource extras) {
+        Object messageId = extras.get(MESSAGE_ID);
+        if (messageId != null) {
+            return hash(messageId.toString());
+        }
+
+        // independent of the key order; a redelivery also has the same google.sent_time
+        long hash = 0;
+        for (String key : extras.keySet()) {
+            Object value = extras.get(key);
+            hash += mix64(hash(key) * 31 + (value != null ? hash(value.toString()) : 0));
+        }
+        return hash;
+    }
+
+    /**
+     * Records the message id.
+     *
+     * @param now ms, wall clock
+     * @return true if the id was (probably) recorded before
+     */
+    public synchronized boolean checkAndAdd(long hash, long now) {
+        // two independent 32 bit halves, combined into HASH_COUNT bit positions
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32) | 1;
+
+        int current = mBuffer.getInt(CURRENT_OFFSET);
+        if (contains(current, hash1, hash2) || contains(1 - current, hash1, hash2)) {
+            return true;
+        }
+
+        if (mBuffer.getInt(COUNT_OFFSET) >= GENERATION_CAPACITY
+                || now - mBuffer.getLong(START_OFFSET) >= ROTATION_PERIOD
+                || now < mBuffer.getLong(START_OFFSET)) {
+            current = 1 - current;
+            clearGeneration(current);
+            mBuffer.putInt(CURRENT_OFFSET, current);
+            startGeneration(now);
+            PushLog.v(TAG, "checkAndAdd() - rotated to generation {}", current);
+        }
+
+        int offset = HEADER_SIZE + current * GENERATION_BYTES;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (hash1 + i * hash2) & (GENERATION_BITS - 1);
+            int index = offset + (bit >>> 3);
+            mBuffer.put(index, (byte) (mBuffer.get(index) | (1 << (bit & 7))));
+        }
+        mBuffer.putInt(COUNT_OFFSET, mBuffer.getInt(COUNT_OFFSET) + 1);
+
+        scheduleSync();
+        return false;
+    }
+
+    public synchronized void close() {
+        if (mFile == null) {
+            return;
+        }
+        sync();
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            PushLog.e(TAG, "close: {}", e.getMessage());
+        }
+    }
+
+    private boolean contains(int generation, int hash1, int hash2) {
+        int offset = HEADER_SIZE + generation * GENERATION_BYTES;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (hash1 + i * hash2) & (GENERATION_BITS - 1);
+            if ((mBuffer.get(offset + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startGeneration(long now) {
+        mBuffer.putInt(COUNT_OFFSET, 0);
+        mBuffer.putLong(START_OFFSET, now);
+    }
+
+    private void clearGeneration(int generation) {
+        int offset = HEADER_SIZE + generation * GENERATION_BYTES;
+        for (int i = 0; i < GENERATION_BYTES; i += 8) {
+            mBuffer.putLong(offset + i, 0);
+        }
+    }
+
+    private void scheduleSync() {
+        if (mFile == null || mSyncScheduled || mScheduler == null) {
+            return;
+        }
+        mSyncScheduled = true;
+        try {
+            mScheduler.schedule(mSyncRunnable, NotificationJournal.SYNC_DELAY,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // scheduler shut down, sync right away
+            mSyncScheduled = false;
+            sync();
+        }
+    }
+
+    private synchronized void sync() {
+        mSyncScheduled = false;
+        ((MappedByteBuffer) mBuffer).force();
+    }
+
+    /**
+     * 64 bit FNV-1a of the string's chars, mixed so that both halves are usable on their own.
+     */
+    static long hash(String value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return mix64(hash);
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
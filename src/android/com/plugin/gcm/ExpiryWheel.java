@@ -0,0 +1,181 @@
+package com.plugin.gcm;
+
+import java.util.Arrays;
+
+/**
+ * Expiry Wheel - A hashed timing wheel of expiry times, used by the NotificationStore to find its
+ * expired entries without scanning all of them.
+ *
+ * Keys (store sequence numbers) are hashed by their expiry tick into one of a fixed number of
+ * slots. Advancing the wheel only visits the slots of the ticks that passed, and in each slot only
+ * the keys that are due fire; keys due in a later round of the wheel stay where they are. Adding a
+ * key is O(1) and nothing but two longs is kept per key. The store removes the key of an entry
+ * that leaves it some other way, so the wheel only holds keys that are still waiting to expire.
+ *
+ * Not thread safe: the store only uses it under its write lock.
+ */
+class ExpiryWheel {
+
+    // ms
+    public static final long DEFAULT_TICK = 1000;
+
+    public static final int DEFAULT_SLOTS = 64;
+
+    private static final int INITIAL_SLOT_CAPACITY = 4;
+
+    interface Listener {
+
+        void onExpired(long key);
+    }
+
+    private final long mTick;
+
+    private final long[][] mKeys;
+
+    private final long[][] mExpiries;
+
+    private final int[] mSizes;
+
+    private int mSize = 0;
+
+    // every tick up to and including this one has been processed
+    private long mLastTick;
+
+    public ExpiryWheel(long now) {
+        this(now, DEFAULT_TICK, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param now   the current time (ms)
+     * @param tick  resolution of the wheel (ms); keys fire once the tick they expire in is over,
+     *              i.e. within two ticks of their expiry time
+     * @param slots number of slots; one round of the wheel is slots * tick
+     */
+    public ExpiryWheel(long now, long tick, int slots) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+        }
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots must be positive: " + slots);
+        }
+        mTick = tick;
+        mKeys = new long[slots][];
+        mExpiries = new long[slots][];
+        mSizes = new int[slots];
+        mLastTick = now / tick - 1;
+    }
+
+    public long getTick() {
+        return mTick;
+    }
+
+    /**
+     * @return the number of keys that have not fired yet
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public void add(long key, long expiresAt) {
+        // already due keys go in the next slot to be processed
+        long tick = Math.max(expiresAt / mTick, mLastTick + 1);
+        int slot = (int) (tick % mKeys.length);
+
+        int size = mSizes[slot];
+        if (mKeys[slot] == null) {
+            mKeys[slot] = new long[INITIAL_SLOT_CAPACITY];
+            mExpiries[slot] = new long[INITIAL_SLOT_CAPACITY];
+        } else if (size == mKeys[slot].length) {
+            mKeys[slot] = Arrays.copyOf(mKeys[slot], size * 2);
+            mExpiries[slot] = Arrays.copyOf(mExpiries[slot], size * 2);
+        }
+
+        mKeys[slot][size] = key;
+        mExpiries[slot][size] = expiresAt;
+        mSizes[slot] = size + 1;
+        mSize++;
+    }
+
+    /**
+     * Removes a key before it fires.
+     *
+     * @param expiresAt the expiry time the key was added with
+     * @return false if the key is not in the wheel (it fired already)
+     */
+    public boolean remove(long key, long expiresAt) {
+        // a key that was already due when added went to a later slot than its expiry tick
+        int home = (int) ((expiresAt / mTick) % mKeys.length);
+        if (removeFromSlot(home, key)) {
+            return true;
+        }
+        for (int slot = 0; slot < mKeys.length; slot++) {
+            if (slot != home && removeFromSlot(slot, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean removeFromSlot(int slot, long key) {
+        long[] keys = mKeys[slot];
+        int size = mSizes[slot];
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key) {
+                size--;
+                keys[i] = keys[size];
+                mExpiries[slot][i] = mExpiries[slot][size];
+                mSizes[slot] = size;
+                mSize--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fires every key that expired in a tick that is over by now, in no particular order.
+     */
+    public void advance(long now, Listener listener) {
+        long lastTick = now / mTick - 1;
+        if (lastTick <= mLastTick) {
+            return;
+        }
+
+        // after a long pause every slot is due once; more passes would find nothing new
+        long ticks = Math.min(lastTick - mLastTick, mKeys.length);
+        for (long tick = lastTick - ticks + 1; tick <= lastTick; tick++) {
+            expireSlot((int) (tick % mKeys.length), lastTick, listener);
+        }
+        mLastTick = lastTick;
+    }
+
+    /**
+     * Fires the keys in the slot that expire in lastTick or before.
+     */
+    private void expireSlot(int slot, long lastTick, Listener listener) {
+        long[] keys = mKeys[slot];
+        long[] expiries = mExpiries[slot];
+        int size = mSizes[slot];
+
+        int i = 0;
+        while (i < size) {
+            if (expiries[i] / mTick <= lastTick) {
+                long key = keys[i];
+                // swap in the last one; order within a slot does not matter
+                size--;
+                keys[i] = keys[size];
+                expiries[i] = expiries[size];
+                mSize--;
+                listener.onExpired(key);
+            } else {
+                i++;
+            }
+        }
+        mSizes[slot] = size;
+    }
+
+    public void clear() {
+        Arrays.fill(mSizes, 0);
+        mSize = 0;
+    }
+}
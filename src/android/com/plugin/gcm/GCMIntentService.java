@@ -2,7 +2,6 @@ package com.plugin.gcm;
 
 import com.google.android.gcm.GCMBaseIntentService;
 
-import android.content.ContentResolver;
 import android.net.Uri;
 import android.annotation.SuppressLint;
 import android.app.Notification;
@@ -10,9 +9,11 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
-import android.util.Log;
+
 
 @SuppressLint("NewApi")
 public class GCMIntentService extends GCMBaseIntentService {
@@ -25,28 +26,55 @@ public class GCMIntentService extends GCMBaseIntentService {
 
     public static final String MESSAGE = "message";
 
+    // shared by every instance: the IntentService is re-created for each batch of intents
+    private static final NotificationGroups sNotificationGroups =
+            new NotificationGroups(NOTIFICATION_ID);
+
+    // payload keys (or manifest meta-data names, prefixed) that configure alert rate limiting
+    public static final String ALERT_WINDOW = "alertWindow";
+
+    public static final String MAX_ALERTS = "maxAlerts";
+
+    public static final String META_DATA_PREFIX = "com.plugin.gcm.";
+
+    private static NotificationScheduler sNotificationScheduler;
+
+    private static Bundle sManifestMetaData;
+
     public GCMIntentService() {
         super("GCMIntentService");
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AndroidPlatform.configureLogging(this);
+    }
+
     @Override
     public void onRegistered(Context context, String regId) {
-        Log.d(TAG, "onRegistered: " + regId);
+        PushLog.d(TAG, "onRegistered: {}", regId);
         NotificationService.getInstance(context).onRegistered(regId);
     }
 
     @Override
     public void onUnregistered(Context context, String regId) {
-        Log.d(TAG, "onUnregistered - regId: " + regId);
+        PushLog.d(TAG, "onUnregistered - regId: {}", regId);
     }
 
     @Override
     protected void onMessage(Context context, Intent intent) {
+        long start = System.nanoTime();
         boolean isAppInForeground = NotificationService.getInstance(context).isForeground();
 
         Bundle extras = intent.getExtras();
         if (extras != null) {
 
+            // A message GCM delivers again is neither shown nor dispatched a second time
+            if (NotificationService.getInstance(context).isDuplicate(extras)) {
+                return;
+            }
+
             // If in background, create notification to display in notification center
             if (!isAppInForeground) {
                 if (extras.getString(MESSAGE) != null && extras.getString(MESSAGE).length() != 0) {
@@ -55,19 +83,100 @@ public class GCMIntentService extends GCMBaseIntentService {
             }
 
             NotificationService.getInstance(context).onMessage(extras);
+
+            PushMetrics.getInstance().mReceiveLatency.recordSince(start);
         }
     }
 
     public void createNotification(Context context, Bundle extras) {
-        NotificationManager mNotificationManager = (NotificationManager) getSystemService(
+        long when = System.currentTimeMillis();
+        MessageSource message = new AndroidPlatform.BundleMessageSource(extras);
+        NotificationGroups.Group group = sNotificationGroups.add(message, when);
+
+        int notId = NOTIFICATION_ID;
+
+        if (group != null) {
+            notId = group.getNotificationId();
+        } else {
+            try {
+                notId = Integer.parseInt(extras.getString("notId"));
+            } catch (NumberFormatException e) {
+                PushLog.e(TAG, "Number format exception - Error parsing Notification ID: {}",
+                        e.getMessage());
+            } catch (Exception e) {
+                PushLog.e(TAG, "Number format exception - Error parsing Notification ID{}", e.getMessage());
+            }
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        getNotificationScheduler(applicationContext).submit(
+                new NotificationScheduler.Post(notId, message, group, when),
+                getConfigLong(applicationContext, extras, ALERT_WINDOW,
+                        NotificationScheduler.DEFAULT_ALERT_WINDOW),
+                (int) getConfigLong(applicationContext, extras, MAX_ALERTS,
+                        NotificationScheduler.DEFAULT_MAX_ALERTS));
+    }
+
+    private static synchronized NotificationScheduler getNotificationScheduler(
+            Context context) {
+        if (sNotificationScheduler == null) {
+            sNotificationScheduler = new NotificationScheduler(
+                    new AndroidPlatform.AndroidSystemNotifier(context),
+                    AndroidPlatform.AndroidClock.INSTANCE);
+        }
+        return sNotificationScheduler;
+    }
+
+    /**
+     * Reads a scheduler setting from the message payload, falling back to the application's
+     * manifest meta-data (com.plugin.gcm.alertWindow / com.plugin.gcm.maxAlerts) and then to the
+     * default value.
+     */
+    private static long getConfigLong(Context context, Bundle extras, String key,
+            long defaultValue) {
+        String value = extras.getString(key);
+        if (value == null) {
+            Bundle metaData = getManifestMetaData(context);
+            Object metaValue = metaData != null ? metaData.get(META_DATA_PREFIX + key) : null;
+            value = metaValue != null ? metaValue.toString() : null;
+        }
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                PushLog.e(TAG, "Invalid value for {}: {}", key, value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static synchronized Bundle getManifestMetaData(Context context) {
+        if (sManifestMetaData == null) {
+            try {
+                ApplicationInfo info = context.getPackageManager().getApplicationInfo(
+                        context.getPackageName(), PackageManager.GET_META_DATA);
+                sManifestMetaData = info.metaData != null ? info.metaData : new Bundle();
+            } catch (PackageManager.NameNotFoundException e) {
+                sManifestMetaData = new Bundle();
+            }
+        }
+        return sManifestMetaData;
+    }
+
+    static void postNotification(Context context, NotificationScheduler.Post post,
+            boolean alert) {
+        Bundle extras = ((AndroidPlatform.BundleMessageSource) post.getExtras()).getBundle();
+        NotificationGroups.Group group = post.getGroup();
+
+        NotificationManager mNotificationManager = (NotificationManager) context.getSystemService(
                 Context.NOTIFICATION_SERVICE);
-        String appName = getAppName(this);
+        String appName = getAppName(context);
 
-        Intent notificationIntent = new Intent(this, PushHandlerActivity.class);
+        Intent notificationIntent = new Intent(context, PushHandlerActivity.class);
         notificationIntent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
         notificationIntent.putExtra("pushBundle", extras);
 
-        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent,
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0, notificationIntent,
                 PendingIntent.FLAG_UPDATE_CURRENT);
 
         int defaults = Notification.DEFAULT_ALL;
@@ -85,45 +194,32 @@ public class GCMIntentService extends GCMBaseIntentService {
                         //.setDefaults(defaults)
                         .setDefaults(~Notification.DEFAULT_SOUND | Notification.DEFAULT_VIBRATE)
                         .setLights(0xFFFF0000,100,3000)  //ignore FF at the start
-                        .setSmallIcon(context.getApplicationInfo().icon)
-                        .setWhen(System.currentTimeMillis())
+                        .setSmallIcon(ResourceCache.getInstance().getIcon(context))
+                        .setWhen(group != null ? group.getWhen() : post.getWhen())
                         .setContentTitle(extras.getString("title"))
                         .setTicker(extras.getString("title"))
                         .setContentIntent(contentIntent)
                         .setAutoCancel(true);
 
-
-        String soundname = null;
-        if (extras.getString("gcm.notification.sound") != null){
-            soundname = extras.getString("gcm.notification.sound");
-            Log.d(TAG, "sound (via gcm): " + soundname);
-
-            // see if we've supplied an iOS style path like "www/sounds/woopwoop.caf"
-            if (soundname.startsWith("www/sounds")){
-
-                Log.d(TAG, "sound has www/sounds in it");
-
-                // ok, we need to pull out the name of the file without suffix for Android
-                String[] wordSplit = soundname.split("/"); // its regex so escape the dot
-
-                String[] fileSplit = wordSplit[2].split("\\."); // its regex so escape the dot, this will leave 'woopwoop.caf' as the second element
-
-                soundname = fileSplit[0]; // it'll be the first element before the dot
-
-                Log.d(TAG, "soundname after splits: " + soundname);
-            }
-
+        if (alert) {
+            PushMetrics.getInstance().mSystemNotificationsPosted.incrementAndGet();
         } else {
-            soundname = extras.getString("sound");
-            Log.d(TAG, "sound: " + soundname);
+            PushMetrics.getInstance().mSystemNotificationsSilent.incrementAndGet();
+            // over the alert budget of a burst: update the notification without sound / vibration
+            mBuilder.setDefaults(0).setOnlyAlertOnce(true);
         }
 
+        String soundname = extras.getString("gcm.notification.sound");
+        if (soundname == null) {
+            soundname = extras.getString("sound");
+        }
 
-        if (soundname != null) {
-            Uri sound = Uri.parse(ContentResolver.SCHEME_ANDROID_RESOURCE
-                        + "://" + context.getPackageName() + "/raw/" + soundname);
-            Log.d(TAG, "Parsed sound is: " + sound.toString());
-            mBuilder.setSound(sound);
+        if (soundname != null && alert) {
+            // iOS style paths like "www/sounds/woopwoop.caf" are resolved by the cache
+            Uri sound = ResourceCache.getInstance().getSoundUri(context, soundname);
+            if (sound != null) {
+                mBuilder.setSound(sound);
+            }
         }
         /*
         Uri sound = Uri.parse("android.resource://" + getPackageName() + "/" + R.raw.notifysnd);
@@ -137,44 +233,60 @@ public class GCMIntentService extends GCMBaseIntentService {
             mBuilder.setContentText("<missing message content>");
         }
 
+        if (group != null && group.getCount() > 1) {
+            applyGroupSummary(mBuilder, group);
+        }
+
         String msgcnt = extras.getString("msgcnt");
         if (msgcnt != null) {
             mBuilder.setNumber(Integer.parseInt(msgcnt));
         }
 
-        int notId = NOTIFICATION_ID;
+        mNotificationManager.notify((String) appName, post.getId(), mBuilder.build());
+
+    }
 
-        try {
-            notId = Integer.parseInt(extras.getString("notId"));
-        } catch (NumberFormatException e) {
-            Log.e(TAG,
-                    "Number format exception - Error parsing Notification ID: " + e.getMessage());
-        } catch (Exception e) {
-            Log.e(TAG, "Number format exception - Error parsing Notification ID" + e.getMessage());
+    /**
+     * Turns the notification into the summary of its group: the latest messages as inbox lines
+     * and the number of messages in the group.
+     */
+    private static void applyGroupSummary(NotificationCompat.Builder builder,
+            NotificationGroups.Group group) {
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        for (String line : group.getLines()) {
+            style.addLine(line);
         }
 
-        mNotificationManager.notify((String) appName, notId, mBuilder.build());
+        int more = group.getCount() - group.getLines().size();
+        if (more > 0) {
+            style.setSummaryText("+" + more + " more");
+        }
 
+        builder.setStyle(style).setNumber(group.getCount());
     }
 
     public static void cancelNotification(Context context) {
         NotificationManager mNotificationManager = (NotificationManager) context.getSystemService(
                 Context.NOTIFICATION_SERVICE);
         mNotificationManager.cancel((String) getAppName(context), NOTIFICATION_ID);
+        clearNotificationGroups();
     }
 
-    private static String getAppName(Context context) {
-        CharSequence appName =
-                context
-                        .getPackageManager()
-                        .getApplicationLabel(context.getApplicationInfo());
+    /**
+     * Starts the groups over. Call when the notifications are removed from the notification
+     * center.
+     */
+    public static void clearNotificationGroups() {
+        sNotificationGroups.clear();
+    }
 
-        return (String) appName;
+    private static String getAppName(Context context) {
+        return ResourceCache.getInstance().getAppName(context);
     }
 
     @Override
     public void onError(Context context, String errorId) {
-        Log.e(TAG, "onError - errorId: " + errorId);
+        PushLog.e(TAG, "onError - errorId: {}", errorId);
     }
 
 }
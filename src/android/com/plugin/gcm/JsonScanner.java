@@ -0,0 +1,224 @@
+package com.plugin.gcm;
+
+/**
+ * Json Scanner - Checks that a string is strict JSON without building anything, so payload values
+ * that already are JSON can be embedded in the notification as they are.
+ *
+ * org.json is more lenient (unquoted keys, single quotes, trailing garbage ...). Values it accepts
+ * but this scanner does not are normalized through org.json instead, see LazyNotification.
+ */
+class JsonScanner {
+
+    // deeper values are left to org.json
+    private static final int MAX_DEPTH = 64;
+
+    private static final int INVALID = -1;
+
+    private JsonScanner() {
+    }
+
+    /**
+     * @return true if the whole string is a single strict JSON value
+     */
+    public static boolean isValid(String json) {
+        int position = scanValue(json, skipWhitespace(json, 0), 0);
+        return position != INVALID && skipWhitespace(json, position) == json.length();
+    }
+
+    private static int skipWhitespace(String json, int position) {
+        int length = json.length();
+        while (position < length) {
+            char c = json.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return the position after the value, or INVALID
+     */
+    private static int scanValue(String json, int position, int depth) {
+        if (position >= json.length() || depth > MAX_DEPTH) {
+            return INVALID;
+        }
+
+        char c = json.charAt(position);
+        switch (c) {
+            case '{':
+                return scanObject(json, position + 1, depth + 1);
+            case '[':
+                return scanArray(json, position + 1, depth + 1);
+            case '"':
+                return scanString(json, position + 1);
+            case 't':
+                return scanLiteral(json, position, "true");
+            case 'f':
+                return scanLiteral(json, position, "false");
+            case 'n':
+                return scanLiteral(json, position, "null");
+            default:
+                return scanNumber(json, position);
+        }
+    }
+
+    private static int scanObject(String json, int position, int depth) {
+        position = skipWhitespace(json, position);
+        if (position < json.length() && json.charAt(position) == '}') {
+            return position + 1;
+        }
+
+        while (true) {
+            if (position >= json.length() || json.charAt(position) != '"') {
+                return INVALID;
+            }
+            position = scanString(json, position + 1);
+            if (position == INVALID) {
+                return INVALID;
+            }
+
+            position = skipWhitespace(json, position);
+            if (position >= json.length() || json.charAt(position) != ':') {
+                return INVALID;
+            }
+
+            position = scanValue(json, skipWhitespace(json, position + 1), depth);
+            if (position == INVALID) {
+                return INVALID;
+            }
+
+            position = skipWhitespace(json, position);
+            if (position >= json.length()) {
+                return INVALID;
+            }
+            char c = json.charAt(position);
+            if (c == '}') {
+                return position + 1;
+            }
+            if (c != ',') {
+                return INVALID;
+            }
+            position = skipWhitespace(json, position + 1);
+        }
+    }
+
+    private static int scanArray(String json, int position, int depth) {
+        position = skipWhitespace(json, position);
+        if (position < json.length() && json.charAt(position) == ']') {
+            return position + 1;
+        }
+
+        while (true) {
+            position = scanValue(json, position, depth);
+            if (position == INVALID) {
+                return INVALID;
+            }
+
+            position = skipWhitespace(json, position);
+            if (position >= json.length()) {
+                return INVALID;
+            }
+            char c = json.charAt(position);
+            if (c == ']') {
+                return position + 1;
+            }
+            if (c != ',') {
+                return INVALID;
+            }
+            position = skipWhitespace(json, position + 1);
+        }
+    }
+
+    /**
+     * @param position just after the opening quote
+     */
+    private static int scanString(String json, int position) {
+        int length = json.length();
+        while (position < length) {
+            char c = json.charAt(position++);
+            if (c == '"') {
+                return position;
+            }
+            if (c < 0x20) {
+                return INVALID;
+            }
+            if (c == '\\') {
+                if (position >= length) {
+                    return INVALID;
+                }
+                char escaped = json.charAt(position++);
+                if (escaped == 'u') {
+                    if (position + 4 > length) {
+                        return INVALID;
+                    }
+                    for (int i = 0; i < 4; i++) {
+                        if (Character.digit(json.charAt(position++), 16) < 0) {
+                            return INVALID;
+                        }
+                    }
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    return INVALID;
+                }
+            }
+        }
+        return INVALID;
+    }
+
+    private static int scanLiteral(String json, int position, String literal) {
+        return json.startsWith(literal, position) ? position + literal.length() : INVALID;
+    }
+
+    private static int scanNumber(String json, int position) {
+        int length = json.length();
+
+        if (position < length && json.charAt(position) == '-') {
+            position++;
+        }
+
+        // int: 0 or a digit 1-9 followed by digits
+        if (position >= length || !isDigit(json.charAt(position))) {
+            return INVALID;
+        }
+        if (json.charAt(position) == '0') {
+            position++;
+        } else {
+            position = skipDigits(json, position);
+        }
+
+        // fraction
+        if (position < length && json.charAt(position) == '.') {
+            position++;
+            if (position >= length || !isDigit(json.charAt(position))) {
+                return INVALID;
+            }
+            position = skipDigits(json, position);
+        }
+
+        // exponent
+        if (position < length && (json.charAt(position) == 'e' || json.charAt(position) == 'E')) {
+            position++;
+            if (position < length && (json.charAt(position) == '+' || json.charAt(position) == '-')) {
+                position++;
+            }
+            if (position >= length || !isDigit(json.charAt(position))) {
+                return INVALID;
+            }
+            position = skipDigits(json, position);
+        }
+
+        return position;
+    }
+
+    private static int skipDigits(String json, int position) {
+        while (position < json.length() && isDigit(json.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,420 @@
+package com.plugin.gcm;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lazy Notification - A received message as it is delivered to JavaScript, without an org.json tree
+ * behind it.
+ *
+ * The bridge JSON is written straight from the raw message values in one pass: payload values that
+ * already are JSON objects / arrays are copied into it as they are (after a strict syntax check)
+ * instead of being parsed and serialized again. The JSON is built once, on first use, after which
+ * the message values are released. A JSONObject is only parsed when something in Java asks for
+ * one (toJSONObject()).
+ *
+ * The JSON has the same content as the notification the plugin always sent:
+ * <pre>
+ * {"from": .., "collapse_key": .., "message": .., "msgcnt": .., "sound": ..,
+ *  "payload": {every string value of the message},
+ *  "foreground": .., "coldstart": .., "timestamp": .., "uuid": ..}
+ * </pre>
+ */
+class LazyNotification {
+
+    private static String TAG = "PushPlugin-LazyNotification";
+
+    private static final int KEY_KIND_PAYLOAD = 0;
+
+    private static final int KEY_KIND_SYSTEM = 1;
+
+    private static final int KEY_KIND_COLDSTART = 2;
+
+    private static final int KEY_KIND_LEGACY = 3;
+
+    private static final int KEY_KIND_SOUND = 4;
+
+    // how each message key is handled, so a key is classified with one lookup
+    private static final Map<String, Integer> KEY_KINDS = new HashMap<String, Integer>();
+
+    static {
+        KEY_KINDS.put(NotificationDispatcher.FROM, KEY_KIND_SYSTEM);
+        KEY_KINDS.put(NotificationDispatcher.COLLAPSE_KEY, KEY_KIND_SYSTEM);
+        KEY_KINDS.put(NotificationDispatcher.COLDSTART, KEY_KIND_COLDSTART);
+        KEY_KINDS.put(NotificationDispatcher.MESSAGE, KEY_KIND_LEGACY);
+        KEY_KINDS.put(NotificationDispatcher.MSGCNT, KEY_KIND_LEGACY);
+        KEY_KINDS.put(NotificationDispatcher.SOUNDNAMEGCM, KEY_KIND_SOUND);
+        KEY_KINDS.put(NotificationDispatcher.SOUNDNAMEALT, KEY_KIND_SOUND);
+        KEY_KINDS.put(NotificationDispatcher.SOUNDNAME, KEY_KIND_SOUND);
+    }
+
+    // released once the JSON is built
+    private MessageSource mExtras;
+
+    private final boolean mForeground;
+
+    private final boolean mColdstart;
+
+    private final String mTimeStamp;
+
+    private final String mUuid;
+
+    private final int mPriority;
+
+    // ms, 0 if the notification does not expire
+    private final long mExpiresAt;
+
+    // null if the notification does not replace older ones
+    private final String mCollapseKey;
+
+    private String mJSON;
+
+    /**
+     * @param receivedAt when the message was received (ms), the start of its time to live
+     */
+    LazyNotification(MessageSource extras, boolean foreground, boolean coldstart,
+            long receivedAt, String uuid) {
+        this(extras, foreground, coldstart, NotificationDispatcher.getTimeStamp(receivedAt), uuid,
+                NotificationPriority.fromMessage(extras), getExpiresAt(receivedAt,
+                        getTimeToLive(extras.get(NotificationDispatcher.EXPIRES_AFTER),
+                                extras.get(NotificationDispatcher.TIME_TO_LIVE))),
+                getCollapseKey(extras.get(NotificationDispatcher.COLLAPSE_TAG),
+                        extras.get(NotificationDispatcher.COLLAPSE_KEY)));
+    }
+
+    private LazyNotification(MessageSource extras, boolean foreground, boolean coldstart,
+            String timeStamp, String uuid, int priority, long expiresAt, String collapseKey) {
+        mExtras = extras;
+        mForeground = foreground;
+        mColdstart = coldstart;
+        mTimeStamp = timeStamp;
+        mUuid = uuid;
+        mPriority = priority;
+        mExpiresAt = expiresAt;
+        mCollapseKey = collapseKey;
+    }
+
+    /**
+     * Wraps a notification serialized earlier, e.g. one read back from the journal.
+     */
+    public static LazyNotification fromJSON(String json) throws JSONException {
+        JSONObject notification = new JSONObject(json);
+        JSONObject payload = notification.optJSONObject(NotificationDispatcher.PAYLOAD);
+        String timeStamp = notification.optString(NotificationDispatcher.TIMESTAMP, null);
+
+        // the time stamp only has minutes, so a replayed notification may expire up to a
+        // minute early
+        long expiresAt = 0;
+        if (payload != null && timeStamp != null) {
+            try {
+                expiresAt = getExpiresAt(NotificationDispatcher.parseTimeStamp(timeStamp),
+                        getTimeToLive(payload.opt(NotificationDispatcher.EXPIRES_AFTER),
+                                payload.opt(NotificationDispatcher.TIME_TO_LIVE)));
+            } catch (ParseException e) {
+                PushLog.w(TAG, "fromJSON: invalid time stamp: {}", timeStamp);
+            }
+        }
+
+        LazyNotification lazyNotification = new LazyNotification(null,
+                notification.optBoolean(NotificationDispatcher.FOREGROUND, true),
+                notification.optBoolean(NotificationDispatcher.COLDSTART, false),
+                timeStamp,
+                notification.optString(NotificationDispatcher.KEY_UUID, null),
+                NotificationPriority.fromPayload(payload), expiresAt,
+                getCollapseKey(payload != null ? payload.opt(NotificationDispatcher.COLLAPSE_TAG)
+                        : null, notification.opt(NotificationDispatcher.COLLAPSE_KEY)));
+        lazyNotification.mJSON = json;
+        return lazyNotification;
+    }
+
+    /**
+     * @param expiresAfter ADM style time to live (s), wins over timeToLive
+     * @param timeToLive   GCM time_to_live (s)
+     * @return the time to live (ms), 0 if neither is set or valid
+     */
+    static long getTimeToLive(Object expiresAfter, Object timeToLive) {
+        Object value = expiresAfter != null ? expiresAfter : timeToLive;
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            long seconds = value instanceof Number ? ((Number) value).longValue()
+                    : Long.parseLong(value.toString().trim());
+            return seconds > 0 ? seconds * 1000 : 0;
+        } catch (NumberFormatException e) {
+            PushLog.w(TAG, "getTimeToLive: invalid time to live: {}", value);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the tag if there is one, otherwise the collapse_key unless it is GCM's
+     * do_not_collapse; null if the notification does not replace older ones
+     */
+    static String getCollapseKey(Object tag, Object collapseKey) {
+        if (tag != null && tag.toString().length() > 0) {
+            return NotificationDispatcher.COLLAPSE_TAG + ":" + tag;
+        }
+        if (collapseKey != null && collapseKey.toString().length() > 0
+                && !NotificationDispatcher.DO_NOT_COLLAPSE.equals(collapseKey.toString())) {
+            return NotificationDispatcher.COLLAPSE_KEY + ":" + collapseKey;
+        }
+        return null;
+    }
+
+    private static long getExpiresAt(long receivedAt, long timeToLive) {
+        return timeToLive > 0 ? receivedAt + timeToLive : 0;
+    }
+
+    public boolean isForeground() {
+        return mForeground;
+    }
+
+    public boolean isColdstart() {
+        return mColdstart;
+    }
+
+    public String getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    public String getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * @return one of the NotificationPriority levels
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return the key of the notifications this one replaces, null if it does not replace any
+     */
+    public String getCollapseKey() {
+        return mCollapseKey;
+    }
+
+    /**
+     * @return when the notification expires (ms, wall clock), 0 if it does not
+     */
+    public long getExpiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * @return the notification as it is sent to JavaScript
+     */
+    public synchronized String toJSONString() {
+        if (mJSON == null) {
+            mJSON = write(mExtras);
+            mExtras = null;
+        }
+        return mJSON;
+    }
+
+    /**
+     * Parses the notification. Every call returns a new object, so callers may change it.
+     */
+    public JSONObject toJSONObject() throws JSONException {
+        return new JSONObject(toJSONString());
+    }
+
+    @Override
+    public String toString() {
+        return toJSONString();
+    }
+
+    private String write(MessageSource extras) {
+        StringBuilder json = new StringBuilder(256);
+        json.append('{');
+
+        // top level copies of the system, legacy and sound keys
+        Object sound = null;
+        for (String key : extras.keySet()) {
+            switch (getKeyKind(key)) {
+                case KEY_KIND_SYSTEM:
+                case KEY_KIND_LEGACY:
+                    appendMember(json, key, extras.get(key));
+                    break;
+                case KEY_KIND_SOUND:
+                    // the key name would be like 'gcm.notification.sound', the last one wins
+                    sound = extras.get(key);
+                    break;
+                default:
+                    break;
+            }
+        }
+        appendMember(json, NotificationDispatcher.SOUNDNAMEALT, sound);
+
+        appendKey(json, NotificationDispatcher.PAYLOAD);
+        json.append('{');
+        int payloadStart = json.length();
+        for (String key : extras.keySet()) {
+            Object value = extras.get(key);
+            if (!(value instanceof String)) {
+                continue;
+            }
+            String strValue = (String) value;
+
+            int kind = getKeyKind(key);
+            if (kind == KEY_KIND_SYSTEM || kind == KEY_KIND_COLDSTART) {
+                continue;
+            }
+
+            // keys also copied to the top level are only in the payload if they hold JSON
+            boolean onTopLevel = kind == KEY_KIND_LEGACY
+                    || (kind == KEY_KIND_SOUND && NotificationDispatcher.SOUNDNAMEALT.equals(key));
+            if (onTopLevel && !isJSONLike(strValue)) {
+                continue;
+            }
+
+            if (json.length() > payloadStart) {
+                json.append(',');
+            }
+            appendQuoted(json, key);
+            json.append(':');
+            appendPayloadValue(json, key, strValue);
+        }
+        json.append('}');
+
+        appendKey(json, NotificationDispatcher.FOREGROUND);
+        json.append(mForeground);
+        appendKey(json, NotificationDispatcher.COLDSTART);
+        json.append(mColdstart);
+        appendMember(json, NotificationDispatcher.TIMESTAMP, mTimeStamp);
+        appendMember(json, NotificationDispatcher.KEY_UUID, mUuid);
+
+        json.append('}');
+        return json.toString();
+    }
+
+    private static int getKeyKind(String key) {
+        Integer kind = KEY_KINDS.get(key);
+        return kind != null ? kind : KEY_KIND_PAYLOAD;
+    }
+
+    private static boolean isJSONLike(String value) {
+        return value.startsWith(NotificationDispatcher.JSON_START_PREFIX)
+                || value.startsWith(NotificationDispatcher.JSON_ARRAY_START_PREFIX);
+    }
+
+    /**
+     * Strings that look like a JSON object or array are embedded as JSON, everything else as a
+     * string. Strict JSON is copied as is; what only org.json accepts (unquoted keys, single
+     * quotes, ...) is normalized by it, and only what org.json rejects too stays a string, the
+     * same as when the notification was built as an org.json tree.
+     */
+    private static void appendPayloadValue(StringBuilder json, String key, String value) {
+        boolean object = value.startsWith(NotificationDispatcher.JSON_START_PREFIX)
+                && value.endsWith(NotificationDispatcher.JSON_END_SUFFIX);
+        boolean array = value.startsWith(NotificationDispatcher.JSON_ARRAY_START_PREFIX)
+                && value.endsWith(NotificationDispatcher.JSON_ARRAY_END_SUFFIX);
+
+        if (object || array) {
+            if (JsonScanner.isValid(value)) {
+                json.append(value);
+                return;
+            }
+
+            // not strict JSON, but org.json may still accept it
+            try {
+                json.append(object ? new JSONObject(value).toString()
+                        : new JSONArray(value).toString());
+                return;
+            } catch (JSONException e) {
+                PushLog.w(TAG, "appendPayloadValue: invalid JSON in key: {}", key);
+            }
+        }
+
+        appendQuoted(json, value);
+    }
+
+    private static void appendKey(StringBuilder json, String key) {
+        // every member but the first follows another one
+        if (json.charAt(json.length() - 1) != '{') {
+            json.append(',');
+        }
+        appendQuoted(json, key);
+        json.append(':');
+    }
+
+    /**
+     * Appends "key":value, or nothing if the value is null.
+     */
+    private static void appendMember(StringBuilder json, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+
+        appendKey(json, key);
+        if (value instanceof Boolean || value instanceof Integer || value instanceof Long) {
+            json.append(value);
+        } else if (value instanceof Number && isFinite((Number) value)) {
+            json.append(value);
+        } else {
+            appendQuoted(json, value.toString());
+        }
+    }
+
+    private static boolean isFinite(Number number) {
+        double value = number.doubleValue();
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * Appends the string as a JSON string, escaped like org.json does.
+     */
+    static void appendQuoted(StringBuilder json, String value) {
+        json.append('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String escaped;
+            switch (c) {
+                case '"':
+                    escaped = "\\\"";
+                    break;
+                case '\\':
+                    escaped = "\\\\";
+                    break;
+                case '/':
+                    escaped = "\\/";
+                    break;
+                case '\t':
+                    escaped = "\\t";
+                    break;
+                case '\b':
+                    escaped = "\\b";
+                    break;
+                case '\n':
+                    escaped = "\\n";
+                    break;
+                case '\r':
+                    escaped = "\\r";
+                    break;
+                case '\f':
+                    escaped = "\\f";
+                    break;
+                default:
+                    if (c > 0x1f) {
+                        continue;
+                    }
+                    escaped = String.format("\\u%04x", (int) c);
+                    break;
+            }
+            json.append(value, start, i).append(escaped);
+            start = i + 1;
+        }
+        json.append(value, start, length);
+        json.append('"');
+    }
+}
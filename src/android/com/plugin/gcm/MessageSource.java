@@ -0,0 +1,24 @@
+package com.plugin.gcm;
+
+import java.util.Set;
+
+/**
+ * Message Source - The key/value data of one received push message (the GCM intent extras on
+ * Android).
+ */
+interface MessageSource {
+
+    Set<String> keySet();
+
+    Object get(String key);
+
+    /**
+     * @return the value if it is a String, null otherwise
+     */
+    String getString(String key);
+
+    /**
+     * @return the value if it is a Boolean, false otherwise
+     */
+    boolean getBoolean(String key);
+}
@@ -0,0 +1,230 @@
+package com.plugin.gcm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notification Batcher - Coalesces the notifications sent to one callback into a single JSON array
+ * result, so that a burst of messages costs one bridge crossing instead of one per message.
+ *
+ * A batch is sent when it reaches the maximum size or when the batch window that started with its
+ * first notification closes, whichever comes first. Urgent (high priority) notifications go ahead
+ * of the others in the batch and the caller sends the batch right away, see addUrgent().
+ *
+ * A notification only counts as delivered once its batch is sent: until then
+ * getFirstPendingSequence() holds back the sequence the owner acknowledges. When the window closes
+ * the batch is sent on the owner's executor (the web view's dispatch queue), not on the scheduler
+ * thread, so it stays in order with the other deliveries to the web view.
+ */
+class NotificationBatcher {
+
+    private static String TAG = "PushPlugin-NotificationBatcher";
+
+    public static final long DEFAULT_WINDOW = 250;
+
+    public static final int DEFAULT_MAX_SIZE = 50;
+
+    private final ScheduledExecutorService mScheduler;
+
+    private final Executor mExecutor;
+
+    private final long mWindow;
+
+    private final int mMaxSize;
+
+    private CallbackSink mCallBack;
+
+    // serialized notifications
+    private List<String> mPending;
+
+    // System.nanoTime() when each pending notification was stored, in the order of mPending
+    private long[] mAddedNanos = new long[0];
+
+    // urgent notifications are at the front of mPending
+    private int mUrgentCount;
+
+    // lowest sequence in the batch, Long.MAX_VALUE when empty. Written under this, but only
+    // cleared once the batch was sent, and read without the lock so acknowledging never waits
+    // for a slow bridge.
+    private volatile long mFirstPendingSequence = Long.MAX_VALUE;
+
+    private ScheduledFuture<?> mFlushTask;
+
+    // the window of the current batch closed, its flush is queued on mExecutor
+    private boolean mWindowClosed;
+
+    private final Runnable mWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onWindowClosed();
+        }
+    };
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushClosed();
+        }
+    };
+
+    /**
+     * @param executor where a batch is sent once its window closed
+     * @param window   how long (ms) to wait for more notifications after the first one of a batch.
+     *                 Defaults to DEFAULT_WINDOW when not positive.
+     * @param maxSize  maximum number of notifications in a batch. Defaults to DEFAULT_MAX_SIZE when
+     *                 not positive.
+     */
+    public NotificationBatcher(ScheduledExecutorService scheduler, Executor executor, long window,
+            int maxSize) {
+        mScheduler = scheduler;
+        mExecutor = executor;
+        mWindow = window > 0 ? window : DEFAULT_WINDOW;
+        mMaxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
+    }
+
+    /**
+     * @return true if the given options ask for batching
+     */
+    public static boolean isEnabled(long window, int maxSize) {
+        return window > 0 || maxSize > 1;
+    }
+
+    /**
+     * @param sequence   store sequence of the notification
+     * @param addedNanos System.nanoTime() when it was stored
+     */
+    public synchronized void add(CallbackSink callBack, long sequence, long addedNanos,
+            String notification) {
+        prepare(callBack, sequence, addedNanos, mPending != null ? mPending.size() : 0);
+
+        mPending.add(notification);
+
+        if (mPending.size() >= mMaxSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds a notification ahead of the non urgent ones already in the batch. The batch is not
+     * sent until flush() is called, so a caller with several urgent notifications can add them
+     * all first and send them in one array.
+     */
+    public synchronized void addUrgent(CallbackSink callBack, long sequence, long addedNanos,
+            String notification) {
+        prepare(callBack, sequence, addedNanos, mPending != null ? mUrgentCount : 0);
+
+        mPending.add(mUrgentCount++, notification);
+    }
+
+    /**
+     * Starts a batch if needed and records the notification about to be inserted at index.
+     */
+    private void prepare(CallbackSink callBack, long sequence, long addedNanos, int index) {
+        if (mPending != null && callBack != mCallBack) {
+            // callback was replaced; what was gathered so far belongs to the old one
+            flush();
+            index = 0;
+        }
+
+        if (mPending == null) {
+            mPending = new ArrayList<String>();
+            mUrgentCount = 0;
+            mCallBack = callBack;
+            mWindowClosed = false;
+            mFlushTask = mScheduler.schedule(mWindowRunnable, mWindow, TimeUnit.MILLISECONDS);
+        }
+
+        int size = mPending.size();
+        if (size == mAddedNanos.length) {
+            mAddedNanos = Arrays.copyOf(mAddedNanos, Math.max(size * 2, 8));
+        }
+        System.arraycopy(mAddedNanos, index, mAddedNanos, index + 1, size - index);
+        mAddedNanos[index] = addedNanos;
+        mFirstPendingSequence = Math.min(mFirstPendingSequence, sequence);
+    }
+
+    /**
+     * @return the lowest sequence that was added but not sent yet, Long.MAX_VALUE if none
+     */
+    public long getFirstPendingSequence() {
+        return mFirstPendingSequence;
+    }
+
+    // on the scheduler thread
+    private synchronized void onWindowClosed() {
+        mFlushTask = null;
+        if (mPending == null) {
+            return;
+        }
+        mWindowClosed = true;
+        try {
+            mExecutor.execute(mFlushRunnable);
+        } catch (RejectedExecutionException e) {
+            // shutting down, send it from here
+            flush();
+        }
+    }
+
+    // on mExecutor; a batch sent in between (full, urgent) already took the closed window along
+    private synchronized void flushClosed() {
+        if (mWindowClosed) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the batch if urgent notifications were added to it.
+     */
+    public synchronized void flushUrgent() {
+        if (mPending != null && mUrgentCount > 0) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        if (mPending == null) {
+            return;
+        }
+
+        if (mFlushTask != null) {
+            mFlushTask.cancel(false);
+            mFlushTask = null;
+        }
+
+        PushLog.v(TAG, "flush() - size: {}", mPending.size());
+
+        mCallBack.sendNotifications(mPending);
+
+        PushMetrics metrics = PushMetrics.getInstance();
+        metrics.mBatchesDelivered.incrementAndGet();
+        metrics.mNotificationsDelivered.addAndGet(mPending.size());
+        for (int i = 0; i < mPending.size(); i++) {
+            metrics.mDeliveryLatency.recordSince(mAddedNanos[i]);
+        }
+
+        mPending = null;
+        mCallBack = null;
+        mWindowClosed = false;
+        mFirstPendingSequence = Long.MAX_VALUE;
+    }
+
+    /**
+     * Drops anything not yet sent, e.g. when the web view goes away.
+     */
+    public synchronized void cancel() {
+        if (mFlushTask != null) {
+            mFlushTask.cancel(false);
+            mFlushTask = null;
+        }
+        mPending = null;
+        mCallBack = null;
+        mWindowClosed = false;
+        mFirstPendingSequence = Long.MAX_VALUE;
+    }
+}
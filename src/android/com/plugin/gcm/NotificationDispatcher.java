@@ -0,0 +1,1178 @@
+package com.plugin.gcm;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Notification Dispatcher - The platform independent core of the NotificationService: turns
+ * received messages into notification JSON, stores and journals them, and delivers them to every
+ * web view that has registered callbacks.
+ *
+ * Everything platform specific comes in through small interfaces (MessageSource, CallbackSink,
+ * SystemNotifier, Clock and AppStateProbe), so the dispatcher also runs on a plain JVM.
+ *
+ * Messages arrive on the GCM IntentService thread while web views register and the app state
+ * changes on the Cordova/UI threads, so all shared state lives in concurrent structures.
+ */
+class NotificationDispatcher {
+
+    private static String TAG = "PushPlugin-NotificationDispatcher";
+
+    public static final String FOREGROUND = "foreground";
+
+    public static final String COLDSTART = "coldstart";
+
+    public static final String FROM = "from";
+
+    public static final String COLLAPSE_KEY = "collapse_key";
+
+    public static final String MESSAGE = "message";
+
+    public static final String MSGCNT = "msgcnt";
+
+    public static final String SOUNDNAME = "soundname";
+
+    public static final String SOUNDNAMEALT = "sound";
+
+    public static final String SOUNDNAMEGCM = "gcm.notification.sound";
+
+    public static final String JSON_START_PREFIX = "{";
+
+    public static final String JSON_ARRAY_START_PREFIX = "[";
+
+    public static final String JSON_END_SUFFIX = "}";
+
+    public static final String JSON_ARRAY_END_SUFFIX = "]";
+
+    public static final String PAYLOAD = "payload";
+
+    public static final String TIMESTAMP = "timestamp";
+
+    public static final String KEY_UUID = "uuid";
+
+    // a newer retained notification with the same tag (or else collapse_key) replaces the older
+    public static final String COLLAPSE_TAG = "tag";
+
+    // the collapse_key GCM gives messages sent without one
+    public static final String DO_NOT_COLLAPSE = "do_not_collapse";
+
+    // time to live (s) of a message, as sent through ADM / GCM
+    public static final String EXPIRES_AFTER = "expiresAfter";
+
+    public static final String TIME_TO_LIVE = "time_to_live";
+
+    public static final long DEFAULT_LOW_PRIORITY_TTL = 60 * 60 * 1000;
+
+    // threads the dispatch queues of all web views share
+    private static final int DISPATCH_THREADS = 2;
+
+    // notifications a web view that is behind keeps once the store evicted them; beyond that the
+    // oldest are dropped, so a web view whose bridge is stuck cannot hold on to everything
+    static final int MAX_CARRIED = 4096;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+
+    private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+            df.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return df;
+        }
+    };
+
+    private static volatile CachedTimeStamp sTimeStamp;
+
+    private static final long UUID_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private static final long UUID_SALT = System.nanoTime() * 0xd1b54a32d192ed03L;
+
+    private static final AtomicLong sUuidState =
+            new AtomicLong(System.currentTimeMillis() ^ Thread.currentThread().getId() << 32);
+
+    private final AppStateProbe mAppStateProbe;
+
+    private final SystemNotifier mSystemNotifier;
+
+    private final Clock mClock;
+
+    private final PushMetrics mMetrics = PushMetrics.getInstance();
+
+    // weak, by identity; iterated for every message, modified only when web views come and go
+    private final WebViewIndex mWebViewIndex = new WebViewIndex();
+
+    private volatile String mRegistrationID = null;
+
+    private final NotificationStore mNotificationStore;
+
+    private final AtomicBoolean mForeground = new AtomicBoolean(false);
+
+    // ms; low priority notifications older than this are not delivered
+    private volatile long mLowPriorityTTL = DEFAULT_LOW_PRIORITY_TTL;
+
+    // null if there is no journal file or it could not be opened
+    private final NotificationJournal mJournal;
+
+    // messages received recently, to drop the ones GCM delivers again
+    private final DuplicateFilter mDuplicateFilter;
+
+    private ScheduledExecutorService mScheduler;
+
+    // runs the DispatchQueues of the web views, guarded by this
+    private ExecutorService mDispatchExecutor;
+
+    // removes expired notifications from the store while some are waiting to expire, guarded by
+    // mSweepLock
+    private ScheduledFuture<?> mSweepTask;
+
+    private final Object mSweepLock = new Object();
+
+    private final Runnable mSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sweepExpired();
+        }
+    };
+
+    // a burst can evict notifications before the dispatch queues get to them; the web views that
+    // have not received them yet keep them for their next flush
+    private final NotificationStore.EvictionListener mEvictionListener =
+            new NotificationStore.EvictionListener() {
+                @Override
+                public void onEvicted(NotificationStore.Entry entry) {
+                    for (WebViewReference webViewReference : mWebViewIndex.getAll()) {
+                        webViewReference.carry(entry);
+                    }
+                }
+            };
+
+    /**
+     * @param journalFile where undelivered notifications are journaled, or null to keep them only
+     *                    in memory
+     * @param filterFile  where the ids of received messages are kept, or null to keep them only in
+     *                    memory
+     */
+    public NotificationDispatcher(File journalFile, File filterFile, AppStateProbe appStateProbe,
+            SystemNotifier systemNotifier, Clock clock) {
+        this(new NotificationStore(), journalFile, filterFile, appStateProbe, systemNotifier,
+                clock);
+    }
+
+    NotificationDispatcher(NotificationStore store, File journalFile, File filterFile,
+            AppStateProbe appStateProbe, SystemNotifier systemNotifier, Clock clock) {
+        mNotificationStore = store;
+        mNotificationStore.setEvictionListener(mEvictionListener);
+        mAppStateProbe = appStateProbe;
+        mSystemNotifier = systemNotifier;
+        mClock = clock;
+
+        mJournal = journalFile != null
+                ? NotificationJournal.open(journalFile, getScheduler())
+                : null;
+        mDuplicateFilter = DuplicateFilter.open(filterFile,
+                filterFile != null ? getScheduler() : null, mClock.currentTimeMillis());
+
+        replayJournal();
+    }
+
+    /**
+     * Puts the notifications that were received but never delivered by a previous process back
+     * into the store, so the first web view that registers its callbacks gets them.
+     */
+    private void replayJournal() {
+        if (mJournal == null) {
+            return;
+        }
+
+        List<NotificationJournal.Record> records = mJournal.readUnacknowledged();
+
+        PushLog.v(TAG, "replayJournal() - undelivered notifications: {}", records.size());
+
+        // the store continues the sequences of the journal and the replayed notifications keep
+        // theirs, so they are acknowledged in place and the journal is never rewritten (a process
+        // killed while replaying replays them again the next time)
+        long now = mClock.currentTimeMillis();
+        for (NotificationJournal.Record record : records) {
+            try {
+                LazyNotification notification = LazyNotification.fromJSON(record.getJson());
+                if (notification.getExpiresAt() > 0 && now >= notification.getExpiresAt()) {
+                    mMetrics.mNotificationsExpired.incrementAndGet();
+                    continue;
+                }
+                mNotificationStore.skipTo(record.getSequence());
+                mNotificationStore.add(notification, record.getJson().length(),
+                        mClock.elapsedRealtime());
+                if (notification.getExpiresAt() > 0) {
+                    startSweeping();
+                }
+            } catch (JSONException e) {
+                PushLog.e(TAG, "replayJournal: invalid JSON in journal");
+            }
+        }
+        mNotificationStore.skipTo(mJournal.getLastSequence() + 1);
+    }
+
+    public boolean isApplicationRunning() {
+        return mAppStateProbe.isApplicationRunning();
+    }
+
+    /**
+     * Sets the callback that receives the registration id.
+     *
+     * @return true if the device is already registered (and the callback was notified), false if
+     * the caller still has to register the device
+     */
+    public boolean addRegisterCallBack(Object webView, CallbackSink callBack) {
+        WebViewReference webViewReference = getWebViewReference(webView);
+        webViewReference.setRegisterCallBack(callBack);
+
+        if (isRegistered()) {
+            webViewReference.notifyRegistered();
+            return true;
+        }
+        return false;
+    }
+
+    public void addNotificationForegroundCallBack(Object webView, CallbackSink callBack) {
+        WebViewReference webViewReference = getWebViewReference(webView);
+        webViewReference.setNotificationForegroundCallBack(callBack);
+
+        mMetrics.mReplays.incrementAndGet();
+        flushNotificationToWebView(webViewReference);
+        acknowledgeDelivered();
+    }
+
+    public void addNotificationBackgroundCallBack(Object webView, CallbackSink callBack) {
+        WebViewReference webViewReference = getWebViewReference(webView);
+        webViewReference.setNotificationBackgroundCallBack(callBack);
+
+        mMetrics.mReplays.incrementAndGet();
+        flushNotificationToWebView(webViewReference);
+        acknowledgeDelivered();
+    }
+
+    /**
+     * Enables (or disables) batched delivery of notifications for the given web view.
+     *
+     * @param window  how long (ms) to gather notifications before sending them as one array
+     * @param maxSize maximum number of notifications sent in one array
+     */
+    public void setBatching(Object webView, long window, int maxSize) {
+        WebViewReference webViewReference = getWebViewReference(webView);
+        webViewReference.setBatching(getScheduler(), window, maxSize);
+        // the previous batches were sent
+        acknowledgeDelivered();
+    }
+
+    private synchronized ExecutorService getDispatchExecutor() {
+        if (mDispatchExecutor == null) {
+            mDispatchExecutor = Executors.newFixedThreadPool(DISPATCH_THREADS,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, TAG + "-dispatch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return mDispatchExecutor;
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mScheduler;
+    }
+
+    /**
+     * @param ttl how long (ms) low priority notifications are kept for delivery, 0 to keep them
+     *            as long as they are retained
+     */
+    public void setLowPriorityTTL(long ttl) {
+        PushLog.v(TAG, "setLowPriorityTTL() - ttl: {}", ttl);
+        mLowPriorityTTL = Math.max(0, ttl);
+    }
+
+    public void removeWebView(Object webView) {
+        WebViewReference webViewReference = mWebViewIndex.remove(webView);
+        if (webViewReference != null) {
+            webViewReference.destroy();
+
+            PushLog.v(TAG, "removeWebView : {} - remaining web views: {}", webView,
+                    mWebViewIndex.size());
+
+            // the remaining web views may have received everything already
+            acknowledgeDelivered();
+        }
+        expungeCollectedWebViews();
+    }
+
+    private WebViewReference getWebViewReference(Object webView) {
+        expungeCollectedWebViews();
+
+        WebViewReference webViewReference = mWebViewIndex.get(webView);
+        if (webViewReference == null) {
+            synchronized (mWebViewIndex) {
+                webViewReference = mWebViewIndex.get(webView);
+                if (webViewReference == null) {
+                    webViewReference = createWebViewReference(webView);
+                }
+            }
+        }
+        return webViewReference;
+    }
+
+    /**
+     * Destroys the references of the web views that were collected without being removed, e.g.
+     * because their plugin never got onDestroy.
+     */
+    private void expungeCollectedWebViews() {
+        List<WebViewReference> collected = mWebViewIndex.expungeCollected();
+        if (collected == null) {
+            return;
+        }
+
+        for (WebViewReference webViewReference : collected) {
+            webViewReference.destroy();
+        }
+        mMetrics.mWebViewsCollected.addAndGet(collected.size());
+        PushLog.v(TAG, "expungeCollectedWebViews() - collected: {} remaining web views: {}",
+                collected.size(), mWebViewIndex.size());
+
+        acknowledgeDelivered();
+    }
+
+    public void registerWebView(Object webView) {
+        getWebViewReference(webView);
+    }
+
+    public boolean isRegistered() {
+        return mRegistrationID != null;
+    }
+
+    public String getRegistrationID() {
+        return mRegistrationID;
+    }
+
+    private WebViewReference createWebViewReference(Object webView) {
+        WebViewReference webViewReference = new WebViewReference(this, webView,
+                new DispatchQueue(getDispatchExecutor()));
+        mWebViewIndex.put(webView, webViewReference);
+        return webViewReference;
+    }
+
+    public void onRegistered(String regId) {
+        mRegistrationID = regId;
+        notifyRegisteredToAllWebViews();
+    }
+
+    private void notifyRegisteredToAllWebViews() {
+        for (WebViewReference webViewReference : mWebViewIndex.getAll()) {
+            webViewReference.notifyRegistered();
+        }
+    }
+
+    /**
+     * Records the message as received. Call it before anything is done with a message, and drop
+     * the message if it returns true.
+     *
+     * @return true if the message was received before, i.e. GCM delivered it again; always false
+     * for a message without a message id or sent time
+     */
+    public boolean isDuplicate(MessageSource extras) {
+        if (!DuplicateFilter.isIdentifiable(extras)) {
+            return false;
+        }
+        if (mDuplicateFilter.checkAndAdd(DuplicateFilter.getMessageHash(extras),
+                mClock.currentTimeMillis())) {
+            mMetrics.mDuplicatesDropped.incrementAndGet();
+            PushLog.v(TAG, "isDuplicate() - dropping message {}",
+                    extras.get(DuplicateFilter.MESSAGE_ID));
+            return true;
+        }
+        return false;
+    }
+
+    public void onMessage(MessageSource extras) {
+        mMetrics.mMessagesReceived.incrementAndGet();
+
+        long start = System.nanoTime();
+        LazyNotification notification = createNotification(extras);
+        String json = notification.toJSONString();
+        mMetrics.mConvertLatency.recordSince(start);
+
+        PushLog.v(TAG, "onMessage() markv -> isForeground: {} isApplicationRunning {} notification: {}",
+                isForeground(), isApplicationRunning(), json);
+
+        start = System.nanoTime();
+        addNotification(notification, json);
+        mMetrics.mStoreLatency.recordSince(start);
+
+        notifyAllWebViews();
+    }
+
+    /**
+     * Queues a flush on the dispatch queue of every web view; the web views are sent the
+     * notification on the dispatch threads, each at its own pace.
+     */
+    private void notifyAllWebViews() {
+        expungeCollectedWebViews();
+        for (WebViewReference webViewReference : mWebViewIndex.getAll()) {
+            webViewReference.requestFlush();
+        }
+    }
+
+    /**
+     * Runs on the dispatch queue of the web view.
+     */
+    private void dispatchToWebView(WebViewReference webViewReference) {
+        long start = System.nanoTime();
+        flushNotificationToWebView(webViewReference);
+        acknowledgeDelivered();
+        mMetrics.mDispatchLatency.recordSince(start);
+    }
+
+    /**
+     * Tells the journal how far every registered web view has received notifications, and
+     * removes the notifications that every registered web view has consumed from the store.
+     */
+    private void acknowledgeDelivered() {
+        long acknowledged = Long.MAX_VALUE;
+        long consumed = Long.MAX_VALUE;
+        for (WebViewReference webViewReference : mWebViewIndex.getAll()) {
+            acknowledged = Math.min(acknowledged, webViewReference.getDeliveredSequence());
+            consumed = Math.min(consumed, webViewReference.getConsumedSequence());
+        }
+
+        // MAX_VALUE: no web view has a notification callback yet
+        if (mJournal != null && acknowledged != Long.MAX_VALUE) {
+            mJournal.acknowledge(Math.min(acknowledged, mNotificationStore.getLastSequence()));
+        }
+
+        // MAX_VALUE: no web view at all; keep everything for the first one
+        if (consumed != Long.MAX_VALUE && consumed > 0) {
+            int removed = mNotificationStore.removeThrough(consumed);
+            if (removed > 0) {
+                mMetrics.mNotificationsConsumed.addAndGet(removed);
+            }
+        }
+    }
+
+    private void flushNotificationToWebView(WebViewReference webViewReference) {
+        PushLog.v(TAG, "flushNotificationToWebView() - {} -> webViewReference: {}",
+                mNotificationStore, webViewReference);
+
+        mMetrics.mFlushes.incrementAndGet();
+        webViewReference.flushNotifications(mNotificationStore, mLowPriorityTTL, mClock);
+    }
+
+    /**
+     * Stores the notification and journals it before it is dispatched.
+     *
+     * @param json the serialized notification
+     */
+    private void addNotification(LazyNotification notification, String json) {
+        long sequence = mNotificationStore.add(notification, json.length(),
+                mClock.elapsedRealtime());
+        if (notification.getExpiresAt() > 0) {
+            startSweeping();
+        }
+        if (mJournal != null) {
+            mJournal.append(sequence, json);
+        }
+    }
+
+    /**
+     * @param reset whether to start the counters and histograms over after taking the snapshot
+     * @return the metrics snapshot, including the retained notifications and web views
+     */
+    public JSONObject getMetrics(boolean reset) throws JSONException {
+        JSONObject gauges = new JSONObject();
+        gauges.put("retainedNotifications", mNotificationStore.size());
+        gauges.put("retainedBytes", mNotificationStore.getByteCount());
+        gauges.put("webViews", mWebViewIndex.size());
+
+        JSONObject metrics = mMetrics.toJSON(gauges);
+        if (reset) {
+            mMetrics.reset();
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the retained notification with the given uuid, or null if it is not (or no longer)
+     * retained
+     */
+    public JSONObject getNotification(String uuid) {
+        LazyNotification notification = mNotificationStore.get(uuid);
+        if (notification == null) {
+            return null;
+        }
+        try {
+            return notification.toJSONObject();
+        } catch (JSONException e) {
+            PushLog.e(TAG, "getNotification: invalid JSON for uuid: {}", uuid);
+            return null;
+        }
+    }
+
+    LazyNotification createNotification(MessageSource extras) {
+        return new LazyNotification(extras, isForeground(), !isApplicationRunning(),
+                mClock.currentTimeMillis(), generateUUID());
+    }
+
+    /**
+     * Generates a random (version 4 format) UUID. Unlike UUID.randomUUID() this does not go through
+     * SecureRandom: the ids only need to tell messages apart, so a SplitMix64 sequence seeded once
+     * per process is enough and never blocks.
+     */
+    static String generateUUID() {
+        long state = sUuidState.addAndGet(UUID_GAMMA);
+
+        long mostSigBits = mix64(state);
+        long leastSigBits = mix64(state ^ UUID_SALT);
+
+        mostSigBits = (mostSigBits & 0xffffffffffff0fffL) | 0x0000000000004000L; // version 4
+        leastSigBits = (leastSigBits & 0x3fffffffffffffffL) | 0x8000000000000000L; // IETF variant
+
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Timestamps have minute precision, so the formatted value is cached and only re-formatted
+     * when the minute changes.
+     */
+    static String getTimeStamp(long now) {
+        long minute = now / MILLIS_PER_MINUTE;
+
+        CachedTimeStamp cached = sTimeStamp;
+        if (cached == null || cached.mMinute != minute) {
+            cached = new CachedTimeStamp(minute,
+                    TIMESTAMP_FORMAT.get().format(new Date(minute * MILLIS_PER_MINUTE)));
+            sTimeStamp = cached;
+        }
+        return cached.mValue;
+    }
+
+    private void startSweeping() {
+        synchronized (mSweepLock) {
+            if (mSweepTask == null) {
+                long tick = ExpiryWheel.DEFAULT_TICK;
+                mSweepTask = getScheduler().scheduleWithFixedDelay(mSweepRunnable, tick, tick,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Removes the expired notifications from the store, and stops sweeping once no notification
+     * is waiting to expire.
+     */
+    void sweepExpired() {
+        int expired = mNotificationStore.removeExpired(mClock.currentTimeMillis());
+        if (expired > 0) {
+            PushLog.v(TAG, "sweepExpired() - expired: {}", expired);
+            mMetrics.mNotificationsExpired.addAndGet(expired);
+        }
+
+        synchronized (mSweepLock) {
+            // an add after this check starts sweeping again
+            if (mSweepTask != null && mNotificationStore.getExpiringCount() == 0) {
+                mSweepTask.cancel(false);
+                mSweepTask = null;
+            }
+        }
+    }
+
+    /**
+     * @return the start (ms) of the minute of a getTimeStamp() time stamp
+     */
+    static long parseTimeStamp(String timeStamp) throws ParseException {
+        return TIMESTAMP_FORMAT.get().parse(timeStamp).getTime();
+    }
+
+    public void setForeground(boolean foreground) {
+        if (mForeground.getAndSet(foreground) != foreground) {
+            PushLog.v(TAG, "setForeground() -> oldValue: {} newValue: {}", !foreground,
+                    foreground);
+
+            mSystemNotifier.cancelAll();
+        }
+    }
+
+    public boolean isForeground() {
+        return mForeground.get();
+    }
+
+    /**
+     * Forgets the web views and notifications, e.g. when the device unregisters.
+     */
+    public void cleanUp() {
+        PushLog.v(TAG, "Cleaning up");
+
+        mWebViewIndex.clear();
+        mNotificationStore.clear();
+    }
+
+    /**
+     * Forgets the registration and drops everything, including the journal.
+     */
+    public void unRegister() {
+        mRegistrationID = null;
+        cleanUp();
+        if (mJournal != null) {
+            mJournal.clear();
+        }
+    }
+
+    /**
+     * Releases the dispatcher. What was not delivered stays in the journal for the next process.
+     */
+    public void destroy() {
+        cleanUp();
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        mDuplicateFilter.close();
+        synchronized (this) {
+            if (mScheduler != null) {
+                mScheduler.shutdown();
+                mScheduler = null;
+            }
+            if (mDispatchExecutor != null) {
+                mDispatchExecutor.shutdown();
+                mDispatchExecutor = null;
+            }
+        }
+    }
+
+    private static class CachedTimeStamp {
+
+        private final long mMinute;
+
+        private final String mValue;
+
+        CachedTimeStamp(long minute, String value) {
+            mMinute = minute;
+            mValue = value;
+        }
+    }
+
+    static class WebViewReference {
+
+        // weak, like the key in the WebViewIndex; cleared on destroy
+        private volatile WeakReference<Object> mWebView;
+
+        private volatile CallbackSink mRegisterCallBack;
+
+        private volatile CallbackSink mNotificationForegroundCallBack;
+
+        private volatile CallbackSink mNotificationBackgroundCallBack;
+
+        private volatile NotificationDispatcher mNotificationDispatcher;
+
+        private final AtomicBoolean mNotifiedOfRegistered = new AtomicBoolean(false);
+
+        // null unless batching was requested for this web view
+        private volatile NotificationBatcher mForegroundBatcher;
+
+        private volatile NotificationBatcher mBackgroundBatcher;
+
+        // sequence of the last notification sent (or handed to the batcher) through each callback;
+        // written under this, read without it, so acknowledging never waits for a web view that is
+        // busy flushing
+        private volatile long mForegroundSequence = 0;
+
+        private volatile long mBackgroundSequence = 0;
+
+        // null once destroyed
+        private volatile DispatchQueue mDispatchQueue;
+
+        // notifications the store evicted before they were sent to this web view, oldest first,
+        // guarded by itself; the next flush sends them along with the retained ones
+        private final ArrayDeque<NotificationStore.Entry> mCarried =
+                new ArrayDeque<NotificationStore.Entry>();
+
+        // sequence of the first notification dropped from mCarried, 0 if none; it was never sent
+        // to this web view, so the journal keeps it
+        private volatile long mDroppedSequence = 0;
+
+        // a flush is queued and has not started yet, so another request can be dropped
+        private final AtomicBoolean mFlushPending = new AtomicBoolean(false);
+
+        // sends the batches whose window closed on the dispatch queue, then acknowledges them
+        private final Executor mBatchExecutor = new Executor() {
+            @Override
+            public void execute(final Runnable flush) {
+                DispatchQueue dispatchQueue = mDispatchQueue;
+                if (dispatchQueue == null) {
+                    return;
+                }
+                dispatchQueue.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush.run();
+                        NotificationDispatcher notificationDispatcher = mNotificationDispatcher;
+                        if (notificationDispatcher != null) {
+                            notificationDispatcher.acknowledgeDelivered();
+                        }
+                    }
+                });
+            }
+        };
+
+        private final Runnable mFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mFlushPending.set(false);
+                NotificationDispatcher notificationDispatcher = mNotificationDispatcher;
+                if (notificationDispatcher != null) {
+                    notificationDispatcher.dispatchToWebView(WebViewReference.this);
+                }
+            }
+        };
+
+        public WebViewReference(NotificationDispatcher notificationDispatcher, Object webView,
+                DispatchQueue dispatchQueue) {
+            mNotificationDispatcher = notificationDispatcher;
+            mWebView = new WeakReference<Object>(webView);
+            mDispatchQueue = dispatchQueue;
+        }
+
+        /**
+         * Queues a flush of the retained notifications on the dispatch queue of this web view,
+         * unless one is queued already (it will send everything that is retained or carried by the
+         * time it runs).
+         */
+        public void requestFlush() {
+            DispatchQueue dispatchQueue = mDispatchQueue;
+            if (dispatchQueue != null && mFlushPending.compareAndSet(false, true)) {
+                dispatchQueue.execute(mFlushRunnable);
+            }
+        }
+
+        public void destroy() {
+            mWebView = null;
+            mDispatchQueue = null;
+            mRegisterCallBack = null;
+            mNotificationForegroundCallBack = null;
+            mNotificationBackgroundCallBack = null;
+            mNotificationDispatcher = null;
+            synchronized (mCarried) {
+                mCarried.clear();
+            }
+
+            NotificationBatcher foregroundBatcher = mForegroundBatcher;
+            NotificationBatcher backgroundBatcher = mBackgroundBatcher;
+            mForegroundBatcher = null;
+            mBackgroundBatcher = null;
+            if (foregroundBatcher != null) {
+                foregroundBatcher.cancel();
+            }
+            if (backgroundBatcher != null) {
+                backgroundBatcher.cancel();
+            }
+        }
+
+        public synchronized void setBatching(ScheduledExecutorService scheduler, long window,
+                int maxSize) {
+            PushLog.v(TAG, "setBatching() - window: {} maxSize: {} webview: {}", window, maxSize,
+                    getWebView());
+
+            // send whatever the previous settings gathered before switching
+            if (mForegroundBatcher != null) {
+                mForegroundBatcher.flush();
+            }
+            if (mBackgroundBatcher != null) {
+                mBackgroundBatcher.flush();
+            }
+
+            if (NotificationBatcher.isEnabled(window, maxSize)) {
+                mForegroundBatcher = new NotificationBatcher(scheduler, mBatchExecutor, window,
+                        maxSize);
+                mBackgroundBatcher = new NotificationBatcher(scheduler, mBatchExecutor, window,
+                        maxSize);
+            } else {
+                mForegroundBatcher = null;
+                mBackgroundBatcher = null;
+            }
+        }
+
+        /**
+         * @return the sequence up to which this web view is done with the retained notifications:
+         * each of them was either sent to it or is in a lane it has since moved past. 0 until
+         * notifications were flushed to it.
+         */
+        public long getConsumedSequence() {
+            return Math.min(mForegroundSequence, mBackgroundSequence);
+        }
+
+        public boolean hasNotifiedOfRegistered() {
+            return mNotifiedOfRegistered.get();
+        }
+
+        public void setNotifiedOfRegistered(boolean notifiedOfRegistered) {
+            mNotifiedOfRegistered.set(notifiedOfRegistered);
+        }
+
+        /**
+         * @return the web view, null once it was destroyed or collected
+         */
+        public Object getWebView() {
+            WeakReference<Object> webView = mWebView;
+            return webView != null ? webView.get() : null;
+        }
+
+        /**
+         * @return the lowest sequence delivered through any of the notification callbacks that are
+         * set, i.e. everything after it may still need to be sent, and never one that is waiting in
+         * a batch or was dropped before it was sent. Long.MAX_VALUE if no notification callback is
+         * set.
+         */
+        public long getDeliveredSequence() {
+            long sequence = Long.MAX_VALUE;
+            if (mNotificationForegroundCallBack != null) {
+                sequence = Math.min(sequence,
+                        getLaneDelivered(mForegroundSequence, mForegroundBatcher));
+            }
+            if (mNotificationBackgroundCallBack != null) {
+                sequence = Math.min(sequence,
+                        getLaneDelivered(mBackgroundSequence, mBackgroundBatcher));
+            }
+            long dropped = mDroppedSequence;
+            if (dropped > 0) {
+                sequence = Math.min(sequence, dropped - 1);
+            }
+            return sequence;
+        }
+
+        /**
+         * @param cursor read before the batcher: a notification is in the batch before the cursor
+         *               moves past it
+         */
+        private static long getLaneDelivered(long cursor, NotificationBatcher batcher) {
+            return batcher != null
+                    ? Math.min(cursor, batcher.getFirstPendingSequence() - 1)
+                    : cursor;
+        }
+
+        /**
+         * @return the lowest cursor of the notification callbacks that are set, Long.MAX_VALUE if
+         * none is set
+         */
+        private long getFlushedSequence() {
+            long sequence = Long.MAX_VALUE;
+            if (mNotificationForegroundCallBack != null) {
+                sequence = Math.min(sequence, mForegroundSequence);
+            }
+            if (mNotificationBackgroundCallBack != null) {
+                sequence = Math.min(sequence, mBackgroundSequence);
+            }
+            return sequence;
+        }
+
+        /**
+         * Keeps a notification the store is evicting if this web view has a callback for it and
+         * has not received it yet. Called with the store's write lock held, so it never waits for a
+         * flush.
+         */
+        public void carry(NotificationStore.Entry entry) {
+            boolean foreground = entry.isForeground();
+            CallbackSink callBack = foreground
+                    ? mNotificationForegroundCallBack
+                    : mNotificationBackgroundCallBack;
+            if (callBack == null || mDispatchQueue == null
+                    || entry.getSequence() <= getLaneSequence(foreground)) {
+                return;
+            }
+
+            NotificationStore.Entry dropped;
+            synchronized (mCarried) {
+                dropped = mCarried.size() >= MAX_CARRIED ? mCarried.poll() : null;
+                mCarried.add(entry);
+
+                // it may have been sent from the store since it was carried
+                if (dropped != null
+                        && dropped.getSequence() <= getLaneSequence(dropped.isForeground())) {
+                    dropped = null;
+                }
+                if (dropped != null && mDroppedSequence == 0) {
+                    mDroppedSequence = dropped.getSequence();
+                }
+            }
+
+            if (dropped != null) {
+                PushMetrics.getInstance().mNotificationsDropped.incrementAndGet();
+                PushLog.w(TAG, "carry() - web view too far behind, dropped notification: {}",
+                        dropped.getSequence());
+            }
+        }
+
+        private long getLaneSequence(boolean foreground) {
+            return foreground ? mForegroundSequence : mBackgroundSequence;
+        }
+
+        /**
+         * @return the carried notifications after the given sequence, oldest first
+         */
+        private List<NotificationStore.Entry> takeCarried(long sequence) {
+            List<NotificationStore.Entry> carried;
+            synchronized (mCarried) {
+                if (mCarried.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                carried = new ArrayList<NotificationStore.Entry>(mCarried.size());
+                for (NotificationStore.Entry entry : mCarried) {
+                    if (entry.getSequence() > sequence) {
+                        carried.add(entry);
+                    }
+                }
+                mCarried.clear();
+            }
+            return carried;
+        }
+
+        public void notifyRegistered() {
+            if (hasNotifiedOfRegistered()) {
+                PushLog.v(TAG,
+                        "notifyRegistered() - Webview already notified of registration. skipping callback. webview: {}",
+                        getWebView());
+                return;
+            }
+
+            CallbackSink registerCallBack = getRegisterCallBack();
+            NotificationDispatcher notificationDispatcher = mNotificationDispatcher;
+            if (registerCallBack != null && notificationDispatcher != null) {
+                // the GCM thread and the UI thread may race here; only one of them gets to notify
+                if (mNotifiedOfRegistered.compareAndSet(false, true)) {
+                    registerCallBack.success(notificationDispatcher.getRegistrationID());
+                }
+            } else {
+                PushLog.v(TAG, "No Register callback - webview: {}", getWebView());
+            }
+        }
+
+        /**
+         * Sends every notification after this web view's cursors, retained or carried: high
+         * priority ones first, then normal and low priority ones, each in the order they were
+         * received. Expired notifications, and low priority ones older than lowPriorityTTL (ms, 0
+         * for no limit), are skipped.
+         *
+         * Synchronized so that a flush on the dispatch queue and a replay from the UI thread cannot
+         * deliver the same notification twice.
+         */
+        public synchronized void flushNotifications(NotificationStore store, long lowPriorityTTL,
+                Clock clock) {
+            long flushedSequence = getFlushedSequence();
+            List<NotificationStore.Entry> entries = flushedSequence < store.getLastSequence()
+                    ? store.getEntriesAfter(flushedSequence)
+                    : Collections.<NotificationStore.Entry>emptyList();
+            // taken after reading the store: an entry evicted in between was carried before it
+            // was gone
+            List<NotificationStore.Entry> carried = takeCarried(flushedSequence);
+            if (!carried.isEmpty()) {
+                entries = merge(carried, entries);
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+
+            // read once, so that a lane gets all of its notifications of this flush or none
+            CallbackSink foregroundCallBack = getNotificationForegroundCallBack();
+            CallbackSink backgroundCallBack = getNotificationBackgroundCallBack();
+            NotificationBatcher foregroundBatcher = mForegroundBatcher;
+            NotificationBatcher backgroundBatcher = mBackgroundBatcher;
+
+            boolean foregroundComplete = true;
+            boolean backgroundComplete = true;
+            long now = clock.currentTimeMillis();
+            long elapsed = clock.elapsedRealtime();
+
+            for (int priority = NotificationPriority.HIGH; priority >= NotificationPriority.LOW;
+                    priority--) {
+                for (NotificationStore.Entry entry : entries) {
+                    if (entry.getPriority() != priority) {
+                        continue;
+                    }
+
+                    // removed from the store by the next sweep
+                    if (entry.isExpired(now)) {
+                        continue;
+                    }
+
+                    if (priority == NotificationPriority.LOW && lowPriorityTTL > 0
+                            && elapsed - entry.getAddedAt() > lowPriorityTTL) {
+                        if (entry.markLowPriorityExpired()) {
+                            PushMetrics.getInstance().mLowPriorityExpired.incrementAndGet();
+                        }
+                        continue;
+                    }
+
+                    if (entry.isForeground()) {
+                        if (entry.getSequence() > mForegroundSequence) {
+                            PushLog.v(TAG, "sendNotification() - foreground callback - webview: {}",
+                                    getWebView());
+                            foregroundComplete &= sendNotification(foregroundCallBack,
+                                    foregroundBatcher, entry);
+                        }
+                    } else {
+                        if (entry.getSequence() > mBackgroundSequence) {
+                            PushLog.v(TAG, "sendNotification() - background callback - webview: {}",
+                                    getWebView());
+                            backgroundComplete &= sendNotification(backgroundCallBack,
+                                    backgroundBatcher, entry);
+                        }
+                    }
+                }
+
+                if (priority == NotificationPriority.HIGH) {
+                    // urgent notifications do not wait for the batch window
+                    if (foregroundBatcher != null) {
+                        foregroundBatcher.flushUrgent();
+                    }
+                    if (backgroundBatcher != null) {
+                        backgroundBatcher.flushUrgent();
+                    }
+                }
+            }
+
+            // a lane that has everything of its own is done with the other lane's entries too,
+            // otherwise the next flush would walk them again
+            long lastSequence = entries.get(entries.size() - 1).getSequence();
+            if (foregroundComplete) {
+                mForegroundSequence = Math.max(mForegroundSequence, lastSequence);
+            }
+            if (backgroundComplete) {
+                mBackgroundSequence = Math.max(mBackgroundSequence, lastSequence);
+            }
+        }
+
+        /**
+         * @return the entries of both lists by sequence, each once
+         */
+        private static List<NotificationStore.Entry> merge(List<NotificationStore.Entry> carried,
+                List<NotificationStore.Entry> retained) {
+            List<NotificationStore.Entry> entries =
+                    new ArrayList<NotificationStore.Entry>(carried.size() + retained.size());
+            int i = 0;
+            int j = 0;
+            while (i < carried.size() || j < retained.size()) {
+                if (j == retained.size() || i < carried.size()
+                        && carried.get(i).getSequence() < retained.get(j).getSequence()) {
+                    entries.add(carried.get(i++));
+                } else {
+                    if (i < carried.size()
+                            && carried.get(i).getSequence() == retained.get(j).getSequence()) {
+                        i++;
+                    }
+                    entries.add(retained.get(j++));
+                }
+            }
+            return entries;
+        }
+
+        private boolean sendNotification(CallbackSink callBack, NotificationBatcher batcher,
+                NotificationStore.Entry entry) {
+            PushMetrics metrics = PushMetrics.getInstance();
+
+            if (callBack != null && batcher != null) {
+
+                // counted as delivered, and acknowledged, when the batch is sent
+                if (entry.getPriority() == NotificationPriority.HIGH) {
+                    batcher.addUrgent(callBack, entry.getSequence(), entry.getAddedNanos(),
+                            entry.getNotification().toJSONString());
+                } else {
+                    batcher.add(callBack, entry.getSequence(), entry.getAddedNanos(),
+                            entry.getNotification().toJSONString());
+                }
+
+                return true;
+            } else if (callBack != null) {
+
+                callBack.sendNotification(entry.getNotification().toJSONString());
+                metrics.mNotificationsDelivered.incrementAndGet();
+                metrics.mDeliveryLatency.recordSince(entry.getAddedNanos());
+
+                return true;
+            } else {
+                metrics.mNoCallback.incrementAndGet();
+                PushLog.v(TAG, "No Notification callback - webview: {}", getWebView());
+                return false;
+            }
+        }
+
+        public void setNotificationForegroundCallBack(CallbackSink callBack) {
+            PushLog.v(TAG, "setNotificationForegroundCallBack() - webview: {}", getWebView());
+            mNotificationForegroundCallBack = callBack;
+        }
+
+        public void setNotificationBackgroundCallBack(CallbackSink callBack) {
+            PushLog.v(TAG, "setNotificationBackgroundCallBack() - webview: {}", getWebView());
+            mNotificationBackgroundCallBack = callBack;
+        }
+
+        public CallbackSink getNotificationForegroundCallBack() {
+            return mNotificationForegroundCallBack;
+        }
+
+        public CallbackSink getNotificationBackgroundCallBack() {
+            return mNotificationBackgroundCallBack;
+        }
+
+        public void setRegisterCallBack(CallbackSink callBack) {
+            mRegisterCallBack = callBack;
+        }
+
+        public CallbackSink getRegisterCallBack() {
+            return mRegisterCallBack;
+        }
+
+        @Override
+        public String toString() {
+            String webViewStr = "empty";
+            if (getWebView() != null) {
+                webViewStr = getWebView().toString();
+            }
+            return "WebViewReference -> " + webViewStr;
+        }
+
+    }
+}
@@ -0,0 +1,186 @@
+package com.plugin.gcm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Notification Groups - Stacks the messages shown in the notification center by group, so a burst
+ * of messages ends up as one summary notification per group instead of one notification each (or
+ * each one overwriting the previous).
+ *
+ * The group of a message is its "group" field, or its collapse_key (except GCM's default
+ * "do_not_collapse"). Messages with neither and without an explicit notId share the default
+ * group. Each group keeps a bounded summary: the latest lines, the total count and the time of the
+ * latest message.
+ */
+class NotificationGroups {
+
+    public static final String GROUP = "group";
+
+    public static final String NOT_ID = "notId";
+
+    public static final String DEFAULT_GROUP = "";
+
+    // lines shown in the expanded (inbox style) summary
+    public static final int MAX_LINES = 5;
+
+    // groups tracked at the same time; the least recently updated one is forgotten first
+    public static final int MAX_GROUPS = 20;
+
+    private final int mDefaultNotificationId;
+
+    private final Map<String, Group> mGroups = new LinkedHashMap<String, Group>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Group> eldest) {
+            return size() > MAX_GROUPS;
+        }
+    };
+
+    public NotificationGroups(int defaultNotificationId) {
+        mDefaultNotificationId = defaultNotificationId;
+    }
+
+    /**
+     * Adds a message to its group.
+     *
+     * @return a snapshot of the updated group, or null if the message is not grouped (it has an
+     * explicit notId and no group) and should be shown on its own
+     */
+    public synchronized Group add(MessageSource extras, long when) {
+        String key = getGroupKey(extras);
+        if (key == null) {
+            return null;
+        }
+
+        Group group = mGroups.get(key);
+        if (group == null) {
+            group = new Group(key, getNotificationId(key, extras));
+            mGroups.put(key, group);
+        }
+
+        group.add(extras.getString(NotificationDispatcher.MESSAGE), extras.getString("title"), when);
+
+        return group.copy();
+    }
+
+    /**
+     * Forgets every group, e.g. when the notifications are cleared from the notification center.
+     */
+    public synchronized void clear() {
+        mGroups.clear();
+    }
+
+    public synchronized int size() {
+        return mGroups.size();
+    }
+
+    private String getGroupKey(MessageSource extras) {
+        String group = extras.getString(GROUP);
+        if (group != null && group.length() > 0) {
+            return group;
+        }
+
+        // GCM gives messages sent without a collapse_key "do_not_collapse", which is no group
+        String collapseKey = extras.getString(NotificationDispatcher.COLLAPSE_KEY);
+        if (collapseKey != null && collapseKey.length() > 0
+                && !NotificationDispatcher.DO_NOT_COLLAPSE.equals(collapseKey)) {
+            return collapseKey;
+        }
+
+        return extras.getString(NOT_ID) == null ? DEFAULT_GROUP : null;
+    }
+
+    private int getNotificationId(String key, MessageSource extras) {
+        String notId = extras.getString(NOT_ID);
+        if (notId != null) {
+            try {
+                return Integer.parseInt(notId);
+            } catch (NumberFormatException e) {
+                /*no op*/
+            }
+        }
+        if (DEFAULT_GROUP.equals(key)) {
+            return mDefaultNotificationId;
+        }
+        // stable per group, and never the default id
+        int id = key.hashCode();
+        return id == mDefaultNotificationId ? id + 1 : id;
+    }
+
+    static class Group {
+
+        private final String mKey;
+
+        private final int mNotificationId;
+
+        // newest first
+        private final List<String> mLines;
+
+        private String mTitle;
+
+        private int mCount;
+
+        private long mWhen;
+
+        Group(String key, int notificationId) {
+            this(key, notificationId, new ArrayList<String>(MAX_LINES));
+        }
+
+        private Group(String key, int notificationId, List<String> lines) {
+            mKey = key;
+            mNotificationId = notificationId;
+            mLines = lines;
+        }
+
+        void add(String message, String title, long when) {
+            if (message != null) {
+                mLines.add(0, message);
+                if (mLines.size() > MAX_LINES) {
+                    mLines.remove(mLines.size() - 1);
+                }
+            }
+            if (title != null) {
+                mTitle = title;
+            }
+            mCount++;
+            mWhen = Math.max(mWhen, when);
+        }
+
+        Group copy() {
+            Group copy = new Group(mKey, mNotificationId, new ArrayList<String>(mLines));
+            copy.mTitle = mTitle;
+            copy.mCount = mCount;
+            copy.mWhen = mWhen;
+            return copy;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public int getNotificationId() {
+            return mNotificationId;
+        }
+
+        /**
+         * @return the latest messages of the group, newest first
+         */
+        public List<String> getLines() {
+            return mLines;
+        }
+
+        public String getTitle() {
+            return mTitle;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getWhen() {
+            return mWhen;
+        }
+    }
+}
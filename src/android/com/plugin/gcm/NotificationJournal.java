@@ -0,0 +1,394 @@
+package com.plugin.gcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notification Journal - Append-only, memory-mapped log of the received notifications, so that
+ * messages which were not yet delivered to a web view survive the process being killed.
+ *
+ * Each notification is written before it is dispatched. Writes only copy into the mapped region
+ * (the kernel keeps the pages even if the process dies); syncing to the device is batched and
+ * done on the scheduler thread. Once every web view has acknowledged a sequence, the records up
+ * to it are discarded; when everything has been acknowledged the journal is simply rewound.
+ *
+ * When the journal is full, the unacknowledged records are compacted into a new file, which is
+ * synced and then renamed over the journal, so a process killed while compacting leaves either
+ * the old journal or the new one, never a mix of both.
+ *
+ * File layout: a fixed size header followed by records.
+ * <pre>
+ * header: int magic | int version | long ackedSequence | int endPosition | padding
+ * record: int length | long sequence | length bytes of UTF-8 JSON
+ * </pre>
+ */
+class NotificationJournal {
+
+    private static String TAG = "PushPlugin-NotificationJournal";
+
+    public static final String FILE_NAME = "push_notifications.journal";
+
+    // the file compact() writes before renaming it over the journal
+    public static final String COMPACT_SUFFIX = ".compact";
+
+    public static final int DEFAULT_CAPACITY = 512 * 1024;
+
+    // how long writes are gathered before syncing them to the device
+    public static final long SYNC_DELAY = 500;
+
+    private static final int MAGIC = 0x50534a31; // "PSJ1"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int ACKED_SEQUENCE_OFFSET = 8;
+
+    private static final int END_POSITION_OFFSET = 16;
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mPath;
+
+    // replaced by compact()
+    private RandomAccessFile mFile;
+
+    private MappedByteBuffer mBuffer;
+
+    private final ScheduledExecutorService mScheduler;
+
+    private long mAckedSequence;
+
+    private long mLastSequence;
+
+    private boolean mSyncScheduled = false;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    private NotificationJournal(File path, RandomAccessFile file, MappedByteBuffer buffer,
+            ScheduledExecutorService scheduler) {
+        mPath = path;
+        mFile = file;
+        mBuffer = buffer;
+        mScheduler = scheduler;
+
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION || !isValidEnd(getEnd())) {
+            reset();
+        }
+        mAckedSequence = mBuffer.getLong(ACKED_SEQUENCE_OFFSET);
+        // so acknowledging a replayed record does not rewind past the ones after it
+        mLastSequence = mAckedSequence;
+        for (Record record : readRecords()) {
+            mLastSequence = Math.max(mLastSequence, record.getSequence());
+        }
+    }
+
+    /**
+     * Opens (or creates) the journal file.
+     *
+     * @return the journal, or null if the file could not be mapped. Notifications are then only
+     * kept in memory.
+     */
+    public static NotificationJournal open(File file, ScheduledExecutorService scheduler) {
+        // left over by a compaction that did not finish; the journal itself is intact
+        new File(file.getPath() + COMPACT_SUFFIX).delete();
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            MappedByteBuffer buffer = map(randomAccessFile);
+            return new NotificationJournal(file, randomAccessFile, buffer, scheduler);
+        } catch (IOException e) {
+            PushLog.e(TAG, "open: could not map journal {} - {}", file, e.getMessage());
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                    /*no op*/
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the notifications that were journaled but not acknowledged, oldest first
+     */
+    public synchronized List<Record> readUnacknowledged() {
+        List<Record> notifications = new ArrayList<Record>();
+        for (Record record : readRecords()) {
+            if (record.getSequence() > mAckedSequence) {
+                notifications.add(record);
+            }
+        }
+        return notifications;
+    }
+
+    /**
+     * @return the last sequence appended or acknowledged, 0 if the journal is empty; sequences
+     * appended later must be greater
+     */
+    public synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+
+    private List<Record> readRecords() {
+        List<Record> records = new ArrayList<Record>();
+
+        int end = getEnd();
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= end) {
+            int length = mBuffer.getInt(position);
+            long sequence = mBuffer.getLong(position + 4);
+            int dataStart = position + RECORD_HEADER_SIZE;
+            if (length <= 0 || dataStart + length > end) {
+                PushLog.e(TAG, "readRecords: corrupt record at {}", position);
+                break;
+            }
+
+            records.add(new Record(sequence, new String(read(dataStart, length), UTF_8)));
+
+            position = dataStart + length;
+        }
+
+        return records;
+    }
+
+    /**
+     * Records a notification. Must be called with increasing sequence numbers.
+     *
+     * @param json the notification already serialized to JSON
+     */
+    public synchronized void append(long sequence, String json) {
+        byte[] data = json.getBytes(UTF_8);
+        int recordSize = RECORD_HEADER_SIZE + data.length;
+        if (recordSize > mBuffer.capacity() - HEADER_SIZE) {
+            PushLog.e(TAG, "append: notification too large for the journal - bytes: {}", data.length);
+            return;
+        }
+
+        if (getEnd() + recordSize > mBuffer.capacity() && !compact(recordSize)) {
+            // still retained in memory
+            return;
+        }
+
+        int position = getEnd();
+        mBuffer.putInt(position, data.length);
+        mBuffer.putLong(position + 4, sequence);
+        write(position + RECORD_HEADER_SIZE, data);
+        // publish the record only once it is complete
+        setEnd(position + recordSize);
+        mLastSequence = sequence;
+
+        scheduleSync();
+    }
+
+    /**
+     * Marks everything up to and including the given sequence as delivered.
+     */
+    public synchronized void acknowledge(long sequence) {
+        if (sequence <= mAckedSequence) {
+            return;
+        }
+
+        mAckedSequence = sequence;
+        mBuffer.putLong(ACKED_SEQUENCE_OFFSET, sequence);
+
+        if (sequence >= mLastSequence) {
+            // nothing left to replay, rewind
+            setEnd(HEADER_SIZE);
+        }
+
+        scheduleSync();
+    }
+
+    /**
+     * Drops every record, e.g. when the device unregisters.
+     */
+    public synchronized void clear() {
+        mAckedSequence = 0;
+        mLastSequence = 0;
+        reset();
+        scheduleSync();
+    }
+
+    public synchronized void close() {
+        sync();
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            PushLog.e(TAG, "close: {}", e.getMessage());
+        }
+    }
+
+    private void reset() {
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putLong(ACKED_SEQUENCE_OFFSET, 0);
+        setEnd(HEADER_SIZE);
+    }
+
+    /**
+     * Moves the unacknowledged records to the start of a new journal file. If that still leaves no
+     * room for the new record, the oldest records are dropped.
+     *
+     * The records and header are written and synced to the new file first, and only then is it
+     * renamed over the journal, so a process killed at any point replays the old journal or the
+     * compacted one.
+     *
+     * @return false if the journal could not be compacted, it is left as it was
+     */
+    private boolean compact(int neededSize) {
+        int end = getEnd();
+        int available = mBuffer.capacity() - HEADER_SIZE;
+        int position = HEADER_SIZE;
+        int dropped = 0;
+
+        while (position < end) {
+            int length = mBuffer.getInt(position);
+            long sequence = mBuffer.getLong(position + 4);
+            boolean acked = sequence <= mAckedSequence;
+            boolean fits = end - position + neededSize <= available;
+            if (!acked && fits) {
+                break;
+            }
+            if (!acked) {
+                dropped++;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        File compactFile = new File(mPath.getPath() + COMPACT_SUFFIX);
+        RandomAccessFile file = null;
+        MappedByteBuffer buffer;
+        try {
+            file = new RandomAccessFile(compactFile, "rw");
+            buffer = map(file);
+            int remaining = end - position;
+            if (remaining > 0) {
+                ByteBuffer records = buffer.duplicate();
+                records.position(HEADER_SIZE);
+                records.put(read(position, remaining));
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(ACKED_SEQUENCE_OFFSET, mAckedSequence);
+            buffer.putInt(END_POSITION_OFFSET, HEADER_SIZE + remaining);
+            buffer.force();
+
+            if (!compactFile.renameTo(mPath)) {
+                throw new IOException("could not rename " + compactFile);
+            }
+        } catch (IOException e) {
+            PushLog.e(TAG, "compact: could not compact the journal - {}", e.getMessage());
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                    /*no op*/
+                }
+            }
+            compactFile.delete();
+            return false;
+        }
+
+        if (dropped > 0) {
+            PushLog.w(TAG, "compact: journal full, dropped undelivered notifications: {}", dropped);
+        }
+
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            PushLog.e(TAG, "compact: {}", e.getMessage());
+        }
+        mFile = file;
+        mBuffer = buffer;
+        return true;
+    }
+
+    private void scheduleSync() {
+        if (mSyncScheduled || mScheduler == null) {
+            return;
+        }
+        mSyncScheduled = true;
+        try {
+            mScheduler.schedule(mSyncRunnable, SYNC_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // scheduler shut down, sync right away
+            mSyncScheduled = false;
+            sync();
+        }
+    }
+
+    private synchronized void sync() {
+        mSyncScheduled = false;
+        mBuffer.force();
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file) throws IOException {
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DEFAULT_CAPACITY);
+    }
+
+    private byte[] read(int position, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(position);
+        buffer.get(data);
+        return data;
+    }
+
+    private void write(int position, byte[] data) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(position);
+        buffer.put(data);
+    }
+
+    private int getEnd() {
+        return mBuffer.getInt(END_POSITION_OFFSET);
+    }
+
+    private void setEnd(int end) {
+        mBuffer.putInt(END_POSITION_OFFSET, end);
+    }
+
+    private boolean isValidEnd(int end) {
+        return end >= HEADER_SIZE && end <= mBuffer.capacity();
+    }
+
+    static class Record {
+
+        private final long mSequence;
+
+        private final String mJson;
+
+        Record(long sequence, String json) {
+            mSequence = sequence;
+            mJson = json;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public String getJson() {
+            return mJson;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.plugin.gcm;
+
+import org.json.JSONObject;
+
+/**
+ * Notification Priority - The delivery lane of a notification, from the payload 'priority' field
+ * or, if the sender did not set one, the priority GCM delivered the message with.
+ *
+ * When a backlog is flushed to a web view, high priority notifications go first and are not held
+ * back by batching, and low priority ones go last and are dropped once they are older than the
+ * low priority TTL.
+ */
+class NotificationPriority {
+
+    public static final int LOW = 0;
+
+    public static final int NORMAL = 1;
+
+    public static final int HIGH = 2;
+
+    public static final String PRIORITY = "priority";
+
+    // set by GCM / FCM on the intent extras
+    public static final String GCM_DELIVERED_PRIORITY = "google.delivered_priority";
+
+    public static final String GCM_ORIGINAL_PRIORITY = "google.original_priority";
+
+    // the first one that is set wins
+    private static final String[] KEYS = {
+            PRIORITY, GCM_DELIVERED_PRIORITY, GCM_ORIGINAL_PRIORITY
+    };
+
+    private NotificationPriority() {
+    }
+
+    public static int fromMessage(MessageSource extras) {
+        for (String key : KEYS) {
+            Object value = extras.get(key);
+            if (value != null) {
+                return parse(value.toString());
+            }
+        }
+        return NORMAL;
+    }
+
+    /**
+     * @param payload the 'payload' object of a serialized notification, may be null
+     */
+    public static int fromPayload(JSONObject payload) {
+        if (payload != null) {
+            for (String key : KEYS) {
+                Object value = payload.opt(key);
+                if (value != null) {
+                    return parse(value.toString());
+                }
+            }
+        }
+        return NORMAL;
+    }
+
+    /**
+     * @param value "high", "normal" or "low" (case insensitive), or an APNs style number: 10 is
+     *              high, 5 normal and anything lower low
+     * @return the priority, NORMAL if the value is not known
+     */
+    public static int parse(String value) {
+        String priority = value.trim();
+        if ("high".equalsIgnoreCase(priority)) {
+            return HIGH;
+        }
+        if ("low".equalsIgnoreCase(priority)) {
+            return LOW;
+        }
+
+        try {
+            int number = Integer.parseInt(priority);
+            return number >= 10 ? HIGH : number >= 5 ? NORMAL : LOW;
+        } catch (NumberFormatException e) {
+            return NORMAL;
+        }
+    }
+
+    public static String toString(int priority) {
+        switch (priority) {
+            case HIGH:
+                return "high";
+            case LOW:
+                return "low";
+            default:
+                return "normal";
+        }
+    }
+}
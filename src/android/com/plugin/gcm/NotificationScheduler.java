@@ -0,0 +1,90 @@
+package com.plugin.gcm;
+
+/**
+ * Notification Scheduler - Sits in front of the NotificationManager to keep fan-out storms quiet.
+ *
+ * Every post reaches the NotificationManager right away, but only the first maxAlerts posts of an
+ * alert window may play sound / vibrate / flash lights. The others are posted silently, so a
+ * burst still shows the latest state of each notification without anything held in memory.
+ */
+class NotificationScheduler {
+
+    public static final long DEFAULT_ALERT_WINDOW = 3000;
+
+    public static final int DEFAULT_MAX_ALERTS = 1;
+
+    private final SystemNotifier mNotifier;
+
+    private final Clock mClock;
+
+    private long mWindowEnd = 0;
+
+    private int mAlertsInWindow = 0;
+
+    public NotificationScheduler(SystemNotifier notifier, Clock clock) {
+        mNotifier = notifier;
+        mClock = clock;
+    }
+
+    /**
+     * Posts the notification now, alerting only if the alert budget of the current window allows
+     * it.
+     *
+     * @param window    length (ms) of the alert window started by this post, if none is open
+     * @param maxAlerts how many posts may alert per window
+     */
+    public void submit(Post post, long window, int maxAlerts) {
+        boolean alert;
+        synchronized (this) {
+            long now = mClock.elapsedRealtime();
+            if (now >= mWindowEnd) {
+                mWindowEnd = now + window;
+                mAlertsInWindow = 0;
+            }
+
+            alert = mAlertsInWindow < maxAlerts;
+            if (alert) {
+                mAlertsInWindow++;
+            }
+        }
+
+        mNotifier.post(post, alert);
+    }
+
+    static class Post {
+
+        private final int mId;
+
+        private final MessageSource mExtras;
+
+        private final NotificationGroups.Group mGroup;
+
+        private final long mWhen;
+
+        Post(int id, MessageSource extras, NotificationGroups.Group group, long when) {
+            mId = id;
+            mExtras = extras;
+            mGroup = group;
+            mWhen = when;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public MessageSource getExtras() {
+            return mExtras;
+        }
+
+        /**
+         * @return the group summary to show, or null if the notification is not grouped
+         */
+        public NotificationGroups.Group getGroup() {
+            return mGroup;
+        }
+
+        public long getWhen() {
+            return mWhen;
+        }
+    }
+}
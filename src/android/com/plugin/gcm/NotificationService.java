@@ -1,35 +1,23 @@
 package com.plugin.gcm;
 
-import android.app.NotificationManager;
-
 import com.google.android.gcm.GCMRegistrar;
 
-import com.appgyver.cordova.AGCordovaApplicationInterface;
-import com.appgyver.event.EventService;
-
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaWebView;
-import org.apache.cordova.PluginResult;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.UUID;
-import java.util.TimeZone;
-import java.util.Date;
-import java.text.SimpleDateFormat;
-import java.text.DateFormat;
+import java.io.File;
 
 /**
  * Notification Service - Handles Push Notification and deliver the messages to all web views that
  * have registered callbacks.
+ *
+ * This is the Android shell around the NotificationDispatcher: it owns the GCM registration and
+ * adapts Cordova web views, callbacks and intent extras to the platform independent core.
  */
 public class NotificationService {
 
@@ -37,62 +25,67 @@ public class NotificationService {
 
     private static String TAG = "PushPlugin-NotificationService";
 
-    public static final String FOREGROUND = "foreground";
-
-    public static final String COLDSTART = "coldstart";
-
-    public static final String FROM = "from";
-
-    public static final String COLLAPSE_KEY = "collapse_key";
+    public static final String FOREGROUND = NotificationDispatcher.FOREGROUND;
 
-    public static final String MESSAGE = "message";
+    public static final String COLDSTART = NotificationDispatcher.COLDSTART;
 
-    public static final String MSGCNT = "msgcnt";
+    public static final String FROM = NotificationDispatcher.FROM;
 
-    public static final String SOUNDNAME = "soundname";
+    public static final String COLLAPSE_KEY = NotificationDispatcher.COLLAPSE_KEY;
 
-    public static final String SOUNDNAMEALT = "sound";
+    public static final String MESSAGE = NotificationDispatcher.MESSAGE;
 
-    public static final String SOUNDNAMEGCM = "gcm.notification.sound";
+    public static final String MSGCNT = NotificationDispatcher.MSGCNT;
 
+    public static final String SOUNDNAME = NotificationDispatcher.SOUNDNAME;
 
-    public static final String JSON_START_PREFIX = "{";
+    public static final String SOUNDNAMEALT = NotificationDispatcher.SOUNDNAMEALT;
 
-    public static final String JSON_ARRAY_START_PREFIX = "[";
+    public static final String SOUNDNAMEGCM = NotificationDispatcher.SOUNDNAMEGCM;
 
-    public static final String PAYLOAD = "payload";
+    public static final String PAYLOAD = NotificationDispatcher.PAYLOAD;
 
-    public static final String TIMESTAMP = "timestamp";
+    public static final String TIMESTAMP = NotificationDispatcher.TIMESTAMP;
 
-    public static final String KEY_UUID = "uuid";
+    public static final String KEY_UUID = NotificationDispatcher.KEY_UUID;
 
-    private static NotificationService sInstance;
+    private static volatile NotificationService sInstance;
 
     private final Context mContext;
 
-    private String mSenderID;
+    private volatile String mSenderID;
 
-    private List<WebViewReference> mWebViewReferences = new ArrayList<WebViewReference>();
-
-    private String mRegistrationID = null;
-
-    private List<JSONObject> mNotifications = new ArrayList<JSONObject>();
-
-    private boolean mForeground = false;
+    private final NotificationDispatcher mDispatcher;
 
     public NotificationService(Context context) {
         mContext = context;
+        AndroidPlatform.configureLogging(context);
+
+        File filesDir = context.getFilesDir();
+        mDispatcher = new NotificationDispatcher(
+                filesDir != null ? new File(filesDir, NotificationJournal.FILE_NAME) : null,
+                filesDir != null ? new File(filesDir, DuplicateFilter.FILE_NAME) : null,
+                new AndroidPlatform.CordovaAppStateProbe(context),
+                new AndroidPlatform.AndroidSystemNotifier(context),
+                AndroidPlatform.AndroidClock.INSTANCE);
     }
 
     public boolean isApplicationRunning() {
-        return ((AGCordovaApplicationInterface) mContext.getApplicationContext()).isRunning();
+        return mDispatcher.isApplicationRunning();
     }
 
     public static NotificationService getInstance(Context context) {
-        if (sInstance == null) {
-            sInstance = new NotificationService(context);
+        NotificationService instance = sInstance;
+        if (instance == null) {
+            synchronized (NotificationService.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new NotificationService(context);
+                    sInstance = instance;
+                }
+            }
         }
-        return sInstance;
+        return instance;
     }
 
     public void setSenderID(String senderID) {
@@ -102,74 +95,47 @@ public class NotificationService {
     }
 
     public void addRegisterCallBack(CordovaWebView webView, CallbackContext callBack) {
-        WebViewReference webViewReference = getWebViewReference(webView);
-        webViewReference.setRegisterCallBack(callBack);
-
-        if (isRegistered()) {
-            webViewReference.notifyRegistered();
-        } else {
+        if (!mDispatcher.addRegisterCallBack(webView,
+                new AndroidPlatform.CordovaCallbackSink(webView, callBack))) {
             registerDevice();
         }
     }
 
     public void addNotificationForegroundCallBack(CordovaWebView webView,
             CallbackContext callBack) {
-        WebViewReference webViewReference = getWebViewReference(webView);
-        webViewReference.setNotificationForegroundCallBack(callBack);
-
-        flushNotificationToWebView(webViewReference);
+        mDispatcher.addNotificationForegroundCallBack(webView,
+                new AndroidPlatform.CordovaCallbackSink(webView, callBack));
     }
 
     public void addNotificationBackgroundCallBack(CordovaWebView webView,
             CallbackContext callBack) {
-        WebViewReference webViewReference = getWebViewReference(webView);
-        webViewReference.setNotificationBackgroundCallBack(callBack);
-
-        flushNotificationToWebView(webViewReference);
+        mDispatcher.addNotificationBackgroundCallBack(webView,
+                new AndroidPlatform.CordovaCallbackSink(webView, callBack));
     }
 
-    public void removeWebView(CordovaWebView webView) {
-        WebViewReference webViewReference = findWebViewReference(webView);
-        if (webViewReference != null) {
-            mWebViewReferences.remove(webViewReference);
-            webViewReference.destroy();
-
-            Log.v(TAG, "removeWebView : " + webView + " - after remove -> mWebViewReferences: "
-                    + mWebViewReferences);
-        }
+    /**
+     * Enables (or disables) batched delivery of notifications for the given web view.
+     *
+     * @param window  how long (ms) to gather notifications before sending them as one array
+     * @param maxSize maximum number of notifications sent in one array
+     */
+    public void setBatching(CordovaWebView webView, long window, int maxSize) {
+        mDispatcher.setBatching(webView, window, maxSize);
     }
 
-    private WebViewReference findWebViewReference(CordovaWebView webView) {
-        WebViewReference webViewReference = null;
-        for (WebViewReference item : mWebViewReferences) {
-            if (item.getWebView() == webView) {
-                webViewReference = item;
-                break;
-            }
-        }
-        return webViewReference;
+    /**
+     * @param ttl how long (ms) low priority notifications are kept for delivery, 0 for no limit
+     */
+    public void setLowPriorityTTL(long ttl) {
+        mDispatcher.setLowPriorityTTL(ttl);
     }
 
-    private WebViewReference getWebViewReference(CordovaWebView webView) {
-        WebViewReference webViewReference = findWebViewReference(webView);
-        if (webViewReference == null) {
-            webViewReference = createWebViewReference(webView);
-        }
-        return webViewReference;
+    public void removeWebView(CordovaWebView webView) {
+        mDispatcher.removeWebView(webView);
     }
 
     public void registerWebView(CordovaWebView webView) {
-        getWebViewReference(webView);
-    }
-
-    private boolean isRegistered() {
-        return mRegistrationID != null;
-    }
-
-    private WebViewReference createWebViewReference(CordovaWebView webView) {
-        WebViewReference webViewReference = new WebViewReference(this, webView);
-        mWebViewReferences.add(webViewReference);
-        return webViewReference;
+        mDispatcher.registerWebView(webView);
     }
 
     private void registerDevice() {
@@ -181,336 +147,67 @@ public class NotificationService {
     }
 
     public void onRegistered(String regId) {
-        mRegistrationID = regId;
-        notifyRegisteredToAllWebViews();
+        mDispatcher.onRegistered(regId);
     }
 
-    private void notifyRegisteredToAllWebViews() {
-        for (WebViewReference webViewReference : mWebViewReferences) {
-            webViewReference.notifyRegistered();
-        }
+    /**
+     * @return true if GCM delivered the message before, see NotificationDispatcher.isDuplicate
+     */
+    public boolean isDuplicate(Bundle extras) {
+        return mDispatcher.isDuplicate(new AndroidPlatform.BundleMessageSource(extras));
     }
 
     public void onMessage(Bundle extras) {
-        JSONObject notification = createNotificationJSON(extras);
-
-        Log.v(TAG, "onMessage() markv -> isForeground: " + isForeground() + " isApplicationRunning "
-                + isApplicationRunning() + " notification: "
-                + notification);
-
-        addNotification(notification);
-
-        notifyAllWebViews();
-    }
-
-    private void notifyAllWebViews() {
-        for (WebViewReference webViewReference : mWebViewReferences) {
-            flushNotificationToWebView(webViewReference);
-        }
-    }
-
-    private void flushNotificationToWebView(WebViewReference webViewReference) {
-        Log.v(TAG, "flushNotificationToWebView() - Notifications.size(): " + mNotifications.size()
-                + " -> webViewReference: " + webViewReference);
-
-        for (JSONObject notification : mNotifications) {
-            webViewReference.sendNotification(notification);
-        }
+        mDispatcher.onMessage(new AndroidPlatform.BundleMessageSource(extras));
     }
 
-    private void addNotification(JSONObject notification) {
-        mNotifications.add(notification);
-    }
-
-    private JSONObject createNotificationJSON(Bundle extras) {
-        try {
-
-            JSONObject notification = new JSONObject();
-            JSONObject payload = new JSONObject();
-
-            Iterator<String> it = extras.keySet().iterator();
-            while (it.hasNext()) {
-                String key = it.next();
-
-                //Log.e(TAG, "createNotificationJSON: " + key);
-
-                if (parseSystemData(key, notification, extras)) {
-                    continue;
-                }
-
-                parseLegacyProperty(key, notification, extras);
-
-                parseJsonProperty(key, notification, extras, payload);
-            }
-
-            notification.put(PAYLOAD, payload);
-
-            notification.put(FOREGROUND, isForeground());
-
-            notification.put(COLDSTART, !isApplicationRunning());
-
-            notification.put(TIMESTAMP, getTimeStamp());
-
-            notification.put(KEY_UUID, generateUUID());
-
-            return notification;
-
-        } catch (JSONException e) {
-            Log.e(TAG, "extrasToJSON: JSON exception");
-        }
-        return null;
-    }
-
-    private String generateUUID() {
-        UUID uuid = UUID.randomUUID();
-
-        return uuid.toString();
-    }
-
-    private String getTimeStamp() {
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-
-        df.setTimeZone(tz);
-        String timeAsISO = df.format(new Date());
-
-        return timeAsISO;
-    }
-
-    // Try to figure out if the value is another JSON object or JSON Array
-    private void parseJsonProperty(String key, JSONObject json, Bundle extras,
-            JSONObject jsondata) throws JSONException {
-
-        if (extras.get(key) instanceof String) {
-            String strValue = extras.getString(key);
-
-            if (strValue.startsWith(JSON_START_PREFIX)) {
-                try {
-                    JSONObject jsonObj = new JSONObject(strValue);
-                    jsondata.put(key, jsonObj);
-                } catch (Exception e) {
-                    jsondata.put(key, strValue);
-                }
-
-            } else if (strValue.startsWith(JSON_ARRAY_START_PREFIX)) {
-                try {
-                    JSONArray jsonArray = new JSONArray(strValue);
-                    jsondata.put(key, jsonArray);
-                } catch (Exception e) {
-                    jsondata.put(key, strValue);
-                }
-            } else {
-                if (!json.has(key)) {
-                    jsondata.put(key, strValue);
-                }
-            }
-        }
-    }
+    /**
+     * @param reset whether to start the counters and histograms over after taking the snapshot
+     * @return the metrics snapshot, see PushMetrics
+     */
+    public JSONObject getMetrics(boolean reset) throws JSONException {
+        JSONObject metrics = mDispatcher.getMetrics(reset);
 
-    // Maintain backwards compatibility
-    private void parseLegacyProperty(String key, JSONObject json, Bundle extras)
-            throws JSONException {
-        if (key.equals(MESSAGE) || key.equals(MSGCNT)) {
-            json.put(key, extras.get(key));
-        }
-        else if (key.equals(SOUNDNAMEGCM) || key.equals(SOUNDNAMEALT) || key.equals(SOUNDNAME)){
-            // the key name would be like 'gcm.notification.soundname'
-            json.put("sound", extras.get(key)); // change the name to something more useful
+        ResourceCache resourceCache = ResourceCache.getInstance();
+        JSONObject counters = metrics.getJSONObject("counters");
+        counters.put("resourceCacheHits", resourceCache.getHitCount());
+        counters.put("resourceCacheMisses", resourceCache.getMissCount());
+        if (reset) {
+            resourceCache.resetCounts();
         }
+        return metrics;
     }
 
-    private boolean parseSystemData(String key, JSONObject json, Bundle extras)
-            throws JSONException {
-
-        boolean found = false;
-
-        if (key.equals(FROM) || key.equals(COLLAPSE_KEY)) {
-            json.put(key, extras.get(key));
-            found = true;
-        } else if (key.equals(COLDSTART)) {
-            json.put(key, extras.getBoolean(COLDSTART));
-            found = true;
-        }
-
-        return found;
+    /**
+     * @return the retained notification with the given uuid, or null if it is not (or no longer)
+     * retained
+     */
+    public JSONObject getNotification(String uuid) {
+        return mDispatcher.getNotification(uuid);
     }
 
     public void setForeground(boolean foreground) {
-        if (mForeground != foreground) {
-            Log.v(TAG, "setForeground() -> oldValue: " + mForeground + " newValue: " + foreground);
-
-            final NotificationManager notificationManager
-                    = (NotificationManager) mContext.getSystemService(
-                    Context.NOTIFICATION_SERVICE);
-            notificationManager.cancelAll();
-
-        }
-        mForeground = foreground;
-
+        mDispatcher.setForeground(foreground);
     }
 
     public boolean isForeground() {
-        return mForeground;
+        return mDispatcher.isForeground();
     }
 
     public void onDestroy() {
         GCMRegistrar.onDestroy(mContext);
-        cleanUp();
-        sInstance = null;
+        // keeps what was not delivered in the journal for the next process
+        mDispatcher.destroy();
+        synchronized (NotificationService.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
     }
 
     public void unRegister() {
-        Log.v(TAG, "unRegister");
+        PushLog.v(TAG, "unRegister");
         GCMRegistrar.unregister(mContext);
-        mRegistrationID = null;
-        cleanUp();
-    }
-
-    private void cleanUp() {
-        Log.v(TAG, "Cleaning up");
-
-        mWebViewReferences.clear();
-        mNotifications.clear();
-    }
-
-
-    static class WebViewReference {
-
-        private CordovaWebView mWebView;
-
-        private CallbackContext mRegisterCallBack;
-
-        private CallbackContext mNotificationForegroundCallBack;
-
-        private CallbackContext mNotificationBackgroundCallBack;
-
-        private NotificationService mNotificationService;
-
-        private boolean mNotifiedOfRegistered = false;
-
-        private List<JSONObject> mNotifications = new ArrayList<JSONObject>();
-
-        public WebViewReference(NotificationService notificationService, CordovaWebView webView) {
-            mNotificationService = notificationService;
-            mWebView = webView;
-        }
-
-        public void destroy() {
-            mWebView = null;
-            mRegisterCallBack = null;
-            mNotificationForegroundCallBack = null;
-            mNotificationBackgroundCallBack = null;
-            mNotificationService = null;
-
-            mNotifications.clear();
-        }
-
-        public boolean hasNotifiedOfRegistered() {
-            return mNotifiedOfRegistered;
-        }
-
-        public void setNotifiedOfRegistered(boolean notifiedOfRegistered) {
-            mNotifiedOfRegistered = notifiedOfRegistered;
-        }
-
-        public CordovaWebView getWebView() {
-            return mWebView;
-        }
-
-        public boolean hasNotification(JSONObject notification) {
-            return mNotifications.contains(notification);
-        }
-
-        public void notifyRegistered() {
-            if (hasNotifiedOfRegistered()) {
-                Log.v(TAG,
-                        "notifyRegistered() - Webview already notified of registration. skipping callback. webview: "
-                                + getWebView());
-                return;
-            }
-
-            if (getRegisterCallBack() != null) {
-                setNotifiedOfRegistered(true);
-                getRegisterCallBack().success(mNotificationService.mRegistrationID);
-            } else {
-                Log.v(TAG, "No Register callback - webview: " + getWebView());
-            }
-        }
-
-        public void sendNotification(JSONObject notification) {
-            if (hasNotification(notification)) {
-                //Log.v(TAG,
-                //        "sendNotification() - Webview already received this notification. skipping callback. webview: "
-                //                + getWebView());
-                return;
-            }
-
-            boolean isForeground = true;
-            try {
-                isForeground = notification.getBoolean(FOREGROUND);
-            } catch (JSONException e) {
-                /*no op*/
-            }
-
-            if (isForeground) {
-                Log.v(TAG, "sendNotification() - foreground callback - webview: " + getWebView());
-                sendNotification(getNotificationForegroundCallBack(), notification);
-            } else {
-                Log.v(TAG, "sendNotification() - background callback - webview: " + getWebView());
-                sendNotification(getNotificationBackgroundCallBack(), notification);
-            }
-        }
-
-        private void sendNotification(CallbackContext callBack,
-                JSONObject notification) {
-
-            if (callBack != null) {
-
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, notification);
-                pluginResult.setKeepCallback(true);
-
-                callBack.sendPluginResult(pluginResult);
-
-                mNotifications.add(notification);
-            } else {
-                Log.v(TAG, "No Notification callback - webview: " + getWebView());
-            }
-        }
-
-        public void setNotificationForegroundCallBack(CallbackContext callBack) {
-            Log.v(TAG, "setNotificationForegroundCallBack() - webview: " + getWebView());
-            mNotificationForegroundCallBack = callBack;
-        }
-
-        public void setNotificationBackgroundCallBack(CallbackContext callBack) {
-            Log.v(TAG, "setNotificationBackgroundCallBack() - webview: " + getWebView());
-            mNotificationBackgroundCallBack = callBack;
-        }
-
-        public CallbackContext getNotificationForegroundCallBack() {
-            return mNotificationForegroundCallBack;
-        }
-
-        public CallbackContext getNotificationBackgroundCallBack() {
-            return mNotificationBackgroundCallBack;
-        }
-
-        public void setRegisterCallBack(CallbackContext callBack) {
-            mRegisterCallBack = callBack;
-        }
-
-        public CallbackContext getRegisterCallBack() {
-            return mRegisterCallBack;
-        }
-
-        @Override
-        public String toString() {
-            String webViewStr = "empty";
-            if (getWebView() != null) {
-                webViewStr = getWebView().toString();
-            }
-            return "WebViewReference -> " + webViewStr;
-        }
-
+        mDispatcher.unRegister();
     }
 }
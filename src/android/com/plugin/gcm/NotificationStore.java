@@ -0,0 +1,473 @@
+package com.plugin.gcm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Notification Store - Keeps the most recent notifications received by the NotificationDispatcher.
+ *
+ * The store is bounded both by number of entries and by (approximate) payload bytes. When either
+ * limit is exceeded the oldest entries are evicted. Entries with an expiry time are also removed
+ * once they expire (see removeExpired(), driven by an ExpiryWheel), and entries that every web view
+ * has received can be removed with removeThrough(). A notification with a collapse key replaces
+ * the retained one with the same key, found through a hash index, so only the latest is delivered
+ * to web views that had not received the older one yet. Every entry gets a monotonically
+ * increasing sequence number so callers can ask for "everything after sequence N" without walking
+ * the whole history, and entries can be looked up by their notification uuid.
+ *
+ * Entries evicted to make room are handed to the EvictionListener first, so a reader that has not
+ * received them yet can keep them (the NotificationDispatcher carries them for the web views that
+ * are behind).
+ *
+ * The store is an append log that is safe to use from several threads. Appends and evictions are
+ * serialized on a private lock (GCM delivers messages on a single IntentService thread, so it is
+ * uncontended in practice), while readers never lock: they only see fully published entries and
+ * skip over the ones evicted while they were reading.
+ */
+class NotificationStore {
+
+    public static final int DEFAULT_MAX_COUNT = 100;
+
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    interface EvictionListener {
+
+        /**
+         * Called with the write lock held, before the entry is gone from the store, so a reader
+         * never misses an entry that is neither in the store nor passed to the listener.
+         */
+        void onEvicted(Entry entry);
+    }
+
+    private final int mMaxCount;
+
+    private final long mMaxBytes;
+
+    private final Object mWriteLock = new Object();
+
+    // ring buffer indexed by sequence % capacity
+    private final AtomicReferenceArray<Entry> mEntries;
+
+    private final ConcurrentMap<String, Entry> mEntriesByUuid =
+            new ConcurrentHashMap<String, Entry>();
+
+    // sequence of the oldest retained entry
+    private volatile long mFirstSequence = 1;
+
+    // sequence that will be given to the next added entry. Written after the entry is stored in
+    // its slot, so reading it publishes every entry before it.
+    private volatile long mNextSequence = 1;
+
+    // latest retained entry per collapse key, guarded by mWriteLock
+    private final Map<String, Entry> mEntriesByCollapseKey = new HashMap<String, Entry>();
+
+    private volatile long mByteCount = 0;
+
+    // retained entries; lower than mNextSequence - mFirstSequence when some expired in between
+    private volatile int mCount = 0;
+
+    // sequences of the entries that expire, guarded by mWriteLock. Starts at time 0, so the
+    // first sweep visits every slot once.
+    private final ExpiryWheel mExpiryWheel = new ExpiryWheel(0);
+
+    private final ExpiryWheel.Listener mExpiryListener = new ExpiryWheel.Listener() {
+        @Override
+        public void onExpired(long sequence) {
+            // the wheel dropped the key already
+            if (remove(sequence, false)) {
+                mExpiredCount++;
+            }
+        }
+    };
+
+    // entries removed by the current removeExpired() call, guarded by mWriteLock
+    private int mExpiredCount;
+
+    private volatile EvictionListener mEvictionListener;
+
+    public NotificationStore() {
+        this(DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES);
+    }
+
+    public NotificationStore(int maxCount, long maxBytes) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount must be positive: " + maxCount);
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        mMaxCount = maxCount;
+        mMaxBytes = maxBytes;
+        mEntries = new AtomicReferenceArray<Entry>(maxCount);
+    }
+
+    /**
+     * @param listener told about the entries evicted to make room for new ones, may be null
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
+    /**
+     * Adds a notification to the store, evicting the oldest entries if needed.
+     *
+     * @param addedAt ms, Clock.elapsedRealtime()
+     * @return the sequence number given to the notification
+     */
+    public long add(LazyNotification notification, long addedAt) {
+        return add(notification, estimateSize(notification), addedAt);
+    }
+
+    /**
+     * Adds a notification whose serialized size is already known.
+     *
+     * @param addedAt ms, Clock.elapsedRealtime()
+     * @return the sequence number given to the notification
+     */
+    public long add(LazyNotification notification, int size, long addedAt) {
+        // build the entry outside of the lock
+        String uuid = notification.getUuid();
+        boolean foreground = notification.isForeground();
+        int priority = notification.getPriority();
+        long expiresAt = notification.getExpiresAt();
+        String collapseKey = notification.getCollapseKey();
+        long addedNanos = System.nanoTime();
+
+        synchronized (mWriteLock) {
+            long sequence = mNextSequence;
+
+            if (sequence - mFirstSequence >= mMaxCount) {
+                evictToMakeRoom();
+            }
+
+            Entry entry = new Entry(sequence, uuid, foreground, priority, expiresAt, collapseKey,
+                    notification, size, addedAt, addedNanos);
+            mEntries.set(slot(sequence), entry);
+            mByteCount += size;
+            mCount++;
+            if (uuid != null) {
+                mEntriesByUuid.put(uuid, entry);
+            }
+            if (expiresAt > 0) {
+                mExpiryWheel.add(sequence, expiresAt);
+            }
+            if (collapseKey != null) {
+                Entry replaced = mEntriesByCollapseKey.put(collapseKey, entry);
+                if (replaced != null && remove(replaced.getSequence(), true)) {
+                    PushMetrics.getInstance().mNotificationsCollapsed.incrementAndGet();
+                }
+            }
+
+            // always keep the newest entry, even if it alone is over the byte limit
+            while (mByteCount > mMaxBytes && mFirstSequence < sequence) {
+                evictToMakeRoom();
+            }
+
+            mNextSequence = sequence + 1;
+
+            return sequence;
+        }
+    }
+
+    /**
+     * Makes the next added notification get at least the given sequence number, e.g. to continue
+     * the sequences of a journal written by a previous process. Readers skip the gap.
+     */
+    public void skipTo(long sequence) {
+        synchronized (mWriteLock) {
+            if (sequence <= mNextSequence) {
+                return;
+            }
+            // the ring buffer holds at most mMaxCount sequences, gaps included
+            while (sequence - mFirstSequence >= mMaxCount && mFirstSequence < mNextSequence) {
+                evictToMakeRoom();
+            }
+            if (mFirstSequence == mNextSequence) {
+                mFirstSequence = sequence;
+            }
+            mNextSequence = sequence;
+        }
+    }
+
+    /**
+     * Returns the retained entries with a sequence number greater than the given one, oldest
+     * first. Cost is proportional to the number of entries returned.
+     */
+    public List<Entry> getEntriesAfter(long sequence) {
+        long next = mNextSequence;
+        long from = Math.max(sequence + 1, mFirstSequence);
+        if (from >= next) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> entries = new ArrayList<Entry>((int) (next - from));
+        for (long seq = from; seq < next; seq++) {
+            Entry entry = mEntries.get(slot(seq));
+            // null or a newer entry means it was evicted after we read mFirstSequence
+            if (entry != null && entry.getSequence() == seq) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public List<Entry> getEntries() {
+        return getEntriesAfter(0);
+    }
+
+    public LazyNotification get(String uuid) {
+        Entry entry = mEntriesByUuid.get(uuid);
+        return entry != null ? entry.getNotification() : null;
+    }
+
+    /**
+     * @return the sequence number of the newest entry, or 0 if nothing has been added yet
+     */
+    public long getLastSequence() {
+        return mNextSequence - 1;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Removes all entries. Sequence numbers keep increasing so that existing cursors stay valid.
+     */
+    public void clear() {
+        synchronized (mWriteLock) {
+            while (mFirstSequence < mNextSequence) {
+                evictOldest();
+            }
+            mExpiryWheel.clear();
+        }
+    }
+
+    /**
+     * Removes the entries up to and including the given sequence, e.g. once every web view has
+     * received them.
+     *
+     * @return the number of entries removed
+     */
+    public int removeThrough(long sequence) {
+        synchronized (mWriteLock) {
+            int count = mCount;
+            while (mFirstSequence <= sequence && mFirstSequence < mNextSequence) {
+                evictOldest();
+            }
+            return count - mCount;
+        }
+    }
+
+    /**
+     * Removes the entries that expired at or before now (ms, wall clock).
+     *
+     * @return the number of entries removed
+     */
+    public int removeExpired(long now) {
+        synchronized (mWriteLock) {
+            mExpiredCount = 0;
+            mExpiryWheel.advance(now, mExpiryListener);
+            return mExpiredCount;
+        }
+    }
+
+    /**
+     * @return the number of retained entries waiting to expire
+     */
+    public int getExpiringCount() {
+        synchronized (mWriteLock) {
+            return mExpiryWheel.size();
+        }
+    }
+
+    // must hold mWriteLock
+    private void evictToMakeRoom() {
+        Entry entry = mEntries.get(slot(mFirstSequence));
+        EvictionListener listener = mEvictionListener;
+        if (listener != null && entry != null && entry.getSequence() == mFirstSequence) {
+            listener.onEvicted(entry);
+        }
+        evictOldest();
+    }
+
+    // must hold mWriteLock
+    private void evictOldest() {
+        long sequence = mFirstSequence;
+        mFirstSequence = sequence + 1;
+        release(sequence, true);
+    }
+
+    /**
+     * Removes the entry from the middle of the log. Must hold mWriteLock.
+     *
+     * @param removeExpiry whether to remove its key from the expiry wheel, false when it fired
+     * @return false if the entry was not retained anymore
+     */
+    private boolean remove(long sequence, boolean removeExpiry) {
+        if (sequence < mFirstSequence || !release(sequence, removeExpiry)) {
+            return false;
+        }
+
+        // readers skip the hole; only the head has to move past it
+        while (mFirstSequence < mNextSequence && mEntries.get(slot(mFirstSequence)) == null) {
+            mFirstSequence++;
+        }
+        return true;
+    }
+
+    // must hold mWriteLock
+    private boolean release(long sequence, boolean removeExpiry) {
+        int slot = slot(sequence);
+        Entry entry = mEntries.get(slot);
+        if (entry == null || entry.getSequence() != sequence) {
+            return false;
+        }
+
+        mEntries.set(slot, null);
+        mByteCount -= entry.getSize();
+        mCount--;
+        if (entry.getUuid() != null) {
+            mEntriesByUuid.remove(entry.getUuid(), entry);
+        }
+        String collapseKey = entry.getCollapseKey();
+        if (collapseKey != null && mEntriesByCollapseKey.get(collapseKey) == entry) {
+            mEntriesByCollapseKey.remove(collapseKey);
+        }
+        if (removeExpiry && entry.mExpiresAt > 0) {
+            mExpiryWheel.remove(sequence, entry.mExpiresAt);
+        }
+        return true;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % mMaxCount);
+    }
+
+    private static int estimateSize(LazyNotification notification) {
+        // character count of the serialized form; close enough to UTF-8 bytes for typical payloads
+        return notification.toJSONString().length();
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationStore -> size: " + size() + " bytes: " + mByteCount
+                + " lastSequence: " + getLastSequence();
+    }
+
+    static class Entry {
+
+        private final long mSequence;
+
+        private final String mUuid;
+
+        private final boolean mForeground;
+
+        private final int mPriority;
+
+        // ms, 0 if the notification does not expire
+        private final long mExpiresAt;
+
+        private final String mCollapseKey;
+
+        private final LazyNotification mNotification;
+
+        private final int mSize;
+
+        private final long mAddedAt;
+
+        private final long mAddedNanos;
+
+        // set by the first web view that skips the entry as a too old low priority notification
+        private final AtomicBoolean mLowPriorityExpired = new AtomicBoolean(false);
+
+        Entry(long sequence, String uuid, boolean foreground, int priority, long expiresAt,
+                String collapseKey, LazyNotification notification, int size, long addedAt,
+                long addedNanos) {
+            mSequence = sequence;
+            mUuid = uuid;
+            mForeground = foreground;
+            mPriority = priority;
+            mExpiresAt = expiresAt;
+            mCollapseKey = collapseKey;
+            mNotification = notification;
+            mSize = size;
+            mAddedAt = addedAt;
+            mAddedNanos = addedNanos;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public String getUuid() {
+            return mUuid;
+        }
+
+        public boolean isForeground() {
+            return mForeground;
+        }
+
+        /**
+         * @return one of the NotificationPriority levels
+         */
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return the key of the entries this one replaces, may be null
+         */
+        public String getCollapseKey() {
+            return mCollapseKey;
+        }
+
+        /**
+         * @param now ms, wall clock
+         */
+        public boolean isExpired(long now) {
+            return mExpiresAt > 0 && now >= mExpiresAt;
+        }
+
+        public LazyNotification getNotification() {
+            return mNotification;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return Clock.elapsedRealtime() (ms) when the entry was added
+         */
+        public long getAddedAt() {
+            return mAddedAt;
+        }
+
+        /**
+         * @return System.nanoTime() when the entry was added, for the latency metrics
+         */
+        public long getAddedNanos() {
+            return mAddedNanos;
+        }
+
+        /**
+         * @return true only the first time, so the entry is counted once however many web views
+         * and flushes skip it
+         */
+        public boolean markLowPriorityExpired() {
+            return mLowPriorityExpired.compareAndSet(false, true);
+        }
+    }
+}
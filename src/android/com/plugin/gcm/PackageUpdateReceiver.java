@@ -0,0 +1,21 @@
+package com.plugin.gcm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Package Update Receiver - Clears the ResourceCache when the app is updated or the locale
+ * changes, since either can change the label, icon or res/raw sounds it resolved.
+ *
+ * Sound names missing from res/raw are cached as missing too, so they are only looked up again
+ * after this receiver has cleared the cache.
+ */
+public class PackageUpdateReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        ResourceCache.getInstance().invalidate();
+    }
+
+}
@@ -8,7 +8,6 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.util.Log;
 
 public class PushHandlerActivity extends Activity {
 
@@ -24,8 +23,9 @@ public class PushHandlerActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        AndroidPlatform.configureLogging(this);
 
-        Log.d(TAG, "onCreate - isApplicationRunning: " + isApplicationRunning());
+        PushLog.d(TAG, "onCreate - isApplicationRunning: {}", isApplicationRunning());
 
         GCMIntentService.cancelNotification(this);
 
@@ -47,7 +47,7 @@ public class PushHandlerActivity extends Activity {
         PackageManager pm = getPackageManager();
         String packageName = getApplicationContext().getPackageName();
 
-        Log.d(TAG, "forceMainActivityReload() - packageName: " + packageName);
+        PushLog.d(TAG, "forceMainActivityReload() - packageName: {}", packageName);
 
         Intent launchIntent = pm.getLaunchIntentForPackage(packageName);
         startActivity(launchIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP));
@@ -58,6 +58,7 @@ public class PushHandlerActivity extends Activity {
       super.onResume();
       final NotificationManager notificationManager = (NotificationManager) this.getSystemService(Context.NOTIFICATION_SERVICE);
       notificationManager.cancelAll();
+      GCMIntentService.clearNotificationGroups();
     }
 
 }
@@ -0,0 +1,312 @@
+package com.plugin.gcm;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Push Log - Logging facade for the plugin. The Android plugin routes it to logcat; off-device
+ * nothing is logged unless a writer is set.
+ *
+ * Messages below the log level (INFO by default, like android.util.Log) are dropped before any
+ * formatting happens. Arguments are substituted for "{}" placeholders only when the message is
+ * written, so a call like v(TAG, "notification: {}", notification) costs nothing unless VERBOSE
+ * logging is on.
+ *
+ * In trace mode messages are not written at all: the formatted message and a timestamp are kept
+ * in a bounded ring buffer (the latest TRACE_CAPACITY records). Formatting when the message is
+ * recorded shows the arguments as they were then, and keeps no references to them (e.g. to web
+ * views that are only referenced weakly elsewhere).
+ */
+class PushLog {
+
+    public static final int VERBOSE = 2;
+
+    public static final int DEBUG = 3;
+
+    public static final int INFO = 4;
+
+    public static final int WARN = 5;
+
+    public static final int ERROR = 6;
+
+    // above every level: nothing is logged
+    public static final int NONE = 7;
+
+    public static final int DEFAULT_LEVEL = INFO;
+
+    public static final int TRACE_CAPACITY = 256;
+
+    private static final String PLACEHOLDER = "{}";
+
+    private static final String[] LEVEL_NAMES = {
+            "verbose", "debug", "info", "warn", "error", "none"
+    };
+
+    interface Writer {
+
+        void println(int priority, String tag, String message);
+
+        /**
+         * Writes an ERROR message together with the stack trace of the throwable.
+         */
+        void printError(String tag, String message, Throwable throwable);
+    }
+
+    private static volatile Writer sWriter;
+
+    private static volatile int sLevel = DEFAULT_LEVEL;
+
+    private static volatile boolean sTrace = false;
+
+    private static final AtomicReferenceArray<TraceRecord> sTraceRecords =
+            new AtomicReferenceArray<TraceRecord>(TRACE_CAPACITY);
+
+    private static final AtomicLong sTraceCount = new AtomicLong();
+
+    private PushLog() {
+    }
+
+    public static void setWriter(Writer writer) {
+        sWriter = writer;
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * @param name a level name ("verbose", "debug", "info", "warn", "error" or "none"), case
+     *             insensitive
+     * @return the level, or defaultLevel if the name is not known
+     */
+    public static int parseLevel(String name, int defaultLevel) {
+        if (name != null) {
+            for (int i = 0; i < LEVEL_NAMES.length; i++) {
+                if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) {
+                    return VERBOSE + i;
+                }
+            }
+        }
+        return defaultLevel;
+    }
+
+    /**
+     * Switches between writing messages (to logcat) and recording them in the trace buffer.
+     */
+    public static void setTrace(boolean trace) {
+        sTrace = trace;
+    }
+
+    public static boolean isTrace() {
+        return sTrace;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= sLevel;
+    }
+
+    public static void v(String tag, String message) {
+        log(VERBOSE, tag, message, null);
+    }
+
+    public static void v(String tag, String message, Object arg) {
+        if (isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, message, new Object[]{arg});
+        }
+    }
+
+    public static void v(String tag, String message, Object arg1, Object arg2) {
+        if (isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, message, new Object[]{arg1, arg2});
+        }
+    }
+
+    public static void v(String tag, String message, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, message, new Object[]{arg1, arg2, arg3});
+        }
+    }
+
+    public static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    public static void d(String tag, String message, Object arg) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, new Object[]{arg});
+        }
+    }
+
+    public static void d(String tag, String message, Object arg1, Object arg2) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, new Object[]{arg1, arg2});
+        }
+    }
+
+    public static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Object arg) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, new Object[]{arg});
+        }
+    }
+
+    public static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Object arg) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, new Object[]{arg});
+        }
+    }
+
+    public static void e(String tag, String message, Object arg1, Object arg2) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, new Object[]{arg1, arg2});
+        }
+    }
+
+    /**
+     * Logs the message as is (no placeholders) with the stack trace of the throwable.
+     */
+    public static void e(String tag, String message, Throwable throwable) {
+        if (!isLoggable(ERROR)) {
+            return;
+        }
+
+        if (sTrace) {
+            record(ERROR, tag, message + '\n' + getStackTraceString(throwable));
+            return;
+        }
+
+        Writer writer = sWriter;
+        if (writer != null) {
+            writer.printError(tag, message, throwable);
+        }
+    }
+
+    private static void log(int priority, String tag, String message, Object[] args) {
+        if (!isLoggable(priority)) {
+            return;
+        }
+
+        if (sTrace) {
+            record(priority, tag, format(message, args));
+            return;
+        }
+
+        Writer writer = sWriter;
+        if (writer != null) {
+            writer.println(priority, tag, format(message, args));
+        }
+    }
+
+    private static void record(int priority, String tag, String message) {
+        long index = sTraceCount.getAndIncrement();
+        sTraceRecords.set((int) (index % TRACE_CAPACITY), new TraceRecord(index,
+                System.currentTimeMillis(), priority, tag, message));
+    }
+
+    /**
+     * @return the stack trace as printed by Throwable.printStackTrace(), like
+     * android.util.Log.getStackTraceString()
+     */
+    static String getStackTraceString(Throwable throwable) {
+        StringWriter stackTrace = new StringWriter();
+        PrintWriter writer = new PrintWriter(stackTrace);
+        throwable.printStackTrace(writer);
+        writer.flush();
+        return stackTrace.toString();
+    }
+
+    /**
+     * Replaces each "{}" in the message with the next argument.
+     */
+    static String format(String message, Object[] args) {
+        if (args == null || args.length == 0) {
+            return message;
+        }
+
+        StringBuilder builder = new StringBuilder(message.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args) {
+            int placeholder = message.indexOf(PLACEHOLDER, start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(message, start, placeholder).append(arg);
+            start = placeholder + PLACEHOLDER.length();
+        }
+        builder.append(message, start, message.length());
+        return builder.toString();
+    }
+
+    /**
+     * @return the recorded trace, oldest first, as {time, level, tag, message} objects
+     */
+    public static JSONArray getTrace() throws JSONException {
+        JSONArray trace = new JSONArray();
+
+        long count = sTraceCount.get();
+        for (long index = Math.max(0, count - TRACE_CAPACITY); index < count; index++) {
+            TraceRecord record = sTraceRecords.get((int) (index % TRACE_CAPACITY));
+            // a slot that is being overwritten holds a newer record; skip it
+            if (record == null || record.mIndex != index) {
+                continue;
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("time", record.mTime);
+            json.put("level", LEVEL_NAMES[record.mPriority - VERBOSE]);
+            json.put("tag", record.mTag);
+            json.put("message", record.mMessage);
+            trace.put(json);
+        }
+        return trace;
+    }
+
+    public static void clearTrace() {
+        for (int i = 0; i < TRACE_CAPACITY; i++) {
+            sTraceRecords.set(i, null);
+        }
+    }
+
+    private static class TraceRecord {
+
+        private final long mIndex;
+
+        private final long mTime;
+
+        private final int mPriority;
+
+        private final String mTag;
+
+        // formatted
+        private final String mMessage;
+
+        TraceRecord(long index, long time, int priority, String tag, String message) {
+            mIndex = index;
+            mTime = time;
+            mPriority = priority;
+            mTag = tag;
+            mMessage = message;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.plugin.gcm;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Push Metrics - Counters and latency histograms for each stage of the push pipeline, from the GCM
+ * message arriving to the notification being sent to a JavaScript callback.
+ *
+ * Recording only touches atomics, so it is cheap enough to stay on in production. A snapshot is
+ * available to JavaScript through the getMetrics action.
+ */
+class PushMetrics {
+
+    private static final PushMetrics sInstance = new PushMetrics();
+
+    // messages received from GCM
+    final AtomicLong mMessagesReceived = new AtomicLong();
+
+    // messages GCM delivered again, dropped before they were counted as received
+    final AtomicLong mDuplicatesDropped = new AtomicLong();
+
+    // notifications sent to a JavaScript callback, one by one or in a batch
+    final AtomicLong mNotificationsDelivered = new AtomicLong();
+
+    // batches sent by NotificationBatcher
+    final AtomicLong mBatchesDelivered = new AtomicLong();
+
+    // notifications evicted from the store before a web view received them, that the web view was
+    // too far behind to keep (see NotificationDispatcher.MAX_CARRIED)
+    final AtomicLong mNotificationsDropped = new AtomicLong();
+
+    // notifications that could not be sent because the web view has no callback for them (yet)
+    final AtomicLong mNoCallback = new AtomicLong();
+
+    // low priority notifications dropped because they were older than the low priority TTL
+    final AtomicLong mLowPriorityExpired = new AtomicLong();
+
+    // retained notifications removed because they expired / every web view had received them
+    final AtomicLong mNotificationsExpired = new AtomicLong();
+
+    final AtomicLong mNotificationsConsumed = new AtomicLong();
+
+    // retained notifications replaced by a newer one with the same collapse key / tag
+    final AtomicLong mNotificationsCollapsed = new AtomicLong();
+
+    // web views dropped without being removed, whose references were collected
+    final AtomicLong mWebViewsCollected = new AtomicLong();
+
+    // flushes of the retained notifications to a web view
+    final AtomicLong mFlushes = new AtomicLong();
+
+    // flushes caused by a web view setting a callback, i.e. replays of retained notifications
+    final AtomicLong mReplays = new AtomicLong();
+
+    // notifications posted to / held back from the notification center
+    final AtomicLong mSystemNotificationsPosted = new AtomicLong();
+
+    final AtomicLong mSystemNotificationsSilent = new AtomicLong();
+
+    // GCMIntentService.onMessage -> NotificationDispatcher.onMessage returned (stored, journaled
+    // and queued for every web view)
+    final LatencyHistogram mReceiveLatency = new LatencyHistogram();
+
+    // message extras -> notification JSON
+    final LatencyHistogram mConvertLatency = new LatencyHistogram();
+
+    // store and journal
+    final LatencyHistogram mStoreLatency = new LatencyHistogram();
+
+    // flush to one web view, on its dispatch queue
+    final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+
+    // notification stored -> sent to a callback (includes waiting for a callback or a batch)
+    final LatencyHistogram mDeliveryLatency = new LatencyHistogram();
+
+    public static PushMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param gauges point-in-time values (e.g. retained notifications) to include, may be null
+     */
+    public JSONObject toJSON(JSONObject gauges) throws JSONException {
+        JSONObject counters = new JSONObject();
+        counters.put("messagesReceived", mMessagesReceived.get());
+        counters.put("duplicatesDropped", mDuplicatesDropped.get());
+        counters.put("notificationsDelivered", mNotificationsDelivered.get());
+        counters.put("batchesDelivered", mBatchesDelivered.get());
+        counters.put("notificationsDropped", mNotificationsDropped.get());
+        counters.put("noCallback", mNoCallback.get());
+        counters.put("lowPriorityExpired", mLowPriorityExpired.get());
+        counters.put("notificationsExpired", mNotificationsExpired.get());
+        counters.put("notificationsConsumed", mNotificationsConsumed.get());
+        counters.put("notificationsCollapsed", mNotificationsCollapsed.get());
+        counters.put("webViewsCollected", mWebViewsCollected.get());
+        counters.put("flushes", mFlushes.get());
+        counters.put("replays", mReplays.get());
+        counters.put("systemNotificationsPosted", mSystemNotificationsPosted.get());
+        counters.put("systemNotificationsSilent", mSystemNotificationsSilent.get());
+
+        JSONObject latencies = new JSONObject();
+        latencies.put("receive", mReceiveLatency.toJSON());
+        latencies.put("convert", mConvertLatency.toJSON());
+        latencies.put("store", mStoreLatency.toJSON());
+        latencies.put("dispatch", mDispatchLatency.toJSON());
+        latencies.put("delivery", mDeliveryLatency.toJSON());
+
+        JSONObject json = new JSONObject();
+        json.put("counters", counters);
+        json.put("gauges", gauges != null ? gauges : new JSONObject());
+        // histograms are in microseconds
+        json.put("latencies", latencies);
+        return json;
+    }
+
+    public void reset() {
+        mMessagesReceived.set(0);
+        mDuplicatesDropped.set(0);
+        mNotificationsDelivered.set(0);
+        mBatchesDelivered.set(0);
+        mNotificationsDropped.set(0);
+        mNoCallback.set(0);
+        mLowPriorityExpired.set(0);
+        mNotificationsExpired.set(0);
+        mNotificationsConsumed.set(0);
+        mNotificationsCollapsed.set(0);
+        mWebViewsCollected.set(0);
+        mFlushes.set(0);
+        mReplays.set(0);
+        mSystemNotificationsPosted.set(0);
+        mSystemNotificationsSilent.set(0);
+
+        mReceiveLatency.reset();
+        mConvertLatency.reset();
+        mStoreLatency.reset();
+        mDispatchLatency.reset();
+        mDeliveryLatency.reset();
+    }
+}
@@ -5,11 +5,11 @@ import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaWebView;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.util.Log;
 
 /**
 * Push Notifications Plugin
@@ -28,12 +28,29 @@ public class PushPlugin extends CordovaPlugin {
 
   public static final String ON_MESSAGE_BACKGROUND = "onMessageInBackground";
 
+  public static final String GET_METRICS = "getMetrics";
+
   public static final String SENDER_ID = "senderID";
 
   public static final String GCM_SENDER_ID = "gcm_senderid";
 
+  public static final String BATCH_WINDOW = "batchWindow";
+
+  public static final String BATCH_SIZE = "batchSize";
+
+  public static final String LOW_PRIORITY_TTL = "lowPriorityTTL";
+
+  public static final String RESET = "reset";
+
+  public static final String TRACE = "trace";
+
+  public static final String LOG_LEVEL = "logLevel";
+
+  public static final String LOG_TRACE = "logTrace";
+
   public void initialize(CordovaInterface cordova, CordovaWebView webView) {
     super.initialize(cordova, webView);
+    AndroidPlatform.configureLogging(getApplicationContext());
 
     readSenderIdFromCordovaConfig();
   }
@@ -73,6 +90,12 @@ public class PushPlugin extends CordovaPlugin {
       .getInstance(getApplicationContext())
       .registerWebView(this.webView);
 
+      applyBatchOptions(jo);
+
+      applyPriorityOptions(jo);
+
+      applyLogOptions(jo);
+
       NotificationService
       .getInstance(getApplicationContext())
       .addRegisterCallBack(this.webView, callbackContext);
@@ -81,16 +104,53 @@ public class PushPlugin extends CordovaPlugin {
 
     }
     catch (Exception e) {
-      Log.e(TAG, "execute: Got JSON Exception " + e.getMessage());
+      PushLog.e(TAG, "execute: Got JSON Exception {}", e.getMessage());
       callbackContext.error(e.getMessage());
       return false;
     }
   }
 
+  /**
+  * Enables batched notification delivery for this web view if the options ask for it.
+  */
+  private void applyBatchOptions(JSONObject options) {
+    if (options == null || !(options.has(BATCH_WINDOW) || options.has(BATCH_SIZE))) {
+      return;
+    }
+
+    NotificationService
+    .getInstance(getApplicationContext())
+    .setBatching(this.webView, options.optLong(BATCH_WINDOW, 0), options.optInt(BATCH_SIZE, 0));
+  }
+
+  /**
+  * Sets how long low priority notifications are kept for delivery if the options ask for it.
+  * Applies to the whole plugin.
+  */
+  private void applyPriorityOptions(JSONObject options) {
+    if (options.has(LOW_PRIORITY_TTL)) {
+      NotificationService
+      .getInstance(getApplicationContext())
+      .setLowPriorityTTL(options.optLong(LOW_PRIORITY_TTL, NotificationDispatcher.DEFAULT_LOW_PRIORITY_TTL));
+    }
+  }
+
+  /**
+  * Sets the log level / trace mode if the options ask for it. Applies to the whole plugin.
+  */
+  private void applyLogOptions(JSONObject options) {
+    if (options.has(LOG_LEVEL)) {
+      PushLog.setLevel(PushLog.parseLevel(options.optString(LOG_LEVEL), PushLog.getLevel()));
+    }
+    if (options.has(LOG_TRACE)) {
+      PushLog.setTrace(options.optBoolean(LOG_TRACE, false));
+    }
+  }
+
   @Override
   public boolean execute(String action, JSONArray data, CallbackContext callbackContext) {
 
-    Log.v(TAG, "handleRegister -> data: " + data);
+    PushLog.v(TAG, "execute() -> action: {} data: {}", action, data);
 
     boolean result = false;
 
@@ -113,10 +173,15 @@ public class PushPlugin extends CordovaPlugin {
 
       result = handleUnRegister(data, callbackContext);
 
+    }
+    else if (GET_METRICS.equals(action)) {
+
+      result = handleGetMetrics(data, callbackContext);
+
     }
     else {
       result = false;
-      Log.e(TAG, "Invalid action : " + action);
+      PushLog.e(TAG, "Invalid action : {}", action);
       callbackContext.error("Invalid action : " + action);
     }
 
@@ -124,7 +189,7 @@ public class PushPlugin extends CordovaPlugin {
   }
 
   private boolean handleUnRegister(JSONArray data, CallbackContext callbackContext) {
-    Log.v(TAG, "handleUnRegister() -> data: " + data);
+    PushLog.v(TAG, "handleUnRegister() -> data: {}", data);
 
     NotificationService
     .getInstance(getApplicationContext())
@@ -134,8 +199,37 @@ public class PushPlugin extends CordovaPlugin {
     return true;
   }
 
+  private boolean handleGetMetrics(JSONArray data, CallbackContext callbackContext) {
+    JSONObject options = data.optJSONObject(0);
+    boolean reset = options != null && options.optBoolean(RESET, false);
+    boolean trace = options != null && options.optBoolean(TRACE, false);
+
+    try {
+      JSONObject metrics = NotificationService
+      .getInstance(getApplicationContext())
+      .getMetrics(reset);
+
+      if (trace) {
+        metrics.put(TRACE, PushLog.getTrace());
+        if (reset) {
+          PushLog.clearTrace();
+        }
+      }
+
+      callbackContext.success(metrics);
+      return true;
+    }
+    catch (JSONException e) {
+      PushLog.e(TAG, "handleGetMetrics: Got JSON Exception {}", e.getMessage());
+      callbackContext.error(e.getMessage());
+      return false;
+    }
+  }
+
   private boolean handleOnMessageForeground(JSONArray data, CallbackContext callbackContext) {
-    Log.v(TAG, "handleOnMessageForeground() -> data: " + data);
+    PushLog.v(TAG, "handleOnMessageForeground() -> data: {}", data);
+
+    applyBatchOptions(data.optJSONObject(0));
 
     NotificationService
     .getInstance(getApplicationContext())
@@ -145,7 +239,9 @@ public class PushPlugin extends CordovaPlugin {
   }
 
   private boolean handleOnMessageBackground(JSONArray data, CallbackContext callbackContext) {
-    Log.v(TAG, "handleOnMessageBackground() -> data: " + data);
+    PushLog.v(TAG, "handleOnMessageBackground() -> data: {}", data);
+
+    applyBatchOptions(data.optJSONObject(0));
 
     NotificationService
     .getInstance(getApplicationContext())
@@ -158,7 +254,7 @@ public class PushPlugin extends CordovaPlugin {
   public void onPause(boolean multitasking) {
     super.onPause(multitasking);
 
-    Log.v(TAG, "onPause() -> webView: " + webView);
+    PushLog.v(TAG, "onPause() -> webView: {}", webView);
 
     NotificationService
     .getInstance(getApplicationContext())
@@ -169,7 +265,7 @@ public class PushPlugin extends CordovaPlugin {
   public void onResume(boolean multitasking) {
     super.onResume(multitasking);
 
-    Log.v(TAG, "onResume() -> webView: " + webView);
+    PushLog.v(TAG, "onResume() -> webView: {}", webView);
 
     NotificationService
     .getInstance(getApplicationContext())
@@ -179,7 +275,7 @@ public class PushPlugin extends CordovaPlugin {
 
   public void onDestroy() {
 
-    Log.v(TAG, "onDestroy() -> webView: " + webView);
+    PushLog.v(TAG, "onDestroy() -> webView: {}", webView);
 
     NotificationService
     .getInstance(getApplicationContext())
@@ -0,0 +1,131 @@
+package com.plugin.gcm;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resource Cache - Remembers the application label, icon and resolved sound URIs used when
+ * building notifications, so that posting a notification does not go through PackageManager
+ * (a binder call) or re-parse the sound name every time.
+ *
+ * The cache is cleared when the package is updated or the locale changes (see
+ * PackageUpdateReceiver).
+ */
+class ResourceCache {
+
+    private static String TAG = "PushPlugin-ResourceCache";
+
+    public static final String SOUNDS_PATH_PREFIX = "www/sounds";
+
+    private static final ResourceCache sInstance = new ResourceCache();
+
+    // ConcurrentHashMap does not take null values, this marks a sound that does not exist
+    private static final Uri NO_SOUND = Uri.parse("");
+
+    private final ConcurrentMap<String, Uri> mSoundUris = new ConcurrentHashMap<String, Uri>();
+
+    private volatile String mAppName;
+
+    private volatile Integer mIcon;
+
+    private final AtomicLong mHits = new AtomicLong();
+
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public static ResourceCache getInstance() {
+        return sInstance;
+    }
+
+    public String getAppName(Context context) {
+        String appName = mAppName;
+        if (appName != null) {
+            mHits.incrementAndGet();
+            return appName;
+        }
+
+        mMisses.incrementAndGet();
+        CharSequence label = context
+                .getPackageManager()
+                .getApplicationLabel(context.getApplicationInfo());
+        appName = label != null ? label.toString() : null;
+        mAppName = appName;
+        return appName;
+    }
+
+    public int getIcon(Context context) {
+        Integer icon = mIcon;
+        if (icon != null) {
+            mHits.incrementAndGet();
+            return icon;
+        }
+
+        mMisses.incrementAndGet();
+        icon = context.getApplicationInfo().icon;
+        mIcon = icon;
+        return icon;
+    }
+
+    /**
+     * Resolves a sound name from a payload to the URI of the matching res/raw resource. iOS style
+     * paths like "www/sounds/woopwoop.caf" are reduced to the file name without suffix.
+     *
+     * @return the sound URI, or null if there is no such raw resource
+     */
+    public Uri getSoundUri(Context context, String soundname) {
+        Uri sound = mSoundUris.get(soundname);
+        if (sound != null) {
+            mHits.incrementAndGet();
+            return sound == NO_SOUND ? null : sound;
+        }
+
+        mMisses.incrementAndGet();
+        String name = toResourceName(soundname);
+        String packageName = context.getPackageName();
+
+        if (context.getResources().getIdentifier(name, "raw", packageName) != 0) {
+            sound = Uri.parse(ContentResolver.SCHEME_ANDROID_RESOURCE
+                    + "://" + packageName + "/raw/" + name);
+        } else {
+            PushLog.d(TAG, "getSoundUri() - no raw resource for sound: {}", soundname);
+            sound = NO_SOUND;
+        }
+        mSoundUris.put(soundname, sound);
+
+        return sound == NO_SOUND ? null : sound;
+    }
+
+    private static String toResourceName(String soundname) {
+        if (!soundname.startsWith(SOUNDS_PATH_PREFIX)) {
+            return soundname;
+        }
+        // "www/sounds/woopwoop.caf" -> "woopwoop"
+        int start = soundname.lastIndexOf('/') + 1;
+        int end = soundname.indexOf('.', start);
+        return end < 0 ? soundname.substring(start) : soundname.substring(start, end);
+    }
+
+    public void invalidate() {
+        PushLog.d(TAG, "invalidate()");
+        mAppName = null;
+        mIcon = null;
+        mSoundUris.clear();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public void resetCounts() {
+        mHits.set(0);
+        mMisses.set(0);
+    }
+}
@@ -0,0 +1,14 @@
+package com.plugin.gcm;
+
+/**
+ * System Notifier - Shows and clears the notifications in the system notification center.
+ */
+interface SystemNotifier {
+
+    /**
+     * @param alert whether the notification may play sound / vibrate
+     */
+    void post(NotificationScheduler.Post post, boolean alert);
+
+    void cancelAll();
+}
@@ -0,0 +1,200 @@
+package com.plugin.gcm;
+
+import com.plugin.gcm.NotificationDispatcher.WebViewReference;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Web View Index - The WebViewReferences of the NotificationDispatcher, by web view.
+ *
+ * Web views are looked up by identity in a hash table, so register / callback / remove calls do
+ * not scan every registered web view. The web views are only weakly referenced: a web view that
+ * was dropped without its plugin getting onDestroy is collected, and its reference is handed back
+ * by expungeCollected() to be destroyed. For this to work nothing the WebViewReference holds (e.g.
+ * its callbacks) may reference the web view strongly.
+ *
+ * Dispatching iterates getAll(), an array snapshot that is only copied when web views come and
+ * go, like a copy-on-write list.
+ */
+class WebViewIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final WebViewReference[] EMPTY = new WebViewReference[0];
+
+    private static class Entry extends WeakReference<Object> {
+
+        private final int mHash;
+
+        private final WebViewReference mValue;
+
+        private Entry mNext;
+
+        Entry(Object webView, int hash, WebViewReference value, Entry next,
+                ReferenceQueue<Object> queue) {
+            super(webView, queue);
+            mHash = hash;
+            mValue = value;
+            mNext = next;
+        }
+    }
+
+    private final ReferenceQueue<Object> mQueue = new ReferenceQueue<Object>();
+
+    // guarded by this
+    private Entry[] mTable = new Entry[INITIAL_CAPACITY];
+
+    private int mSize = 0;
+
+    private volatile WebViewReference[] mSnapshot = EMPTY;
+
+    /**
+     * @return the reference of the web view, or null if it is not registered
+     */
+    public synchronized WebViewReference get(Object webView) {
+        int hash = hash(webView);
+        for (Entry entry = mTable[hash & (mTable.length - 1)]; entry != null; entry = entry.mNext) {
+            if (entry.mHash == hash && entry.get() == webView) {
+                return entry.mValue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the reference of a web view that is not registered yet.
+     */
+    public synchronized void put(Object webView, WebViewReference reference) {
+        if (mSize >= mTable.length - (mTable.length >>> 2)) {
+            resize();
+        }
+
+        int hash = hash(webView);
+        int index = hash & (mTable.length - 1);
+        mTable[index] = new Entry(webView, hash, reference, mTable[index], mQueue);
+        mSize++;
+
+        WebViewReference[] snapshot = new WebViewReference[mSnapshot.length + 1];
+        System.arraycopy(mSnapshot, 0, snapshot, 0, mSnapshot.length);
+        snapshot[mSnapshot.length] = reference;
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * @return the removed reference, or null if the web view was not registered
+     */
+    public synchronized WebViewReference remove(Object webView) {
+        int hash = hash(webView);
+        for (Entry entry = mTable[hash & (mTable.length - 1)]; entry != null; entry = entry.mNext) {
+            if (entry.mHash == hash && entry.get() == webView) {
+                // no need to be enqueued anymore
+                entry.clear();
+                removeEntry(entry);
+                return entry.mValue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the references of the web views that were collected.
+     *
+     * @return the removed references, null if there were none
+     */
+    public List<WebViewReference> expungeCollected() {
+        // cheap enough to check on every message
+        Entry entry = (Entry) mQueue.poll();
+        if (entry == null) {
+            return null;
+        }
+
+        List<WebViewReference> expunged = new ArrayList<WebViewReference>();
+        synchronized (this) {
+            for (; entry != null; entry = (Entry) mQueue.poll()) {
+                if (removeEntry(entry)) {
+                    expunged.add(entry.mValue);
+                }
+            }
+        }
+        return expunged;
+    }
+
+    /**
+     * @return the registered references, not to be modified
+     */
+    public WebViewReference[] getAll() {
+        return mSnapshot;
+    }
+
+    public int size() {
+        return mSnapshot.length;
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : mTable) {
+            for (; entry != null; entry = entry.mNext) {
+                entry.clear();
+            }
+        }
+        mTable = new Entry[INITIAL_CAPACITY];
+        mSize = 0;
+        mSnapshot = EMPTY;
+    }
+
+    /**
+     * @return false if the entry was not in the table (anymore)
+     */
+    private boolean removeEntry(Entry entry) {
+        int index = entry.mHash & (mTable.length - 1);
+        Entry previous = null;
+        for (Entry item = mTable[index]; item != null; previous = item, item = item.mNext) {
+            if (item == entry) {
+                if (previous == null) {
+                    mTable[index] = item.mNext;
+                } else {
+                    previous.mNext = item.mNext;
+                }
+                mSize--;
+                removeFromSnapshot(entry.mValue);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeFromSnapshot(WebViewReference reference) {
+        WebViewReference[] snapshot = mSnapshot;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] == reference) {
+                WebViewReference[] copy = new WebViewReference[snapshot.length - 1];
+                System.arraycopy(snapshot, 0, copy, 0, i);
+                System.arraycopy(snapshot, i + 1, copy, i, snapshot.length - i - 1);
+                mSnapshot = copy;
+                return;
+            }
+        }
+    }
+
+    private void resize() {
+        Entry[] table = new Entry[mTable.length * 2];
+        for (Entry entry : mTable) {
+            while (entry != null) {
+                Entry next = entry.mNext;
+                int index = entry.mHash & (table.length - 1);
+                entry.mNext = table[index];
+                table[index] = entry;
+                entry = next;
+            }
+        }
+        mTable = table;
+    }
+
+    private static int hash(Object webView) {
+        int hash = System.identityHashCode(webView);
+        // spread the high bits, identity hashes are not uniform in the low ones on every VM
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,144 @@
+package com.plugin.gcm;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Convert Benchmark - Message extras to the notification JSON sent to the web views
+ * (createNotification().toJSONString()), for minimal, typical, 2 KB nested JSON and invalid JSON
+ * payloads.
+ *
+ * orgJson builds the same notification the way it was built before LazyNotification: values
+ * starting with { or [ parsed, a new SimpleDateFormat and UUID.randomUUID() per message. read adds
+ * the JSONObject a consumer in Java parses from the notification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConvertBenchmark {
+
+    @Param({"minimal", "typical", "nested2KB", "invalidJson"})
+    public String message;
+
+    private NotificationDispatcher mDispatcher;
+
+    private MessageSource mMessage;
+
+    @Setup
+    public void setUp() {
+        mDispatcher = InMemoryPlatform.createDispatcher(new NotificationStore());
+        if ("minimal".equals(message)) {
+            mMessage = SampleMessages.createMinimalMessage();
+        } else if ("typical".equals(message)) {
+            mMessage = SampleMessages.createMessage(0);
+        } else if ("nested2KB".equals(message)) {
+            mMessage = SampleMessages.createMessage(0)
+                    .put("data", SampleMessages.createNestedPayload(2048));
+        } else if ("invalidJson".equals(message)) {
+            mMessage = SampleMessages.createMessage(0)
+                    .put("data", "{id: 1, 'type': chat}")
+                    .put("tags", "[\"a\", \"b\"");
+        } else {
+            throw new IllegalArgumentException("Unknown message: " + message);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDispatcher.destroy();
+    }
+
+    @Benchmark
+    public void convert(Blackhole blackhole) {
+        blackhole.consume(mDispatcher.createNotification(mMessage).toJSONString());
+    }
+
+    @Benchmark
+    public void orgJson(Blackhole blackhole) throws JSONException {
+        blackhole.consume(convertWithOrgJson(mMessage).toString());
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) throws JSONException {
+        LazyNotification notification = mDispatcher.createNotification(mMessage);
+        blackhole.consume(notification.toJSONString());
+        blackhole.consume(notification.toJSONObject());
+    }
+
+    /**
+     * Builds the notification the way it was before LazyNotification: an org.json tree with every
+     * value that starts like JSON parsed, a new formatter for the time stamp and a SecureRandom
+     * based uuid.
+     */
+    private static JSONObject convertWithOrgJson(MessageSource extras) throws JSONException {
+        JSONObject notification = new JSONObject();
+        JSONObject payload = new JSONObject();
+        for (String key : extras.keySet()) {
+            Object value = extras.get(key);
+            if (NotificationDispatcher.FROM.equals(key)
+                    || NotificationDispatcher.COLLAPSE_KEY.equals(key)) {
+                notification.put(key, value);
+                continue;
+            }
+            if (NotificationDispatcher.MESSAGE.equals(key)
+                    || NotificationDispatcher.MSGCNT.equals(key)) {
+                notification.put(key, value);
+            } else if (NotificationDispatcher.SOUNDNAMEGCM.equals(key)
+                    || NotificationDispatcher.SOUNDNAMEALT.equals(key)
+                    || NotificationDispatcher.SOUNDNAME.equals(key)) {
+                notification.put(NotificationDispatcher.SOUNDNAMEALT, value);
+            }
+            if (!(value instanceof String)) {
+                continue;
+            }
+            String strValue = (String) value;
+            if (strValue.startsWith(NotificationDispatcher.JSON_START_PREFIX)) {
+                try {
+                    payload.put(key, new JSONObject(strValue));
+                } catch (JSONException e) {
+                    payload.put(key, strValue);
+                }
+            } else if (strValue.startsWith(NotificationDispatcher.JSON_ARRAY_START_PREFIX)) {
+                try {
+                    payload.put(key, new JSONArray(strValue));
+                } catch (JSONException e) {
+                    payload.put(key, strValue);
+                }
+            } else if (!notification.has(key)) {
+                payload.put(key, strValue);
+            }
+        }
+        notification.put(NotificationDispatcher.PAYLOAD, payload);
+        notification.put(NotificationDispatcher.FOREGROUND, false);
+        notification.put(NotificationDispatcher.COLDSTART, false);
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        notification.put(NotificationDispatcher.TIMESTAMP, format.format(new Date()));
+        notification.put(NotificationDispatcher.KEY_UUID, UUID.randomUUID().toString());
+        return notification;
+    }
+}
@@ -0,0 +1,122 @@
+package com.plugin.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursor Benchmark - A web view sent one new message while 10/1k/10k notifications are retained,
+ * with its delivery cursor and, for comparison, with the List.contains dedup the cursor replaced
+ * (every retained notification looked up in the list of the ones the web view received).
+ *
+ * The flush runs on the benchmark thread, so the cost of finding what the web view has not
+ * received yet is not hidden in the dispatch threads. The oldest notification makes room for the
+ * new one, so the retained count stays the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CursorBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int retained;
+
+    // distinct notifications, reused once they left the window
+    private LazyNotification[] mNotifications;
+
+    private int mNext;
+
+    private InMemoryPlatform.RecordingCallbackSink mCallBack;
+
+    private final Clock mClock = InMemoryPlatform.SystemClock.INSTANCE;
+
+    private NotificationStore mStore;
+
+    private NotificationDispatcher.WebViewReference mWebViewReference;
+
+    // what the service kept before: every notification, and per web view the ones it was sent
+    private final List<LazyNotification> mRetainedList = new ArrayList<LazyNotification>();
+
+    private final List<LazyNotification> mSentList = new ArrayList<LazyNotification>();
+
+    @Setup
+    public void setUp() {
+        mNotifications = createNotifications(retained + 1);
+        mNext = retained;
+        mCallBack = new InMemoryPlatform.RecordingCallbackSink(false);
+
+        mStore = new NotificationStore(retained, Long.MAX_VALUE);
+        mWebViewReference = new NotificationDispatcher.WebViewReference(null, new Object(), null);
+        mWebViewReference.setNotificationForegroundCallBack(mCallBack);
+        mWebViewReference.setNotificationBackgroundCallBack(mCallBack);
+        for (int i = 0; i < retained; i++) {
+            mStore.add(mNotifications[i], mClock.elapsedRealtime());
+            mRetainedList.add(mNotifications[i]);
+            mSentList.add(mNotifications[i]);
+        }
+        mWebViewReference.flushNotifications(mStore, 0, mClock);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mWebViewReference.destroy();
+    }
+
+    @Benchmark
+    public void sequence(Blackhole blackhole) {
+        mStore.add(nextNotification(), mClock.elapsedRealtime());
+        mWebViewReference.flushNotifications(mStore, 0, mClock);
+        blackhole.consume(mCallBack.getNotificationCount());
+    }
+
+    @Benchmark
+    public void listContains(Blackhole blackhole) {
+        LazyNotification oldest = mRetainedList.remove(0);
+        mSentList.remove(oldest);
+        mRetainedList.add(nextNotification());
+
+        for (LazyNotification notification : mRetainedList) {
+            if (!mSentList.contains(notification)) {
+                mCallBack.sendNotification(notification.toJSONString());
+                mSentList.add(notification);
+            }
+        }
+        blackhole.consume(mCallBack.getNotificationCount());
+    }
+
+    private LazyNotification nextNotification() {
+        return mNotifications[mNext++ % mNotifications.length];
+    }
+
+    private static LazyNotification[] createNotifications(int count) {
+        NotificationDispatcher dispatcher = InMemoryPlatform.createDispatcher(new NotificationStore());
+        try {
+            LazyNotification[] notifications = new LazyNotification[count];
+            for (int i = 0; i < count; i++) {
+                notifications[i] = dispatcher.createNotification(SampleMessages.createMessage(i));
+                // serialized once, like a stored notification
+                notifications[i].toJSONString();
+            }
+            return notifications;
+        } finally {
+            dispatcher.destroy();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.plugin.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dedup Benchmark - Checking a message GCM delivered again, found by its message id and by the
+ * hash of its extras (a message with a sent time but no id), and recording a new id.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DedupBenchmark {
+
+    private NotificationDispatcher mDispatcher;
+
+    private MessageSource mWithId;
+
+    private MessageSource mWithSentTime;
+
+    private DuplicateFilter mFilter;
+
+    private long mNext;
+
+    @Setup
+    public void setUp() {
+        mDispatcher = InMemoryPlatform.createDispatcher(new NotificationStore());
+        mWithId = SampleMessages.createMessage(0)
+                .put(DuplicateFilter.MESSAGE_ID, "0:1489412345678901%31bd1c9631bd1c96");
+        mWithSentTime = SampleMessages.createMessage(1)
+                .put(DuplicateFilter.SENT_TIME, "1489412345678");
+        mDispatcher.isDuplicate(mWithId);
+        mDispatcher.isDuplicate(mWithSentTime);
+
+        mFilter = DuplicateFilter.open(null, null, System.currentTimeMillis());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDispatcher.destroy();
+    }
+
+    @Benchmark
+    public void duplicateId(Blackhole blackhole) {
+        blackhole.consume(mDispatcher.isDuplicate(mWithId));
+    }
+
+    @Benchmark
+    public void duplicateExtras(Blackhole blackhole) {
+        blackhole.consume(mDispatcher.isDuplicate(mWithSentTime));
+    }
+
+    @Benchmark
+    public void newId(Blackhole blackhole) {
+        blackhole.consume(mFilter.checkAndAdd(DuplicateFilter.hash(Long.toString(mNext++)),
+                System.currentTimeMillis()));
+    }
+}
@@ -0,0 +1,101 @@
+package com.plugin.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan Out Benchmark - One message received and sent to 1/5/20 web views while 0/1k/10k
+ * notifications are retained.
+ *
+ * An operation lasts until every web view got the message on its dispatch thread, so it covers
+ * storing, journaling (none here), the dispatch queues and the flushes, not only the receiving
+ * thread. An extra web view that never sets a notification callback keeps the notifications
+ * retained, as consumed notifications are removed from the store otherwise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FanOutBenchmark {
+
+    // ms
+    static final long DELIVERY_TIMEOUT = 10 * 1000;
+
+    @Param({"1", "5", "20"})
+    public int webViews;
+
+    @Param({"0", "1000", "10000"})
+    public int retained;
+
+    private NotificationDispatcher mDispatcher;
+
+    // the dispatcher only references web views weakly, this keeps them while the benchmark runs
+    private final List<Object> mWebViews = new ArrayList<Object>();
+
+    private InMemoryPlatform.RecordingCallbackSink[] mSinks;
+
+    private MessageSource mMessage;
+
+    // notifications every sink has been sent so far
+    private long mDelivered;
+
+    @Setup
+    public void setUp() {
+        mDispatcher = InMemoryPlatform.createDispatcher(
+                new NotificationStore(Math.max(retained, 1), Long.MAX_VALUE));
+        Object retainingWebView = new Object();
+        mWebViews.add(retainingWebView);
+        mDispatcher.registerWebView(retainingWebView);
+
+        mSinks = new InMemoryPlatform.RecordingCallbackSink[webViews];
+        for (int i = 0; i < webViews; i++) {
+            Object webView = new Object();
+            mSinks[i] = new InMemoryPlatform.RecordingCallbackSink(false);
+            mDispatcher.addNotificationForegroundCallBack(webView, mSinks[i]);
+            mDispatcher.addNotificationBackgroundCallBack(webView, mSinks[i]);
+            mWebViews.add(webView);
+        }
+        for (int i = 0; i < retained; i++) {
+            mDispatcher.onMessage(SampleMessages.createMessage(i));
+        }
+        mDelivered = retained;
+        awaitDelivered();
+
+        mMessage = SampleMessages.createMessage(retained);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDispatcher.destroy();
+        mWebViews.clear();
+    }
+
+    @Benchmark
+    public void onMessage() {
+        mDispatcher.onMessage(mMessage);
+        mDelivered++;
+        awaitDelivered();
+    }
+
+    private void awaitDelivered() {
+        for (InMemoryPlatform.RecordingCallbackSink sink : mSinks) {
+            sink.awaitNotificationCount(mDelivered, DELIVERY_TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.plugin.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ids Benchmark - The uuid and time stamp every notification gets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IdsBenchmark {
+
+    @Benchmark
+    public void uuid(Blackhole blackhole) {
+        blackhole.consume(NotificationDispatcher.generateUUID());
+    }
+
+    @Benchmark
+    public void timestamp(Blackhole blackhole) {
+        blackhole.consume(NotificationDispatcher.getTimeStamp(System.currentTimeMillis()));
+    }
+}
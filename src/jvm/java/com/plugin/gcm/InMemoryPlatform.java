@@ -0,0 +1,288 @@
+package com.plugin.gcm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In Memory Platform - Plain JVM implementations of the interfaces the notification core runs
+ * against, so NotificationDispatcher and friends can be driven (and load tested or profiled)
+ * without a device or emulator.
+ *
+ * Not packaged with the plugin; src/jvm/pom.xml builds it together with the core sources in
+ * src/android/com/plugin/gcm that do not import android.* or org.apache.cordova.*:
+ *
+ * NotificationDispatcher, NotificationStore, NotificationBatcher, NotificationJournal,
+ * NotificationGroups, NotificationScheduler, PushLog and the platform interfaces.
+ */
+class InMemoryPlatform {
+
+    private InMemoryPlatform() {
+    }
+
+    /**
+     * @return a dispatcher on this platform, with the app running, the system clock, and no
+     * journal or duplicate filter file
+     */
+    static NotificationDispatcher createDispatcher(NotificationStore store) {
+        return new NotificationDispatcher(store, null, null, new SettableAppStateProbe(true),
+                new RecordingSystemNotifier(), SystemClock.INSTANCE);
+    }
+
+    /**
+     * A message backed by a map, the JVM counterpart of the GCM intent extras.
+     */
+    static class MapMessageSource implements MessageSource {
+
+        private final Map<String, Object> mValues;
+
+        MapMessageSource() {
+            this(new LinkedHashMap<String, Object>());
+        }
+
+        MapMessageSource(Map<String, Object> values) {
+            mValues = values;
+        }
+
+        public MapMessageSource put(String key, Object value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return mValues.keySet();
+        }
+
+        @Override
+        public Object get(String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public String getString(String key) {
+            Object value = mValues.get(key);
+            return value instanceof String ? (String) value : null;
+        }
+
+        @Override
+        public boolean getBoolean(String key) {
+            Object value = mValues.get(key);
+            return value instanceof Boolean && (Boolean) value;
+        }
+    }
+
+    /**
+     * Keeps everything sent to the callback. Notifications are recorded as the JSON strings that
+     * were sent, batches as one List per result.
+     */
+    static class RecordingCallbackSink implements CallbackSink {
+
+        private final List<Object> mResults = Collections.synchronizedList(new ArrayList<Object>());
+
+        private final AtomicLong mNotificationCount = new AtomicLong();
+
+        private final boolean mRecord;
+
+        RecordingCallbackSink() {
+            this(true);
+        }
+
+        /**
+         * @param record false to only count notifications, e.g. for long running throughput tests
+         */
+        RecordingCallbackSink(boolean record) {
+            mRecord = record;
+        }
+
+        @Override
+        public void sendNotification(String notification) {
+            mNotificationCount.incrementAndGet();
+            if (mRecord) {
+                mResults.add(notification);
+            }
+        }
+
+        @Override
+        public void sendNotifications(List<String> notifications) {
+            mNotificationCount.addAndGet(notifications.size());
+            if (mRecord) {
+                mResults.add(new ArrayList<String>(notifications));
+            }
+        }
+
+        @Override
+        public void success(String message) {
+            if (mRecord) {
+                mResults.add(message);
+            }
+        }
+
+        @Override
+        public void error(String message) {
+            if (mRecord) {
+                mResults.add(message);
+            }
+        }
+
+        /**
+         * @return a copy of the results in the order they were sent
+         */
+        public List<Object> getResults() {
+            synchronized (mResults) {
+                return new ArrayList<Object>(mResults);
+            }
+        }
+
+        public long getNotificationCount() {
+            return mNotificationCount.get();
+        }
+
+        /**
+         * Waits until the sink was sent at least count notifications, spinning so that a benchmark
+         * waiting for the dispatch threads measures them rather than a sleep.
+         *
+         * @throws IllegalStateException if that takes longer than timeout ms
+         */
+        public void awaitNotificationCount(long count, long timeout) {
+            long deadline = System.nanoTime() + timeout * 1000000;
+            while (mNotificationCount.get() < count) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IllegalStateException("Sent " + mNotificationCount.get()
+                            + " notifications, expected " + count);
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Keeps the posts instead of showing them.
+     */
+    static class RecordingSystemNotifier implements SystemNotifier {
+
+        private final List<NotificationScheduler.Post> mPosts =
+                Collections.synchronizedList(new ArrayList<NotificationScheduler.Post>());
+
+        private final AtomicLong mAlertCount = new AtomicLong();
+
+        private final AtomicLong mCancelCount = new AtomicLong();
+
+        @Override
+        public void post(NotificationScheduler.Post post, boolean alert) {
+            if (alert) {
+                mAlertCount.incrementAndGet();
+            }
+            mPosts.add(post);
+        }
+
+        @Override
+        public void cancelAll() {
+            mCancelCount.incrementAndGet();
+            mPosts.clear();
+        }
+
+        public List<NotificationScheduler.Post> getPosts() {
+            synchronized (mPosts) {
+                return new ArrayList<NotificationScheduler.Post>(mPosts);
+            }
+        }
+
+        public long getAlertCount() {
+            return mAlertCount.get();
+        }
+
+        public long getCancelCount() {
+            return mCancelCount.get();
+        }
+    }
+
+    /**
+     * A clock that only moves when told to. Starts at the current wall clock time.
+     */
+    static class ManualClock implements Clock {
+
+        private final long mWallClockOffset = System.currentTimeMillis();
+
+        private final AtomicLong mElapsed = new AtomicLong();
+
+        @Override
+        public long currentTimeMillis() {
+            return mWallClockOffset + mElapsed.get();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return mElapsed.get();
+        }
+
+        public void advance(long millis) {
+            mElapsed.addAndGet(millis);
+        }
+    }
+
+    static class SystemClock implements Clock {
+
+        static final SystemClock INSTANCE = new SystemClock();
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1000000;
+        }
+    }
+
+    static class SettableAppStateProbe implements AppStateProbe {
+
+        private final AtomicBoolean mRunning;
+
+        SettableAppStateProbe(boolean running) {
+            mRunning = new AtomicBoolean(running);
+        }
+
+        @Override
+        public boolean isApplicationRunning() {
+            return mRunning.get();
+        }
+
+        public void setApplicationRunning(boolean running) {
+            mRunning.set(running);
+        }
+    }
+
+    /**
+     * Routes PushLog to stderr, only at or above the given priority.
+     */
+    static class ConsoleLogWriter implements PushLog.Writer {
+
+        private final int mMinPriority;
+
+        ConsoleLogWriter(int minPriority) {
+            mMinPriority = minPriority;
+        }
+
+        @Override
+        public void println(int priority, String tag, String message) {
+            if (priority >= mMinPriority) {
+                System.err.println(tag + ": " + message);
+            }
+        }
+
+        @Override
+        public void printError(String tag, String message, Throwable throwable) {
+            if (PushLog.ERROR >= mMinPriority) {
+                System.err.println(tag + ": " + message);
+                throwable.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.plugin.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log Benchmark - A message with a 4 KB payload received and sent to one web view, with VERBOSE
+ * logging written out, with the default level (INFO) and with VERBOSE logging recorded in the
+ * trace buffer.
+ *
+ * The writer formats every message, as it would be for logcat, but prints nothing. An operation
+ * lasts until the web view got the message, so the logging of the dispatch thread is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LogBenchmark {
+
+    @Param({"verbose", "default", "trace"})
+    public String log;
+
+    private int mLevel;
+
+    private boolean mTrace;
+
+    private NotificationDispatcher mDispatcher;
+
+    // the dispatcher only references web views weakly
+    private Object mWebView;
+
+    private InMemoryPlatform.RecordingCallbackSink mSink;
+
+    private MessageSource mMessage;
+
+    private long mDelivered;
+
+    @Setup
+    public void setUp() {
+        mLevel = PushLog.getLevel();
+        mTrace = PushLog.isTrace();
+        PushLog.setWriter(new PushLog.Writer() {
+            @Override
+            public void println(int priority, String tag, String message) {
+            }
+
+            @Override
+            public void printError(String tag, String message, Throwable throwable) {
+            }
+        });
+        PushLog.setLevel("default".equals(log) ? PushLog.DEFAULT_LEVEL : PushLog.VERBOSE);
+        PushLog.setTrace("trace".equals(log));
+
+        mDispatcher = InMemoryPlatform.createDispatcher(new NotificationStore());
+        mWebView = new Object();
+        mSink = new InMemoryPlatform.RecordingCallbackSink(false);
+        mDispatcher.addNotificationForegroundCallBack(mWebView, mSink);
+        mDispatcher.addNotificationBackgroundCallBack(mWebView, mSink);
+        mMessage = SampleMessages.createMessage(0).put("data", SampleMessages.createPayload(4096));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDispatcher.destroy();
+        mWebView = null;
+        PushLog.setWriter(null);
+        PushLog.setLevel(mLevel);
+        PushLog.setTrace(mTrace);
+        PushLog.clearTrace();
+    }
+
+    @Benchmark
+    public void onMessage() {
+        mDispatcher.onMessage(mMessage);
+        mDelivered++;
+        mSink.awaitNotificationCount(mDelivered, FanOutBenchmark.DELIVERY_TIMEOUT);
+    }
+}
@@ -0,0 +1,64 @@
+package com.plugin.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay Benchmark - A web view setting its notification callbacks while 1k/10k notifications are
+ * retained, until it got all of them, and going away again.
+ *
+ * A web view that never sets a notification callback keeps the notifications retained.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ReplayBenchmark {
+
+    @Param({"1000", "10000"})
+    public int retained;
+
+    private NotificationDispatcher mDispatcher;
+
+    private final Object mRetainingWebView = new Object();
+
+    @Setup
+    public void setUp() {
+        mDispatcher = InMemoryPlatform.createDispatcher(
+                new NotificationStore(retained, Long.MAX_VALUE));
+        mDispatcher.registerWebView(mRetainingWebView);
+        for (int i = 0; i < retained; i++) {
+            mDispatcher.onMessage(SampleMessages.createMessage(i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDispatcher.destroy();
+    }
+
+    @Benchmark
+    public void replay() {
+        Object webView = new Object();
+        InMemoryPlatform.RecordingCallbackSink sink =
+                new InMemoryPlatform.RecordingCallbackSink(false);
+        mDispatcher.addNotificationForegroundCallBack(webView, sink);
+        mDispatcher.addNotificationBackgroundCallBack(webView, sink);
+        sink.awaitNotificationCount(retained, FanOutBenchmark.DELIVERY_TIMEOUT);
+        mDispatcher.removeWebView(webView);
+    }
+}
@@ -0,0 +1,73 @@
+package com.plugin.gcm;
+
+/**
+ * Sample Messages - GCM messages shaped like the ones apps get, for the benchmarks and tests.
+ */
+class SampleMessages {
+
+    private SampleMessages() {
+    }
+
+    /**
+     * A message shaped like a typical GCM message: system keys, legacy keys, a sound and JSON
+     * object / array payload values.
+     */
+    static InMemoryPlatform.MapMessageSource createMessage(int index) {
+        return new InMemoryPlatform.MapMessageSource()
+                .put(NotificationDispatcher.FROM, "123456789012")
+                .put(NotificationDispatcher.COLLAPSE_KEY, "do_not_collapse")
+                .put(NotificationDispatcher.MESSAGE, "Message number " + index)
+                .put(NotificationDispatcher.MSGCNT, "3")
+                .put(NotificationDispatcher.SOUNDNAMEGCM, "www/sounds/woopwoop.caf")
+                .put("title", "Push title")
+                .put("notId", String.valueOf(index))
+                .put("data", "{\"id\":" + index + ",\"type\":\"chat\",\"room\":\"general\"}")
+                .put("tags", "[\"a\",\"b\",\"c\"]");
+    }
+
+    /**
+     * A notification message with only what GCM always sends and a text.
+     */
+    static InMemoryPlatform.MapMessageSource createMinimalMessage() {
+        return new InMemoryPlatform.MapMessageSource()
+                .put(NotificationDispatcher.FROM, "123456789012")
+                .put(NotificationDispatcher.COLLAPSE_KEY, "do_not_collapse")
+                .put(DuplicateFilter.MESSAGE_ID, "0:1489412345678901%31bd1c9631bd1c96")
+                .put(NotificationDispatcher.MESSAGE, "Hello");
+    }
+
+    /**
+     * @return a JSON object of about size characters: a page of chat messages, each with a
+     * nested sender object and an array of reactions
+     */
+    static String createNestedPayload(int size) {
+        StringBuilder json = new StringBuilder(size + 256);
+        json.append("{\"room\":\"general\",\"messages\":[");
+        for (int i = 0; json.length() < size; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(i)
+                    .append(",\"text\":\"Message \\\"").append(i).append("\\\" \\u00e9t\\u00e9\"")
+                    .append(",\"sender\":{\"id\":").append(1000 + i)
+                    .append(",\"name\":\"User ").append(i).append("\",\"online\":true}")
+                    .append(",\"reactions\":[1,2.5,-3e2,null]}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * @return a flat JSON object string of about size characters
+     */
+    static String createPayload(int size) {
+        StringBuilder payload = new StringBuilder(size + 32).append('{');
+        for (int i = 0; payload.length() < size; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append("\"key").append(i).append("\":\"value number ").append(i).append('"');
+        }
+        return payload.append('}').toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.plugin.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Web Views Benchmark - Looking up one of 100 registered web views, and registering and removing
+ * one next to them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class WebViewsBenchmark {
+
+    private static final int WEB_VIEW_COUNT = 100;
+
+    private NotificationDispatcher mDispatcher;
+
+    // the dispatcher only references web views weakly
+    private final Object[] mWebViews = new Object[WEB_VIEW_COUNT];
+
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mDispatcher = InMemoryPlatform.createDispatcher(new NotificationStore());
+        for (int i = 0; i < mWebViews.length; i++) {
+            mWebViews[i] = new Object();
+            mDispatcher.addNotificationForegroundCallBack(mWebViews[i],
+                    new InMemoryPlatform.RecordingCallbackSink(false));
+            mDispatcher.addNotificationBackgroundCallBack(mWebViews[i],
+                    new InMemoryPlatform.RecordingCallbackSink(false));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDispatcher.destroy();
+    }
+
+    @Benchmark
+    public void lookup() {
+        mDispatcher.registerWebView(mWebViews[mNext++ % mWebViews.length]);
+    }
+
+    @Benchmark
+    public void addRemove() {
+        Object webView = new Object();
+        mDispatcher.registerWebView(webView);
+        mDispatcher.removeWebView(webView);
+    }
+}
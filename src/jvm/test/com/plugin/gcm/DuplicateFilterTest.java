@@ -0,0 +1,56 @@
+package com.plugin.gcm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Duplicate Filter Test - Checks which messages NotificationDispatcher.isDuplicate() drops: a
+ * message id or sent time seen before, but never a message that has neither.
+ */
+public class DuplicateFilterTest {
+
+    private final NotificationDispatcher mDispatcher =
+            InMemoryPlatform.createDispatcher(new NotificationStore());
+
+    @After
+    public void tearDown() {
+        mDispatcher.destroy();
+    }
+
+    @Test
+    public void dropsSameMessageId() {
+        assertFalse(mDispatcher.isDuplicate(createMessage().put(DuplicateFilter.MESSAGE_ID,
+                "0:1489412345678901%31bd1c9631bd1c96")));
+        // a redelivery has the same id, whatever else changed
+        assertTrue(mDispatcher.isDuplicate(createMessage().put(DuplicateFilter.MESSAGE_ID,
+                "0:1489412345678901%31bd1c9631bd1c96").put("msgcnt", "4")));
+        assertFalse(mDispatcher.isDuplicate(createMessage().put(DuplicateFilter.MESSAGE_ID,
+                "0:1489412345678902%31bd1c9631bd1c96")));
+    }
+
+    @Test
+    public void dropsSameSentTime() {
+        assertFalse(mDispatcher.isDuplicate(
+                createMessage().put(DuplicateFilter.SENT_TIME, "1489412345678")));
+        assertTrue(mDispatcher.isDuplicate(
+                createMessage().put(DuplicateFilter.SENT_TIME, "1489412345678")));
+        assertFalse(mDispatcher.isDuplicate(
+                createMessage().put(DuplicateFilter.SENT_TIME, "1489412345679")));
+    }
+
+    @Test
+    public void keepsIdenticalMessagesWithoutId() {
+        for (int i = 0; i < 3; i++) {
+            assertFalse("send " + i, mDispatcher.isDuplicate(createMessage()));
+        }
+    }
+
+    private static InMemoryPlatform.MapMessageSource createMessage() {
+        return new InMemoryPlatform.MapMessageSource()
+                .put(NotificationDispatcher.FROM, "123456789012")
+                .put(NotificationDispatcher.MESSAGE, "Your order has shipped");
+    }
+}
@@ -0,0 +1,95 @@
+package com.plugin.gcm;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lazy Notification Test - Checks that payload values starting with '{' or '[' come out as the
+ * org.json tree the notification was built as before: strict JSON as is, JSON only org.json
+ * accepts normalized by it, and anything else as a string.
+ */
+public class LazyNotificationTest {
+
+    private static final String[] VALUES = {
+            // strict, embedded as is
+            "{\"id\":1,\"type\":\"chat\",\"tags\":[\"a\",\"b\"],\"score\":-2.5e3,\"seen\":null}",
+            "[1, {\"a\": [true, false]}, \"\\u00e9\\n\"]",
+            "{}",
+            "[]",
+            // lenient, normalized by org.json
+            "{id: 1, 'type': chat}",
+            "['a', b, 3]",
+            "{\"id\":1,}",
+            "{\"id\":1;\"type\":\"chat\"}",
+            // not JSON, kept as a string
+            "{\"id\":}",
+            "[\"a\", \"b\"",
+            "{not json",
+            "[1, 2] and more",
+    };
+
+    @Test
+    public void matchesOrgJson() throws JSONException {
+        for (String value : VALUES) {
+            Object actual = getPayloadValue(value);
+            Object expected = parseLikeOrgJson(value);
+            if (expected instanceof String) {
+                assertEquals(value, expected, actual);
+            } else {
+                assertTrue(value + " -> " + actual, similar(expected, actual));
+            }
+        }
+    }
+
+    @Test
+    public void normalizesLenientJson() throws JSONException {
+        JSONObject object = (JSONObject) getPayloadValue("{id: 1, 'type': chat}");
+        assertEquals(1, object.getInt("id"));
+        assertEquals("chat", object.getString("type"));
+
+        JSONArray array = (JSONArray) getPayloadValue("['a', b, 3]");
+        assertEquals("[\"a\",\"b\",3]", array.toString());
+    }
+
+    @Test
+    public void keepsInvalidJsonAsString() throws JSONException {
+        assertEquals("{\"id\":}", getPayloadValue("{\"id\":}"));
+        assertEquals("[\"a\", \"b\"", getPayloadValue("[\"a\", \"b\""));
+    }
+
+    private static Object getPayloadValue(String value) throws JSONException {
+        MessageSource message = SampleMessages.createMinimalMessage().put("data", value);
+        String json = new LazyNotification(message, true, false, System.currentTimeMillis(),
+                "uuid").toJSONString();
+        return new JSONObject(json).getJSONObject(NotificationDispatcher.PAYLOAD).get("data");
+    }
+
+    /**
+     * What the notification held when it was built as an org.json tree.
+     */
+    private static Object parseLikeOrgJson(String value) {
+        try {
+            if (value.startsWith("{") && value.endsWith("}")) {
+                return new JSONObject(value);
+            }
+            if (value.startsWith("[") && value.endsWith("]")) {
+                return new JSONArray(value);
+            }
+        } catch (JSONException e) {
+            // kept as a string
+        }
+        return value;
+    }
+
+    private static boolean similar(Object expected, Object actual) {
+        if (expected instanceof JSONObject) {
+            return actual instanceof JSONObject && ((JSONObject) expected).similar(actual);
+        }
+        return actual instanceof JSONArray && ((JSONArray) expected).similar(actual);
+    }
+}
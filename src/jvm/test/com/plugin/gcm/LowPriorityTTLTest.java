@@ -0,0 +1,57 @@
+package com.plugin.gcm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Low Priority TTL Test - Checks that the age of a low priority notification is measured with the
+ * dispatcher's Clock, so a retained one past the TTL is not sent to a web view registered later.
+ */
+public class LowPriorityTTLTest {
+
+    private static final long DELIVERY_TIMEOUT = 10 * 1000;
+
+    private final InMemoryPlatform.ManualClock mClock = new InMemoryPlatform.ManualClock();
+
+    private final NotificationDispatcher mDispatcher = new NotificationDispatcher(
+            new NotificationStore(), null, null, new InMemoryPlatform.SettableAppStateProbe(true),
+            new InMemoryPlatform.RecordingSystemNotifier(), mClock);
+
+    @After
+    public void tearDown() {
+        mDispatcher.destroy();
+    }
+
+    @Test
+    public void skipsExpiredLowPriority() throws Exception {
+        mDispatcher.setLowPriorityTTL(1000);
+        PushMetrics.getInstance().reset();
+
+        mDispatcher.onMessage(createLowPriorityMessage(1));
+        mClock.advance(1500);
+        mDispatcher.onMessage(createLowPriorityMessage(2));
+
+        InMemoryPlatform.RecordingCallbackSink sink = new InMemoryPlatform.RecordingCallbackSink();
+        Object webView = new Object();
+        mDispatcher.addNotificationForegroundCallBack(webView, sink);
+        mDispatcher.addNotificationBackgroundCallBack(webView, sink);
+        sink.awaitNotificationCount(1, DELIVERY_TIMEOUT);
+        // the expired one shows up by now if it is sent at all
+        Thread.sleep(100);
+
+        List<Object> results = sink.getResults();
+        assertEquals("notifications", 1, sink.getNotificationCount());
+        assertTrue("sent " + results, results.get(0).toString().contains("Message number 2"));
+        assertEquals("lowPriorityExpired", 1,
+                PushMetrics.getInstance().mLowPriorityExpired.get());
+    }
+
+    private static MessageSource createLowPriorityMessage(int index) {
+        return SampleMessages.createMessage(index).put(NotificationPriority.PRIORITY, "low");
+    }
+}
@@ -0,0 +1,137 @@
+package com.plugin.gcm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Notification Journal Test - Fills the journal past its capacity so it compacts, and replays it
+ * as a process killed before, during or after the compaction would.
+ */
+public class NotificationJournalTest {
+
+    // about 1 KB per record, so 600 records do not fit in the journal
+    private static final int RECORD_COUNT = 600;
+
+    private static final int ACKNOWLEDGED = 300;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    private File mCompactFile;
+
+    private NotificationJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.newFolder(), NotificationJournal.FILE_NAME);
+        mCompactFile = new File(mFile.getPath() + NotificationJournal.COMPACT_SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+    }
+
+    @Test
+    public void replaysAfterCompaction() {
+        mJournal = NotificationJournal.open(mFile, null);
+        append(1, RECORD_COUNT);
+
+        assertFalse("compact file left", mCompactFile.exists());
+        assertRecords(mJournal, ACKNOWLEDGED + 1, RECORD_COUNT);
+        // killed without closing: the pages written through the mapping are kept
+        assertReopened(ACKNOWLEDGED + 1, RECORD_COUNT);
+    }
+
+    /**
+     * A process killed while writing the compacted file leaves the journal as it was, and a
+     * half written compact file that is ignored.
+     */
+    @Test
+    public void replaysAfterInterruptedCompaction() throws IOException {
+        mJournal = NotificationJournal.open(mFile, null);
+        append(1, 500);
+        mJournal.close();
+        mJournal = null;
+
+        // the compacted records and header are written, but not renamed over the journal yet
+        RandomAccessFile compactFile = new RandomAccessFile(mCompactFile, "rw");
+        try {
+            compactFile.setLength(NotificationJournal.DEFAULT_CAPACITY);
+            compactFile.seek(0);
+            for (int i = 0; i < 4096; i++) {
+                compactFile.writeLong(0x5053_4a31_0000_0001L + i);
+            }
+        } finally {
+            compactFile.close();
+        }
+
+        mJournal = NotificationJournal.open(mFile, null);
+        assertFalse("compact file left", mCompactFile.exists());
+        assertRecords(mJournal, ACKNOWLEDGED + 1, 500);
+
+        // compacts for real this time
+        append(501, RECORD_COUNT);
+        assertRecords(mJournal, ACKNOWLEDGED + 1, RECORD_COUNT);
+        assertReopened(ACKNOWLEDGED + 1, RECORD_COUNT);
+    }
+
+    /**
+     * Appends the records first through last, acknowledging the first ACKNOWLEDGED once they are
+     * in.
+     */
+    private void append(int first, int last) {
+        for (int sequence = first; sequence <= last; sequence++) {
+            mJournal.append(sequence, createJson(sequence));
+            if (sequence == ACKNOWLEDGED) {
+                mJournal.acknowledge(ACKNOWLEDGED);
+            }
+        }
+    }
+
+    /**
+     * Opens the journal file again, as the next process would, and checks its records.
+     */
+    private void assertReopened(int first, int last) {
+        NotificationJournal journal = NotificationJournal.open(mFile, null);
+        try {
+            assertRecords(journal, first, last);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static void assertRecords(NotificationJournal journal, int first, int last) {
+        List<NotificationJournal.Record> records = journal.readUnacknowledged();
+        assertEquals("unacknowledged", last - first + 1, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            NotificationJournal.Record record = records.get(i);
+            assertEquals("sequence", first + i, record.getSequence());
+            assertEquals("json", createJson(first + i), record.getJson());
+        }
+    }
+
+    private static String createJson(int sequence) {
+        StringBuilder json = new StringBuilder(1024).append("{\"sequence\":").append(sequence)
+                .append(",\"pad\":\"");
+        while (json.length() < 1000) {
+            json.append('x');
+        }
+        return json.append("\"}").toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.plugin.gcm;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Notification Scheduler Test - Checks that every post reaches the notifier right away and that
+ * only the alert budget of each window alerts.
+ */
+public class NotificationSchedulerTest {
+
+    private final InMemoryPlatform.ManualClock mClock = new InMemoryPlatform.ManualClock();
+
+    private final InMemoryPlatform.RecordingSystemNotifier mNotifier =
+            new InMemoryPlatform.RecordingSystemNotifier();
+
+    private final NotificationScheduler mScheduler = new NotificationScheduler(mNotifier, mClock);
+
+    @Test
+    public void postsBurstRightAway() {
+        for (int i = 0; i < 5; i++) {
+            submit(1, 3000, 1);
+            mClock.advance(100);
+        }
+
+        assertEquals("posts", 5, mNotifier.getPosts().size());
+        assertEquals("alerts", 1, mNotifier.getAlertCount());
+    }
+
+    @Test
+    public void alertsAgainInNextWindow() {
+        submit(1, 3000, 2);
+        submit(2, 3000, 2);
+        submit(3, 3000, 2);
+        assertEquals("alerts in the first window", 2, mNotifier.getAlertCount());
+
+        mClock.advance(3000);
+        submit(4, 3000, 2);
+
+        List<NotificationScheduler.Post> posts = mNotifier.getPosts();
+        assertEquals("posts", 4, posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            assertEquals("post " + i, i + 1, posts.get(i).getId());
+        }
+        assertEquals("alerts", 3, mNotifier.getAlertCount());
+    }
+
+    private void submit(int id, long window, int maxAlerts) {
+        mScheduler.submit(new NotificationScheduler.Post(id, null, null,
+                mClock.currentTimeMillis()), window, maxAlerts);
+    }
+}
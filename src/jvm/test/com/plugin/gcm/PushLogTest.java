@@ -0,0 +1,67 @@
+package com.plugin.gcm;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Push Log Test - Checks that an error logged with a throwable keeps its stack trace, both when
+ * written and when recorded in the trace buffer.
+ */
+public class PushLogTest {
+
+    private final List<Throwable> mThrowables = new ArrayList<Throwable>();
+
+    private final List<String> mMessages = new ArrayList<String>();
+
+    @After
+    public void tearDown() {
+        PushLog.setWriter(null);
+        PushLog.setLevel(PushLog.DEFAULT_LEVEL);
+        PushLog.setTrace(false);
+        PushLog.clearTrace();
+    }
+
+    @Test
+    public void passesThrowableToWriter() {
+        PushLog.setWriter(new PushLog.Writer() {
+            @Override
+            public void println(int priority, String tag, String message) {
+                mMessages.add(message);
+            }
+
+            @Override
+            public void printError(String tag, String message, Throwable throwable) {
+                mMessages.add(message);
+                mThrowables.add(throwable);
+            }
+        });
+        RuntimeException exception = new RuntimeException("task failed");
+
+        PushLog.e("PushLogTest", "runNext: task failed", exception);
+
+        assertEquals("runNext: task failed", mMessages.get(0));
+        assertSame(exception, mThrowables.get(0));
+    }
+
+    @Test
+    public void recordsStackTraceInTrace() throws Exception {
+        PushLog.clearTrace();
+        PushLog.setTrace(true);
+
+        PushLog.e("PushLogTest", "runNext: task failed", new RuntimeException("task failed"));
+
+        JSONArray trace = PushLog.getTrace();
+        String message = trace.getJSONObject(trace.length() - 1).getString("message");
+        assertTrue(message, message.startsWith("runNext: task failed\n"));
+        assertTrue(message, message.contains("java.lang.RuntimeException: task failed"));
+        assertTrue(message, message.contains("at com.plugin.gcm.PushLogTest.recordsStackTrace"));
+    }
+}
@@ -0,0 +1,246 @@
+package com.plugin.gcm;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stress Test - Hammers the notification core from many threads and checks that every web view
+ * gets every message exactly once.
+ *
+ * The default store (100 notifications) is used, so a burst evicts notifications before the
+ * dispatch queues get to them.
+ */
+public class StressTest {
+
+    private static final int WEB_VIEW_COUNT = 10;
+
+    // how long the web views get to receive everything after the producers are done (ms)
+    private static final long DELIVERY_TIMEOUT = 60 * 1000;
+
+    /**
+     * One producer sends 1000 messages to 10 web views, far more than the store retains.
+     */
+    @Test
+    public void burst() throws Exception {
+        runBurst(0);
+    }
+
+    /**
+     * The same with a bridge that takes 1 ms per result.
+     */
+    @Test
+    public void burstSlowBridge() throws Exception {
+        runBurst(1);
+    }
+
+    /**
+     * 8 producers send 4000 messages to 10 web views, half of them batching, while another thread
+     * registers and removes web views and toggles the app between foreground and background;
+     * afterwards nothing may be left unacknowledged in the journal.
+     */
+    @Test
+    public void producers() throws Exception {
+        File dir = Files.createTempDirectory("stresstest").toFile();
+        File journalFile = new File(dir, NotificationJournal.FILE_NAME);
+        final NotificationDispatcher dispatcher = createDispatcher(journalFile);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        try {
+            List<Object> webViews = new ArrayList<Object>();
+            List<InMemoryPlatform.RecordingCallbackSink> sinks =
+                    new ArrayList<InMemoryPlatform.RecordingCallbackSink>();
+            for (int i = 0; i < WEB_VIEW_COUNT; i++) {
+                Object webView = new Object();
+                InMemoryPlatform.RecordingCallbackSink sink = new SlowCallbackSink(0);
+                dispatcher.addNotificationForegroundCallBack(webView, sink);
+                dispatcher.addNotificationBackgroundCallBack(webView, sink);
+                if (i % 2 == 0) {
+                    dispatcher.setBatching(webView, 20, 50);
+                }
+                webViews.add(webView);
+                sinks.add(sink);
+            }
+
+            PushMetrics.getInstance().reset();
+
+            // web views coming and going, and the app moving between foreground and background
+            Thread churn = new Thread("StressTest-churn") {
+                @Override
+                public void run() {
+                    boolean foreground = false;
+                    while (running.get()) {
+                        Object webView = new Object();
+                        InMemoryPlatform.RecordingCallbackSink sink =
+                                new InMemoryPlatform.RecordingCallbackSink(false);
+                        dispatcher.addNotificationForegroundCallBack(webView, sink);
+                        dispatcher.addNotificationBackgroundCallBack(webView, sink);
+                        dispatcher.setForeground(foreground = !foreground);
+                        dispatcher.removeWebView(webView);
+                    }
+                }
+            };
+            churn.start();
+
+            int producerCount = 8;
+            final int perProducer = 500;
+            Thread[] producers = new Thread[producerCount];
+            for (int p = 0; p < producerCount; p++) {
+                final int base = p * perProducer;
+                producers[p] = new Thread("StressTest-producer-" + p) {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < perProducer; i++) {
+                            dispatcher.onMessage(SampleMessages.createMessage(base + i));
+                        }
+                    }
+                };
+                producers[p].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            running.set(false);
+            churn.join();
+
+            assertDelivered(sinks, producerCount * perProducer);
+            webViews.clear();
+        } finally {
+            running.set(false);
+            dispatcher.destroy();
+        }
+
+        NotificationJournal journal = NotificationJournal.open(journalFile, null);
+        try {
+            assertEquals("unacknowledged", 0, journal.readUnacknowledged().size());
+        } finally {
+            journal.close();
+            delete(dir);
+        }
+    }
+
+    private void runBurst(long bridgeDelay) throws Exception {
+        NotificationDispatcher dispatcher = createDispatcher(null);
+        try {
+            List<Object> webViews = new ArrayList<Object>();
+            List<InMemoryPlatform.RecordingCallbackSink> sinks =
+                    new ArrayList<InMemoryPlatform.RecordingCallbackSink>();
+            for (int i = 0; i < WEB_VIEW_COUNT; i++) {
+                Object webView = new Object();
+                InMemoryPlatform.RecordingCallbackSink sink = new SlowCallbackSink(bridgeDelay);
+                dispatcher.addNotificationForegroundCallBack(webView, sink);
+                dispatcher.addNotificationBackgroundCallBack(webView, sink);
+                webViews.add(webView);
+                sinks.add(sink);
+            }
+
+            PushMetrics.getInstance().reset();
+            int count = 1000;
+            for (int i = 0; i < count; i++) {
+                dispatcher.onMessage(SampleMessages.createMessage(i));
+            }
+
+            assertDelivered(sinks, count);
+            webViews.clear();
+        } finally {
+            dispatcher.destroy();
+        }
+    }
+
+    /**
+     * Waits for every sink to get count notifications, then checks that none got a notification
+     * twice and that nothing was dropped.
+     */
+    private static void assertDelivered(List<InMemoryPlatform.RecordingCallbackSink> sinks,
+            int count) throws InterruptedException {
+        for (InMemoryPlatform.RecordingCallbackSink sink : sinks) {
+            sink.awaitNotificationCount(count, DELIVERY_TIMEOUT);
+        }
+        // anything sent twice shows up by now
+        Thread.sleep(100);
+
+        for (int i = 0; i < sinks.size(); i++) {
+            InMemoryPlatform.RecordingCallbackSink sink = sinks.get(i);
+            assertEquals("notifications of web view " + i, count, sink.getNotificationCount());
+            assertEquals("distinct notifications of web view " + i, count, countDistinct(sink));
+        }
+        assertEquals("notificationsDropped", 0,
+                PushMetrics.getInstance().mNotificationsDropped.get());
+    }
+
+    /**
+     * @return the number of different notifications sent to the sink, one by one or in batches;
+     * every notification has its own uuid
+     */
+    @SuppressWarnings("unchecked")
+    private static int countDistinct(InMemoryPlatform.RecordingCallbackSink sink) {
+        Set<String> notifications = new HashSet<String>();
+        for (Object result : sink.getResults()) {
+            if (result instanceof List) {
+                notifications.addAll((List<String>) result);
+            } else {
+                notifications.add((String) result);
+            }
+        }
+        return notifications.size();
+    }
+
+    private static NotificationDispatcher createDispatcher(File journalFile) {
+        return new NotificationDispatcher(new NotificationStore(), journalFile, null,
+                new InMemoryPlatform.SettableAppStateProbe(true),
+                new InMemoryPlatform.RecordingSystemNotifier(),
+                InMemoryPlatform.SystemClock.INSTANCE);
+    }
+
+    private static void delete(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    /**
+     * Records like RecordingCallbackSink, taking bridgeDelay ms per result like a busy bridge.
+     */
+    private static class SlowCallbackSink extends InMemoryPlatform.RecordingCallbackSink {
+
+        private final long mBridgeDelay;
+
+        SlowCallbackSink(long bridgeDelay) {
+            mBridgeDelay = bridgeDelay;
+        }
+
+        @Override
+        public void sendNotification(String notification) {
+            pause();
+            super.sendNotification(notification);
+        }
+
+        @Override
+        public void sendNotifications(List<String> notifications) {
+            pause();
+            super.sendNotifications(notifications);
+        }
+
+        private void pause() {
+            if (mBridgeDelay > 0) {
+                try {
+                    Thread.sleep(mBridgeDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.plugin.gcm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Web View Index Test - 100 web views registered at the same time, half of them dropped without
+ * removeWebView.
+ */
+public class WebViewIndexTest {
+
+    private static final int WEB_VIEW_COUNT = 100;
+
+    // ms
+    private static final long DELIVERY_TIMEOUT = 10 * 1000;
+
+    private NotificationDispatcher mDispatcher;
+
+    private final Object[] mWebViews = new Object[WEB_VIEW_COUNT];
+
+    private final InMemoryPlatform.RecordingCallbackSink[] mSinks =
+            new InMemoryPlatform.RecordingCallbackSink[WEB_VIEW_COUNT];
+
+    @Before
+    public void setUp() {
+        mDispatcher = InMemoryPlatform.createDispatcher(new NotificationStore());
+        for (int i = 0; i < mWebViews.length; i++) {
+            mWebViews[i] = new Object();
+            mSinks[i] = new InMemoryPlatform.RecordingCallbackSink(false);
+            mDispatcher.addNotificationForegroundCallBack(mWebViews[i], mSinks[i]);
+            mDispatcher.addNotificationBackgroundCallBack(mWebViews[i], mSinks[i]);
+        }
+        PushMetrics.getInstance().reset();
+    }
+
+    @After
+    public void tearDown() {
+        mDispatcher.destroy();
+    }
+
+    @Test
+    public void deliversToEveryWebView() throws Exception {
+        sendMessages(0, 50);
+
+        for (InMemoryPlatform.RecordingCallbackSink sink : mSinks) {
+            sink.awaitNotificationCount(50, DELIVERY_TIMEOUT);
+        }
+        // anything sent twice shows up by now
+        Thread.sleep(100);
+        for (int i = 0; i < mSinks.length; i++) {
+            assertEquals("notifications of web view " + i, 50, mSinks[i].getNotificationCount());
+        }
+    }
+
+    @Test
+    public void collectsDroppedWebViews() throws Exception {
+        sendMessages(0, 50);
+        for (InMemoryPlatform.RecordingCallbackSink sink : mSinks) {
+            sink.awaitNotificationCount(50, DELIVERY_TIMEOUT);
+        }
+
+        // the odd ones go away without removeWebView
+        int dropped = 0;
+        for (int i = 1; i < mWebViews.length; i += 2) {
+            mWebViews[i] = null;
+            dropped++;
+        }
+        for (int i = 0; i < 50 && PushMetrics.getInstance().mWebViewsCollected.get() < dropped;
+                i++) {
+            System.gc();
+            Thread.sleep(10);
+            // collected web views are expunged on the next lookup
+            mDispatcher.registerWebView(mWebViews[0]);
+        }
+        assertEquals("webViewsCollected", dropped,
+                PushMetrics.getInstance().mWebViewsCollected.get());
+
+        sendMessages(50, 100);
+        for (int i = 0; i < mWebViews.length; i += 2) {
+            mSinks[i].awaitNotificationCount(100, DELIVERY_TIMEOUT);
+        }
+        Thread.sleep(100);
+        for (int i = 0; i < mWebViews.length; i++) {
+            assertEquals("notifications of web view " + i, mWebViews[i] != null ? 100 : 50,
+                    mSinks[i].getNotificationCount());
+        }
+    }
+
+    private void sendMessages(int from, int to) {
+        for (int i = from; i < to; i++) {
+            mDispatcher.onMessage(SampleMessages.createMessage(i));
+        }
+    }
+}
@@ -21,7 +21,8 @@
   };
 
   // Call this to receive notification messages while the app is in foreground
-  PushNotification.prototype.onMessageInForeground = function(successCallback, errorCallback) {
+  // [options] may contain batchWindow (ms) / batchSize to receive notifications in arrays (Android)
+  PushNotification.prototype.onMessageInForeground = function(successCallback, errorCallback, options) {
     errorCallback = errorCallback || function() {};
 
     if (typeof errorCallback != "function")  {
@@ -34,11 +35,12 @@
       return
     }
 
-    exec(successCallback, errorCallback, "PushPlugin", "onMessageInForeground", []);
+    exec(successCallback, errorCallback, "PushPlugin", "onMessageInForeground", [options || {}]);
   };
 
   // Call this to receive notification messages while the app is in the background
-  PushNotification.prototype.onMessageInBackground = function(successCallback, errorCallback) {
+  // [options] may contain batchWindow (ms) / batchSize to receive notifications in arrays (Android)
+  PushNotification.prototype.onMessageInBackground = function(successCallback, errorCallback, options) {
     errorCallback = errorCallback || function() {};
 
     if (typeof errorCallback != "function")  {
@@ -51,7 +53,7 @@
       return
     }
 
-    exec(successCallback, errorCallback, "PushPlugin", "onMessageInBackground", []);
+    exec(successCallback, errorCallback, "PushPlugin", "onMessageInBackground", [options || {}]);
   };
 
   // Call this to unregister for push notifications
@@ -71,6 +73,24 @@
     exec(successCallback, errorCallback, "PushPlugin", "unregister", []);
   };
 
+  // Call this to get the push pipeline metrics (Android): counters, gauges and latency histograms (microseconds)
+  // [options] may contain reset: true to start the counters and histograms over after the snapshot,
+  // and trace: true to include the messages recorded in log trace mode
+  PushNotification.prototype.getMetrics = function(successCallback, errorCallback, options) {
+    errorCallback = errorCallback || function() {};
+
+    if (typeof errorCallback != "function")  {
+      console.log("PushNotification.getMetrics failure: failure parameter not a function");
+      return
+    }
+
+    if (typeof successCallback != "function") {
+      console.log("PushNotification.getMetrics failure: success callback parameter must be a function");
+      return
+    }
+
+    exec(successCallback, errorCallback, "PushPlugin", "getMetrics", [options || {}]);
+  };
 
   // Call this to set the application icon badge
   PushNotification.prototype.setApplicationIconBadgeNumber = function(successCallback, errorCallback, badge) {